@@ -1,13 +1,16 @@
 package common.feature;
 
 import common.linalg.*;
+import common.utils.MLColumnStore;
+import common.utils.MLIOUtils;
+import common.utils.MLStringDictionary;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class for common feature extraction.
@@ -22,6 +25,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * 2. serialize feature object using MLIOUtils.writeObjectToFile()
  * 3. finishSerialize()
  * <p>
+ * To store in columnar format:
+ * 1. writeColumns() to write dictionary and data as MLColumnStore columns
+ * 2. readColumns() to load it back
+ * 3. to add rows load it with readColumns() without data, call
+ * prepareForAppend(), addRow() and finalizeFeature() for the new rows and
+ * store them with appendColumns()
+ * <p>
  * To load from serialized:
  * 1. load using MLIOUtils.readObjectFromFile()
  * 2. if saved without data:
@@ -41,11 +51,14 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MLSparseFeature implements Serializable {
 
     private static final long serialVersionUID = 4665530401588164620L;
+    private static final int TRANSFORMED_NONE = 0;
+    private static final int TRANSFORMED_SHARED = 1;
+    private static final int TRANSFORMED_COPY = 2;
+    private static final int TRANSFORMED_STORED = 3;
 
     private MLSparseMatrix featMatrix;
     private MLSparseMatrix featMatrixTransformed;
-    private Map<String, Integer> catToIndex;
-    private AtomicInteger curCatIndex;
+    private MLStringDictionary catToIndex;
     // NOTE: last transform in this sequence must tokenize text
     private MLTextTransform[] textTransforms;
     private MLFeatureTransform[] featTransforms;
@@ -61,8 +74,7 @@ public class MLSparseFeature implements Serializable {
                                                       final MLFeatureTransform[] featTransformsP, final Class<T> typeP) {
         this.type = typeP;
 
-        this.catToIndex = new HashMap<>();
-        this.curCatIndex = new AtomicInteger(-1);
+        this.catToIndex = new MLStringDictionary();
 
         this.textTransforms = textTransformsP;
         if (this.textTransforms != null && this.textTransforms.length == 0) {
@@ -87,7 +99,6 @@ public class MLSparseFeature implements Serializable {
 
         // share category maps with another feature
         this.catToIndex = anotherFeature.catToIndex;
-        this.curCatIndex = anotherFeature.curCatIndex;
     }
 
     public <T extends MLSparseMatrix> MLSparseFeature(
@@ -187,8 +198,8 @@ public class MLSparseFeature implements Serializable {
 
         if (this.textTransforms == null) {
             // no transforms so treat as category
-            Integer index = this.getCatIndex(text);
-            if (index == null) {
+            int index = this.getCatIndex(text);
+            if (index < 0) {
                 this.featMatrix.setRow(null, rowIndex);
                 return;
             }
@@ -257,16 +268,17 @@ public class MLSparseFeature implements Serializable {
             this.featMatrix.inferAndSetNCols();
 
             // this is necessary for features with shared cat maps
-            int nColsCat = 0;
-            for (Integer index : this.catToIndex.values()) {
-                if (nColsCat < (index + 1)) {
-                    nColsCat = index + 1;
-                }
-            }
+            int nColsCat = this.catToIndex.getMaxIndex() + 1;
             if (this.featMatrix.getNCols() < nColsCat) {
                 this.featMatrix.setNCols(nColsCat);
             }
 
+            // rows added after prepareForAppend() keep the columns of the
+            // stored rows
+            if (this.featMatrix.getNCols() < this.nCols) {
+                this.featMatrix.setNCols(this.nCols);
+            }
+
             //NOTE nCols can't be changed after this
             this.nCols = this.featMatrix.getNCols();
         } else {
@@ -304,18 +316,30 @@ public class MLSparseFeature implements Serializable {
         }
     }
 
-    private synchronized Integer getCatIndex(final String cat) {
-        Integer index = this.catToIndex.get(cat);
-        if (index == null) {
-            if (this.inInfMode.get() == false) {
-                index = this.curCatIndex.incrementAndGet();
-                this.catToIndex.put(cat, index);
-            }
+    private synchronized int getCatIndex(final String cat) {
+        if (this.inInfMode.get() == false) {
+            return this.catToIndex.add(cat);
+        }
+        return this.catToIndex.get(cat);
+    }
+
+    /**
+     * Maps categories to indexes, new categories are assigned indexes in list
+     * order exactly as repeated addRow() calls would. This is used to merge
+     * category dictionaries that were built independently by parallel loaders.
+     *
+     * @param cats categories indexed in first occurrence order
+     * @return index for each category or -1 if not found in inference mode
+     */
+    public synchronized int[] getCatIndexes(final MLStringDictionary cats) {
+        int[] indexes = new int[cats.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = this.getCatIndex(cats.getString(i));
         }
-        return index;
+        return indexes;
     }
 
-    public Map<String, Integer> getCatToIndex() {
+    public MLStringDictionary getCatToIndex() {
         return this.catToIndex;
     }
 
@@ -467,10 +491,13 @@ public class MLSparseFeature implements Serializable {
         }
 
         // get feature name in the format 'prefix_[cat name]'
-        String[] featNames = new String[this.catToIndex.size()];
-        for (Map.Entry<String, Integer> entry : this.catToIndex.entrySet()) {
-            featNames[entry.getValue()] = prefix + "_" + entry.getKey().trim()
-                    .replaceAll("\\s+", "_");
+        String[] featNames = new String[this.catToIndex.getMaxIndex() + 1];
+        for (int i = 0; i < featNames.length; i++) {
+            String cat = this.catToIndex.getString(i);
+            if (cat != null) {
+                featNames[i] = prefix + "_" + cat.trim()
+                        .replaceAll("\\s+", "_");
+            }
         }
 
         if (transformed == true && this.featTransforms != null) {
@@ -484,8 +511,8 @@ public class MLSparseFeature implements Serializable {
     }
 
     private MLSparseVector getFeatVector(final String cat) {
-        Integer index = this.getCatIndex(cat);
-        if (index == null) {
+        int index = this.getCatIndex(cat);
+        if (index < 0) {
             return new MLSparseVector(null, null, null, this.catToIndex.size());
         } else {
             return new MLSparseVector(new int[]{index}, new float[]{1},
@@ -501,8 +528,8 @@ public class MLSparseFeature implements Serializable {
         }
         TreeMap<Integer, MutableFloat> countMap = new TreeMap<>();
         for (int i = 0; i < cats.length; i++) {
-            Integer index = this.getCatIndex(cats[i]);
-            if (index == null) {
+            int index = this.getCatIndex(cats[i]);
+            if (index < 0) {
                 continue;
             }
 
@@ -544,8 +571,11 @@ public class MLSparseFeature implements Serializable {
 
     public Map<Integer, String> getIndexToCat() {
         Map<Integer, String> indexToCat = new HashMap<>(this.catToIndex.size());
-        for (Map.Entry<String, Integer> entry : this.catToIndex.entrySet()) {
-            indexToCat.put(entry.getValue(), entry.getKey());
+        for (int i = 0; i <= this.catToIndex.getMaxIndex(); i++) {
+            String cat = this.catToIndex.getString(i);
+            if (cat != null) {
+                indexToCat.put(i, cat);
+            }
         }
         return indexToCat;
     }
@@ -590,6 +620,28 @@ public class MLSparseFeature implements Serializable {
         }
     }
 
+    /**
+     * Prepares a finalized feature, for example one loaded without data
+     * with readColumns(), to receive nRows rows that follow its stored rows.
+     * Data is replaced with an empty matrix of nRows rows that are added
+     * with addRow() and stored with appendColumns() after finalizeFeature().
+     * Features without transforms leave inference mode so new categories
+     * get indexes after the existing ones, including categories of a shared
+     * category map, and the number of columns can only grow. Features with
+     * transforms keep their columns and ignore unseen categories.
+     */
+    public synchronized void prepareForAppend(final int nRows) {
+        if (this.inInfMode.get() == false) {
+            throw new IllegalStateException(
+                    "feature is not in inference mode, call finalizeFeature()");
+        }
+        this.prepareForData(nRows);
+        this.featMatrixTransformed = null;
+        if (this.featTransforms == null) {
+            this.inInfMode.set(false);
+        }
+    }
+
     public synchronized void prepareToSerialize(final boolean withData) {
         if (withData == false) {
             // NOTE: this excludes data from serialization so
@@ -605,19 +657,206 @@ public class MLSparseFeature implements Serializable {
         }
     }
 
+    /**
+     * Writes this feature into a column store. The category dictionary and
+     * data matrices are stored as columns and the remaining state such as
+     * transforms is serialized without data into name.feature.
+     */
+    public synchronized void writeColumns(final MLColumnStore store,
+                                          final String name) throws IOException {
+        String[] cats = new String[this.catToIndex.size()];
+        for (int i = 0; i < cats.length; i++) {
+            cats[i] = this.catToIndex.getString(i);
+        }
+        store.writeStrings(name + ".cats", cats);
+
+        int transformedLayout;
+        if (this.featMatrixTransformed == null) {
+            transformedLayout = TRANSFORMED_NONE;
+        } else if (this.featMatrixTransformed == this.featMatrix) {
+            transformedLayout = TRANSFORMED_SHARED;
+        } else if (this.featTransforms == null) {
+            // finalized with preserveOrig and no transforms so the
+            // transformed matrix is a copy of the original
+            transformedLayout = TRANSFORMED_COPY;
+        } else {
+            transformedLayout = TRANSFORMED_STORED;
+            writeMatrix(store, name + ".transformed",
+                    this.featMatrixTransformed);
+        }
+        store.writeInts(name + ".layout", new int[]{transformedLayout});
+        if (this.featMatrix != null) {
+            writeMatrix(store, name + ".matrix", this.featMatrix);
+        }
+
+        this.writeShell(store, name);
+    }
+
+    /**
+     * Appends all rows of a feature prepared with prepareForAppend() and
+     * categories added since the feature was stored to columns written
+     * with writeColumns(). Transformed matrices that are not stored as
+     * columns are rebuilt on load.
+     */
+    public synchronized void appendColumns(final MLColumnStore store,
+                                           final String name) throws IOException {
+        this.appendCategories(store, name);
+        int transformedLayout = store.readInts(name + ".layout")[0];
+        if (transformedLayout == TRANSFORMED_STORED) {
+            appendMatrix(store, name + ".transformed",
+                    this.featMatrixTransformed);
+        }
+        if (this.featMatrix != null) {
+            appendMatrix(store, name + ".matrix", this.featMatrix);
+        }
+        // nCols may have changed
+        this.writeShell(store, name);
+    }
+
+    /**
+     * Appends categories that are not in the stored dictionary of name, this
+     * is also used to update the stored dictionary of a feature that shares
+     * its category map with this one.
+     */
+    public synchronized void appendCategories(final MLColumnStore store,
+                                              final String name) throws IOException {
+        int nCatsStored = (int) store.getLength(name + ".cats");
+        int nCats = this.catToIndex.size();
+        if (nCats > nCatsStored) {
+            String[] cats = new String[nCats - nCatsStored];
+            for (int i = 0; i < cats.length; i++) {
+                cats[i] = this.catToIndex.getString(nCatsStored + i);
+            }
+            store.appendStrings(name + ".cats", cats, 0, cats.length);
+        }
+    }
+
+    private void writeShell(final MLColumnStore store, final String name)
+            throws IOException {
+        MLStringDictionary catToIndexCache = this.catToIndex;
+        MLSparseMatrix featMatrixCache = this.featMatrix;
+        MLSparseMatrix featMatrixTransCache = this.featMatrixTransformed;
+        try {
+            this.catToIndex = null;
+            this.featMatrix = null;
+            this.featMatrixTransformed = null;
+            MLIOUtils.writeObjectToFile(this,
+                    store.getPath() + name + ".feature");
+        } finally {
+            this.catToIndex = catToIndexCache;
+            this.featMatrix = featMatrixCache;
+            this.featMatrixTransformed = featMatrixTransCache;
+        }
+    }
+
+    /**
+     * Loads feature written with writeColumns().
+     *
+     * @param catMapFeature if not null category maps are shared with this
+     *                      feature instead of being loaded
+     */
+    public static MLSparseFeature readColumns(final MLColumnStore store,
+                                              final String name,
+                                              final MLSparseFeature catMapFeature)
+            throws Exception {
+        return readColumns(store, name, catMapFeature, true);
+    }
+
+    /**
+     * Loads feature written with writeColumns(), if withData is false only
+     * the category dictionary and transforms are loaded, as after
+     * prepareToSerialize(false).
+     */
+    public static MLSparseFeature readColumns(final MLColumnStore store,
+                                              final String name,
+                                              final MLSparseFeature catMapFeature,
+                                              final boolean withData)
+            throws Exception {
+        MLSparseFeature feature = MLIOUtils.readObjectFromFile(
+                store.getPath() + name + ".feature", MLSparseFeature.class);
+        if (catMapFeature != null) {
+            feature.catToIndex = catMapFeature.catToIndex;
+        } else {
+            feature.catToIndex = new MLStringDictionary(
+                    store.readStrings(name + ".cats"));
+        }
+
+        if (withData == false) {
+            return feature;
+        }
+        if (store.hasColumn(name + ".matrix.shape") == true) {
+            feature.featMatrix = readMatrix(store, name + ".matrix",
+                    feature.type);
+        }
+        switch (store.readInts(name + ".layout")[0]) {
+            case TRANSFORMED_SHARED: {
+                feature.featMatrixTransformed = feature.featMatrix;
+                break;
+            }
+            case TRANSFORMED_COPY: {
+                feature.featMatrixTransformed = feature.featMatrix.deepCopy();
+                break;
+            }
+            case TRANSFORMED_STORED: {
+                feature.featMatrixTransformed = readMatrix(store,
+                        name + ".transformed", feature.type);
+                break;
+            }
+        }
+        return feature;
+    }
+
+    private static void writeMatrix(final MLColumnStore store,
+                                    final String name,
+                                    final MLSparseMatrix matrix)
+            throws IOException {
+        if (matrix instanceof MLSparseMatrixFlat) {
+            ((MLSparseMatrixFlat) matrix).toColumns(store, name);
+        } else if (matrix instanceof MLSparseMatrixAOO) {
+            ((MLSparseMatrixAOO) matrix).toColumns(store, name);
+        } else {
+            throw new IllegalArgumentException(
+                    "unsupported type " + matrix.getClass().getName());
+        }
+    }
+
+    private static void appendMatrix(final MLColumnStore store,
+                                     final String name,
+                                     final MLSparseMatrix matrix)
+            throws IOException {
+        if (matrix instanceof MLSparseMatrixFlat) {
+            ((MLSparseMatrixFlat) matrix).appendColumns(store, name);
+        } else if (matrix instanceof MLSparseMatrixAOO) {
+            ((MLSparseMatrixAOO) matrix).appendColumns(store, name);
+        } else {
+            throw new IllegalArgumentException(
+                    "unsupported type " + matrix.getClass().getName());
+        }
+    }
+
+    private static MLSparseMatrix readMatrix(final MLColumnStore store,
+                                             final String name,
+                                             final Class<? extends MLSparseMatrix> type)
+            throws IOException {
+        if (type.equals(MLSparseMatrixFlat.class) == true) {
+            return MLSparseMatrixFlat.fromColumns(store, name);
+        } else if (type.equals(MLSparseMatrixAOO.class) == true) {
+            return MLSparseMatrixAOO.fromColumns(store, name);
+        } else {
+            throw new IllegalArgumentException(
+                    "unsupported type " + type.getName());
+        }
+    }
+
     /**
      * Use existing category mapping to initialize this feature.
      *
      * @param catToIndexP
      */
     public synchronized void setCatMap(final Map<String, Integer> catToIndexP) {
-        this.catToIndex = new HashMap<>(catToIndexP.size());
-        this.curCatIndex = new AtomicInteger(0);
+        this.catToIndex = new MLStringDictionary(catToIndexP.size());
         for (Map.Entry<String, Integer> entry : catToIndexP.entrySet()) {
             this.catToIndex.put(entry.getKey(), entry.getValue());
-            if (this.curCatIndex.get() < entry.getValue()) {
-                this.curCatIndex.set(entry.getValue());
-            }
         }
     }
 }
\ No newline at end of file
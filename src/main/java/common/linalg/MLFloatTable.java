@@ -0,0 +1,122 @@
+package common.linalg;
+
+import common.utils.MLColumnStore;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Dense float table stored as one flat row major array: column j of row i
+ * is values[i * nCols + j]. Rows are read in place through getRowStart()
+ * and getValues() so no per row objects are created, and every column can
+ * be given a name.
+ */
+public class MLFloatTable implements Serializable {
+
+    private static final long serialVersionUID = 3954086104837420761L;
+
+    private float[] values;
+    private int nRows;
+    private int nCols;
+    private String[] colNames;
+
+    public MLFloatTable(final int nRowsP, final String[] colNamesP) {
+        this(new float[checkSize(nRowsP, colNamesP.length)], nRowsP,
+                colNamesP);
+    }
+
+    public MLFloatTable(final float[] valuesP, final int nRowsP,
+                        final String[] colNamesP) {
+        if ((long) nRowsP * colNamesP.length != valuesP.length) {
+            throw new IllegalArgumentException("table has " + valuesP.length
+                    + " values, shape is " + nRowsP + "x" + colNamesP.length);
+        }
+        this.values = valuesP;
+        this.nRows = nRowsP;
+        this.nCols = colNamesP.length;
+        this.colNames = colNamesP;
+    }
+
+    private static int checkSize(final int nRows, final int nCols) {
+        long size = (long) nRows * nCols;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("table is too large " + nRows
+                    + "x" + nCols);
+        }
+        return (int) size;
+    }
+
+    public float get(final int rowIndex, final int colIndex) {
+        return this.values[rowIndex * this.nCols + colIndex];
+    }
+
+    public void set(final int rowIndex, final int colIndex,
+                    final float value) {
+        this.values[rowIndex * this.nCols + colIndex] = value;
+    }
+
+    /**
+     * @return index of column name or -1 if there is no such column
+     */
+    public int getColIndex(final String colName) {
+        for (int i = 0; i < this.colNames.length; i++) {
+            if (this.colNames[i].equals(colName) == true) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getColName(final int colIndex) {
+        return this.colNames[colIndex];
+    }
+
+    public String[] getColNames() {
+        return this.colNames;
+    }
+
+    public int getNCols() {
+        return this.nCols;
+    }
+
+    public int getNRows() {
+        return this.nRows;
+    }
+
+    /**
+     * @return copy of the row
+     */
+    public float[] getRow(final int rowIndex) {
+        int start = this.getRowStart(rowIndex);
+        return Arrays.copyOfRange(this.values, start, start + this.nCols);
+    }
+
+    public int getRowStart(final int rowIndex) {
+        return rowIndex * this.nCols;
+    }
+
+    public float[] getValues() {
+        return this.values;
+    }
+
+    public void toColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        store.writeInts(name + ".shape", new int[]{this.nRows, this.nCols});
+        store.writeStrings(name + ".colNames", this.colNames);
+        store.writeFloats(name + ".values", this.values);
+    }
+
+    public static MLFloatTable fromColumns(final MLColumnStore store,
+                                           final String name)
+            throws IOException {
+        int[] shape = store.readInts(name + ".shape");
+        String[] colNames = store.readStrings(name + ".colNames");
+        float[] values = store.readFloats(name + ".values");
+        if (colNames.length != shape[1]
+                || values.length != (long) shape[0] * shape[1]) {
+            throw new IOException("inconsistent columns for " + name);
+        }
+        return new MLFloatTable(values, shape[0], colNames);
+    }
+}
@@ -0,0 +1,198 @@
+package common.linalg;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Variable length int rows packed in CSR format: row i occupies
+ * values[offsets[i]] to values[offsets[i + 1] - 1] and empty rows have zero
+ * length. Rows are read in place through getRowStart()/getRowEnd() and
+ * getValue() so no per row objects are created.
+ * <p>
+ * Values can be backed by a read only IntBuffer, for example a memory
+ * mapped column, instead of an array. Such a matrix is read only and is
+ * copied to the heap when it is serialized.
+ * <p>
+ * To build incrementally call setRow() in increasing row order, rows that
+ * are skipped are left empty, and call trim() once all rows are added.
+ */
+public class MLIntCSR implements Serializable {
+
+    private static final long serialVersionUID = -2781309548927710713L;
+
+    private int[] offsets;
+    private int[] values;
+    private transient IntBuffer mappedValues;
+    private int nValues;
+    private int lastRow;
+
+    public MLIntCSR(final int nRows) {
+        this.offsets = new int[nRows + 1];
+        this.values = new int[Math.max(16, nRows)];
+        this.nValues = 0;
+        this.lastRow = -1;
+    }
+
+    public MLIntCSR(final int[] offsetsP, final int[] valuesP) {
+        this.offsets = offsetsP;
+        this.values = valuesP;
+        this.nValues = offsetsP[offsetsP.length - 1];
+        this.lastRow = offsetsP.length - 2;
+    }
+
+    public MLIntCSR(final int[] offsetsP, final IntBuffer valuesP) {
+        this.offsets = offsetsP;
+        this.mappedValues = valuesP;
+        this.nValues = offsetsP[offsetsP.length - 1];
+        this.lastRow = offsetsP.length - 2;
+        if (valuesP.limit() < this.nValues) {
+            throw new IllegalArgumentException("buffer has " + valuesP.limit()
+                    + " values, offsets need " + this.nValues);
+        }
+    }
+
+    /**
+     * Copies length values starting at value index from to target.
+     */
+    public void copyValues(final int from, final int[] target,
+                           final int targetFrom, final int length) {
+        if (this.values != null) {
+            System.arraycopy(this.values, from, target, targetFrom, length);
+            return;
+        }
+        IntBuffer buffer = this.mappedValues.duplicate();
+        buffer.position(from);
+        buffer.get(target, targetFrom, length);
+    }
+
+    public int get(final int rowIndex, final int i) {
+        return this.getValue(this.offsets[rowIndex] + i);
+    }
+
+    public int getNRows() {
+        return this.offsets.length - 1;
+    }
+
+    public int getNValues() {
+        return this.nValues;
+    }
+
+    public int[] getOffsets() {
+        return this.offsets;
+    }
+
+    /**
+     * @return copy of the row or null if the row is empty
+     */
+    public int[] getRow(final int rowIndex) {
+        if (this.isEmpty(rowIndex) == true) {
+            return null;
+        }
+        int[] row = new int[this.getRowLength(rowIndex)];
+        this.copyValues(this.offsets[rowIndex], row, 0, row.length);
+        return row;
+    }
+
+    public int getRowEnd(final int rowIndex) {
+        return this.offsets[rowIndex + 1];
+    }
+
+    public int getRowLength(final int rowIndex) {
+        return this.offsets[rowIndex + 1] - this.offsets[rowIndex];
+    }
+
+    public int getRowStart(final int rowIndex) {
+        return this.offsets[rowIndex];
+    }
+
+    /**
+     * @return value at index of the flat value array, rows start at
+     * getRowStart()
+     */
+    public int getValue(final int index) {
+        if (this.values == null) {
+            return this.mappedValues.get(index);
+        }
+        return this.values[index];
+    }
+
+    /**
+     * @return backing array, may be longer than getNValues() before trim()
+     */
+    public int[] getValues() {
+        if (this.values == null) {
+            throw new IllegalStateException(
+                    "values are not backed by an array, use getValue()");
+        }
+        return this.values;
+    }
+
+    public boolean isEmpty(final int rowIndex) {
+        return this.offsets[rowIndex] == this.offsets[rowIndex + 1];
+    }
+
+    public void setRow(final int rowIndex, final int[] row, final int from,
+                       final int length) {
+        if (rowIndex <= this.lastRow) {
+            throw new IllegalArgumentException(
+                    "rows must be added in increasing order");
+        }
+        if ((long) this.nValues + length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many values");
+        }
+        // rows between last row and this one are empty
+        Arrays.fill(this.offsets, this.lastRow + 2, rowIndex + 1,
+                this.nValues);
+        if (this.values.length < this.nValues + length) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(this.nValues + (long) length,
+                            this.values.length * 3L / 2));
+            this.values = Arrays.copyOf(this.values, capacity);
+        }
+        System.arraycopy(row, from, this.values, this.nValues, length);
+        this.nValues += length;
+        this.offsets[rowIndex + 1] = this.nValues;
+        this.lastRow = rowIndex;
+    }
+
+    /**
+     * Copies all rows of another matrix starting at rowOffset.
+     */
+    public void setRows(final int rowOffset, final MLIntCSR rows) {
+        for (int i = 0; i < rows.getNRows(); i++) {
+            if (rows.isEmpty(i) == true) {
+                continue;
+            }
+            if (rows.values != null) {
+                this.setRow(rowOffset + i, rows.values, rows.offsets[i],
+                        rows.getRowLength(i));
+            } else {
+                int[] row = rows.getRow(i);
+                this.setRow(rowOffset + i, row, 0, row.length);
+            }
+        }
+    }
+
+    /**
+     * Marks the remaining rows as empty and releases unused capacity.
+     */
+    public void trim() {
+        Arrays.fill(this.offsets, this.lastRow + 2, this.offsets.length,
+                this.nValues);
+        this.lastRow = this.offsets.length - 2;
+        if (this.values != null && this.values.length != this.nValues) {
+            this.values = Arrays.copyOf(this.values, this.nValues);
+        }
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        if (this.values != null) {
+            return this;
+        }
+        int[] copy = new int[this.nValues];
+        this.copyValues(0, copy, 0, this.nValues);
+        return new MLIntCSR(this.offsets, copy);
+    }
+}
@@ -18,6 +18,7 @@ import java.util.stream.IntStream;
 
 import com.google.common.util.concurrent.AtomicDoubleArray;
 
+import common.utils.MLColumnStore;
 import common.utils.MLTimer;
 
 public class MLSparseMatrixAOO implements MLSparseMatrix {
@@ -788,6 +789,76 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
         }
     }
 
+    public void toColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        // CSR layout, empty rows have the same start and end offset
+        long nnz = this.getNNZ();
+        if (nnz > Integer.MAX_VALUE) {
+            throw new IOException("too many non-zeros for " + name);
+        }
+        if (this.hasDates() == true) {
+            throw new UnsupportedOperationException("dates are not supported");
+        }
+        int[] offsets = new int[this.rows.length + 1];
+        int[] indexes = new int[(int) nnz];
+        float[] values = new float[(int) nnz];
+        for (int i = 0; i < this.rows.length; i++) {
+            MLSparseVector row = this.rows[i];
+            int cur = offsets[i];
+            if (row != null && row.isEmpty() == false) {
+                int rowNNZ = row.getIndexes().length;
+                System.arraycopy(row.getIndexes(), 0, indexes, cur, rowNNZ);
+                System.arraycopy(row.getValues(), 0, values, cur, rowNNZ);
+                cur += rowNNZ;
+            }
+            offsets[i + 1] = cur;
+        }
+        store.writeInts(name + ".shape", new int[]{this.rows.length, this.nCols});
+        store.writeInts(name + ".offsets", offsets);
+        store.writeInts(name + ".indexes", indexes);
+        store.writeFloats(name + ".values", values);
+    }
+
+    /**
+     * Appends all rows of this matrix after the rows of a matrix written
+     * with toColumns(), the stored number of columns is replaced with
+     * nCols of this matrix.
+     */
+    public void appendColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        int nRowsStored = store.readInts(name + ".shape")[0];
+        if (store.getLength(name + ".offsets") != nRowsStored + 1) {
+            throw new IOException("stored rows don't match for " + name);
+        }
+        if (this.hasDates() == true) {
+            throw new UnsupportedOperationException("dates are not supported");
+        }
+        long nnzStored = store.getLength(name + ".indexes");
+        long nnz = this.getNNZ();
+        if (nnzStored + nnz > Integer.MAX_VALUE) {
+            throw new IOException("too many non-zeros for " + name);
+        }
+        // offsets continue from the last stored offset
+        int[] offsets = new int[this.rows.length];
+        int[] indexes = new int[(int) nnz];
+        float[] values = new float[(int) nnz];
+        int cur = 0;
+        for (int i = 0; i < this.rows.length; i++) {
+            MLSparseVector row = this.rows[i];
+            if (row != null && row.isEmpty() == false) {
+                int rowNNZ = row.getIndexes().length;
+                System.arraycopy(row.getIndexes(), 0, indexes, cur, rowNNZ);
+                System.arraycopy(row.getValues(), 0, values, cur, rowNNZ);
+                cur += rowNNZ;
+            }
+            offsets[i] = (int) nnzStored + cur;
+        }
+        store.appendInts(name + ".indexes", indexes, 0, indexes.length);
+        store.appendFloats(name + ".values", values, 0, values.length);
+        store.appendInts(name + ".offsets", offsets, 0, offsets.length);
+        store.writeInts(name + ".shape", new int[]{nRowsStored + this.rows.length, this.nCols});
+    }
+
     @Override
     public MLSparseMatrix transpose() {
         /**
@@ -1088,4 +1159,30 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 
         return matrix;
     }
+
+    public static MLSparseMatrixAOO fromColumns(final MLColumnStore store,
+                                                final String name)
+            throws IOException {
+        int[] shape = store.readInts(name + ".shape");
+        int[] offsets = store.readInts(name + ".offsets");
+        int[] indexes = store.readInts(name + ".indexes");
+        float[] values = store.readFloats(name + ".values");
+        if (offsets.length != shape[0] + 1
+                || indexes.length != offsets[shape[0]]
+                || values.length != offsets[shape[0]]) {
+            throw new IOException("inconsistent columns for " + name);
+        }
+        int nCols = shape[1];
+        MLSparseVector[] rows = new MLSparseVector[shape[0]];
+        IntStream.range(0, rows.length).parallel().forEach(i -> {
+            if (offsets[i] == offsets[i + 1]) {
+                return;
+            }
+            rows[i] = new MLSparseVector(
+                    Arrays.copyOfRange(indexes, offsets[i], offsets[i + 1]),
+                    Arrays.copyOfRange(values, offsets[i], offsets[i + 1]),
+                    null, nCols);
+        });
+        return new MLSparseMatrixAOO(rows, nCols);
+    }
 }
@@ -1,11 +1,13 @@
 package common.linalg;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.IntStream;
 
 import com.google.common.util.concurrent.AtomicDoubleArray;
+import common.utils.MLColumnStore;
 
 public class MLSparseMatrixFlat implements MLSparseMatrix {
 
@@ -176,11 +178,22 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
         return new MLDenseVector(colSumFloat);
     }
 
+    /**
+     * @return column index of each row, MISSING_ROW for empty rows
+     */
+    public int[] getIndexes() {
+        return this.indexes;
+    }
+
     @Override
     public int getNCols() {
         return this.nCols;
     }
 
+    public float[] getValues() {
+        return this.values;
+    }
+
     @Override
     public long getNNZ() {
         long nnz = 0;
@@ -484,6 +497,30 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
         throw new UnsupportedOperationException("unsupported function");
     }
 
+    public void toColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        store.writeInts(name + ".shape", new int[]{this.getNRows(), this.nCols});
+        store.writeInts(name + ".indexes", this.indexes);
+        store.writeFloats(name + ".values", this.values);
+    }
+
+    /**
+     * Appends all rows of this matrix after the rows of a matrix written
+     * with toColumns(), the stored number of columns is replaced with
+     * nCols of this matrix.
+     */
+    public void appendColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        int nRowsStored = store.readInts(name + ".shape")[0];
+        if (store.getLength(name + ".indexes") != nRowsStored) {
+            throw new IOException("stored rows don't match for " + name);
+        }
+        int nRows = this.getNRows();
+        store.appendInts(name + ".indexes", this.indexes, 0, nRows);
+        store.appendFloats(name + ".values", this.values, 0, nRows);
+        store.writeInts(name + ".shape", new int[]{nRowsStored + nRows, this.nCols});
+    }
+
     @Override
     public MLSparseMatrix transpose() {
         /**
@@ -601,4 +638,16 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
         return new MLSparseMatrixFlat(indexesSlice, valuesSlice,
                 this.getNCols());
     }
+
+    public static MLSparseMatrixFlat fromColumns(final MLColumnStore store,
+                                                 final String name)
+            throws IOException {
+        int[] shape = store.readInts(name + ".shape");
+        int[] indexes = store.readInts(name + ".indexes");
+        float[] values = store.readFloats(name + ".values");
+        if (indexes.length != shape[0] || values.length != shape[0]) {
+            throw new IOException("inconsistent columns for " + name);
+        }
+        return new MLSparseMatrixFlat(indexes, values, shape[1]);
+    }
 }
@@ -1,5 +1,7 @@
 package common.linalg;
 
+import common.utils.MLNumberFormat;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -545,17 +547,42 @@ public class MLSparseVector implements Serializable {
         }
 
         StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < this.indexes.length; i++) {
-            float val = this.values[i];
+        this.appendLIBSVM(offset, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the vector in LIBSVM format, same text as
+     * toLIBSVMString(offset) without creating intermediate strings.
+     */
+    public void appendLIBSVM(final int offset, final StringBuilder builder) {
+        if (this.isEmpty() == true) {
+            return;
+        }
+        appendLIBSVM(this.indexes, this.values, 0, this.indexes.length,
+                offset, builder);
+    }
+
+    /**
+     * Appends entries [start, end) of flat indexes and values in LIBSVM
+     * format, used to write rows stored in CSR buffers without creating a
+     * vector for each row.
+     */
+    public static void appendLIBSVM(final int[] indexes, final float[] values,
+                                    final int start, final int end,
+                                    final int offset,
+                                    final StringBuilder builder) {
+        for (int i = start; i < end; i++) {
+            float val = values[i];
+            builder.append(' ');
+            builder.append(offset + indexes[i]);
+            builder.append(':');
             if (val == Math.round(val)) {
-                builder.append(
-                        " " + (offset + this.indexes[i]) + ":" + ((int) val));
+                builder.append((int) val);
             } else {
-                builder.append(" " + (offset + this.indexes[i]) + ":"
-                        + String.format("%.5f", val));
+                MLNumberFormat.appendFixed(builder, val, 5);
             }
         }
-        return builder.toString();
     }
 
     public static MLSparseVector concat(final MLSparseVector... vectors) {
@@ -0,0 +1,71 @@
+package common.utils;
+
+import java.io.IOException;
+
+/**
+ * Compresses independent blocks of bytes. Codecs are identified by an id
+ * that is stored with the compressed data so readers can pick the codec
+ * that was used for writing, new codecs are registered in get().
+ */
+public interface MLBlockCodec {
+
+	MLBlockCodec NONE = new MLBlockCodec() {
+
+		@Override
+		public int compress(final byte[] src, final int srcOffset,
+				final int srcLength, final byte[] dst, final int dstOffset) {
+			System.arraycopy(src, srcOffset, dst, dstOffset, srcLength);
+			return srcLength;
+		}
+
+		@Override
+		public void decompress(final byte[] src, final int srcOffset,
+				final int srcLength, final byte[] dst, final int dstOffset,
+				final int dstLength) throws IOException {
+			if (srcLength != dstLength) {
+				throw new IOException("corrupt block");
+			}
+			System.arraycopy(src, srcOffset, dst, dstOffset, srcLength);
+		}
+
+		@Override
+		public int getId() {
+			return 0;
+		}
+
+		@Override
+		public int maxCompressedLength(final int length) {
+			return length;
+		}
+	};
+
+	MLBlockCodec LZ4 = new MLLZ4Codec();
+
+	/**
+	 * @return compressed length, dst must have at least
+	 *         maxCompressedLength(srcLength) bytes after dstOffset
+	 */
+	int compress(byte[] src, int srcOffset, int srcLength, byte[] dst,
+			int dstOffset);
+
+	/**
+	 * Decompresses a block into exactly dstLength bytes.
+	 */
+	void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst,
+			int dstOffset, int dstLength) throws IOException;
+
+	int getId();
+
+	int maxCompressedLength(int length);
+
+	static MLBlockCodec get(final int id) throws IOException {
+		switch (id) {
+			case 0:
+				return NONE;
+			case 1:
+				return LZ4;
+			default:
+				throw new IOException("unknown codec " + id);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package common.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads streams written by MLBlockOutputStream. Compressed blocks are read
+ * in batches of one block per thread and decompressed in parallel, and
+ * each block is verified against its checksum.
+ */
+public class MLBlockInputStream extends InputStream {
+
+	private DataInputStream in;
+	private MLBlockCodec codec;
+	private byte[][] blocks;
+	private byte[][] compressed;
+	private int[] blockLengths;
+	private int[] compressedLengths;
+	private int[] checksums;
+	private int blockSize;
+	private int nBlocks;
+	private int curBlock;
+	private int position;
+	private boolean ended;
+
+	public MLBlockInputStream(final InputStream inP) throws IOException {
+		this(inP, Runtime.getRuntime().availableProcessors());
+	}
+
+	public MLBlockInputStream(final InputStream inP, final int nThreads)
+			throws IOException {
+		this.in = new DataInputStream(inP);
+		if (this.in.readInt() != MLBlockOutputStream.MAGIC) {
+			throw new IOException("not a block compressed stream");
+		}
+		int version = this.in.readInt();
+		if (version != MLBlockOutputStream.VERSION) {
+			throw new IOException("unsupported block stream version "
+					+ version);
+		}
+		this.codec = MLBlockCodec.get(this.in.readInt());
+		this.blockSize = this.in.readInt();
+		this.blocks = new byte[Math.max(nThreads, 1)][];
+		this.compressed = new byte[this.blocks.length][];
+		this.blockLengths = new int[this.blocks.length];
+		this.compressedLengths = new int[this.blocks.length];
+		this.checksums = new int[this.blocks.length];
+		this.nBlocks = 0;
+		this.curBlock = 0;
+		this.position = 0;
+		this.ended = false;
+	}
+
+	/**
+	 * @return true if file starts with the MLBlockOutputStream header
+	 */
+	public static boolean isBlockCompressed(final String file)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new FileInputStream(file))) {
+			return in.readInt() == MLBlockOutputStream.MAGIC;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] value = new byte[1];
+		if (this.read(value, 0, 1) < 0) {
+			return -1;
+		}
+		return value[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] values, final int offset, final int length)
+			throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while (this.curBlock == this.nBlocks
+				|| this.position == this.blockLengths[this.curBlock]) {
+			if (this.curBlock < this.nBlocks) {
+				this.curBlock++;
+				this.position = 0;
+				continue;
+			}
+			if (this.ended == true) {
+				return -1;
+			}
+			this.readBlocks();
+		}
+		int n = Math.min(length,
+				this.blockLengths[this.curBlock] - this.position);
+		System.arraycopy(this.blocks[this.curBlock], this.position, values,
+				offset, n);
+		this.position += n;
+		return n;
+	}
+
+	private void readBlocks() throws IOException {
+		this.nBlocks = 0;
+		this.curBlock = 0;
+		this.position = 0;
+		while (this.nBlocks < this.blocks.length) {
+			int blockLength;
+			int compressedLength;
+			int checksum;
+			try {
+				blockLength = this.in.readInt();
+				compressedLength = this.in.readInt();
+				checksum = this.in.readInt();
+			} catch (EOFException e) {
+				throw new IOException("truncated block stream", e);
+			}
+			if (blockLength == 0) {
+				this.ended = true;
+				break;
+			}
+			if (blockLength < 0 || blockLength > this.blockSize
+					|| compressedLength < 0
+					|| compressedLength > Math.max(blockLength,
+							this.codec.maxCompressedLength(blockLength))) {
+				throw new IOException("corrupt block header");
+			}
+			int i = this.nBlocks;
+			if (this.compressed[i] == null
+					|| this.compressed[i].length < compressedLength) {
+				this.compressed[i] = new byte[Math.max(compressedLength,
+						this.codec.maxCompressedLength(this.blockSize))];
+			}
+			this.in.readFully(this.compressed[i], 0, compressedLength);
+			this.blockLengths[i] = blockLength;
+			this.compressedLengths[i] = compressedLength;
+			this.checksums[i] = checksum;
+			this.nBlocks++;
+		}
+		try {
+			IntStream.range(0, this.nBlocks).parallel().forEach(i -> this.decode(i));
+		} catch (RuntimeException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private void decode(final int i) {
+		if (this.blocks[i] == null) {
+			this.blocks[i] = new byte[this.blockSize];
+		}
+		try {
+			if (this.compressedLengths[i] == this.blockLengths[i]) {
+				// stored raw
+				System.arraycopy(this.compressed[i], 0, this.blocks[i], 0,
+						this.blockLengths[i]);
+			} else {
+				this.codec.decompress(this.compressed[i], 0,
+						this.compressedLengths[i], this.blocks[i], 0,
+						this.blockLengths[i]);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("failed to decompress block", e);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(this.blocks[i], 0, this.blockLengths[i]);
+		if ((int) crc.getValue() != this.checksums[i]) {
+			throw new RuntimeException("block checksum doesn't match");
+		}
+	}
+}
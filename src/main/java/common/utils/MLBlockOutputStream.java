@@ -0,0 +1,183 @@
+package common.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Output stream that splits data into fixed size blocks and compresses
+ * each block independently with an MLBlockCodec. Blocks are collected in
+ * batches of one block per thread and a full batch is compressed in
+ * parallel and written in order. Stream layout:
+ * <p>
+ * magic (int), format version (int), codec id (int), block size (int)
+ * <p>
+ * followed by blocks of raw length (int), compressed length (int), CRC32 of
+ * the raw data (int) and compressed data, and an empty block marks the end.
+ * Blocks that don't compress are stored raw with compressed length equal to
+ * raw length. Only whole blocks are written before finish() or close(), so
+ * flush() doesn't force out partial blocks.
+ */
+public class MLBlockOutputStream extends OutputStream {
+
+	public static final int MAGIC = 0x4d4c424b;
+	public static final int VERSION = 1;
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+	public static final int HEADER_SIZE = 16;
+	public static final int BLOCK_HEADER_SIZE = 12;
+
+	private OutputStream out;
+	private MLBlockCodec codec;
+	private byte[][] blocks;
+	private byte[][] compressed;
+	private int[] blockLengths;
+	private int[] compressedLengths;
+	private int[] checksums;
+	private int blockSize;
+	private int nBlocks;
+	private int position;
+	private boolean finished;
+
+	public MLBlockOutputStream(final OutputStream outP,
+			final MLBlockCodec codecP) throws IOException {
+		this(outP, codecP, DEFAULT_BLOCK_SIZE,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	public MLBlockOutputStream(final OutputStream outP,
+			final MLBlockCodec codecP, final int blockSizeP,
+			final int nThreads) throws IOException {
+		this(outP, codecP, blockSizeP, nThreads, true);
+	}
+
+	/**
+	 * @param writeHeader false to continue a stream whose end marker was
+	 *                    removed, codec and block size must match the header
+	 */
+	MLBlockOutputStream(final OutputStream outP, final MLBlockCodec codecP,
+			final int blockSizeP, final int nThreads,
+			final boolean writeHeader) throws IOException {
+		this.out = outP;
+		this.codec = codecP;
+		this.blockSize = blockSizeP;
+		this.blocks = new byte[Math.max(nThreads, 1)][];
+		this.compressed = new byte[this.blocks.length][];
+		this.blockLengths = new int[this.blocks.length];
+		this.compressedLengths = new int[this.blocks.length];
+		this.checksums = new int[this.blocks.length];
+		this.nBlocks = 0;
+		this.position = 0;
+		this.finished = false;
+		if (writeHeader == true) {
+			writeInt(this.out, MAGIC);
+			writeInt(this.out, VERSION);
+			writeInt(this.out, this.codec.getId());
+			writeInt(this.out, this.blockSize);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.finish();
+		} finally {
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Writes remaining data and the end marker without closing the
+	 * underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (this.finished == true) {
+			return;
+		}
+		if (this.position > 0) {
+			this.blockLengths[this.nBlocks] = this.position;
+			this.nBlocks++;
+			this.position = 0;
+		}
+		this.writeBlocks();
+		writeInt(this.out, 0);
+		writeInt(this.out, 0);
+		writeInt(this.out, 0);
+		this.out.flush();
+		this.finished = true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		this.write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] values, final int offset, final int length)
+			throws IOException {
+		if (this.finished == true) {
+			throw new IOException("stream is finished");
+		}
+		int cur = offset;
+		int end = offset + length;
+		while (cur < end) {
+			if (this.blocks[this.nBlocks] == null) {
+				this.blocks[this.nBlocks] = new byte[this.blockSize];
+			}
+			int n = Math.min(end - cur, this.blockSize - this.position);
+			System.arraycopy(values, cur, this.blocks[this.nBlocks],
+					this.position, n);
+			this.position += n;
+			cur += n;
+			if (this.position == this.blockSize) {
+				this.blockLengths[this.nBlocks] = this.blockSize;
+				this.nBlocks++;
+				this.position = 0;
+				if (this.nBlocks == this.blocks.length) {
+					this.writeBlocks();
+				}
+			}
+		}
+	}
+
+	private void writeBlocks() throws IOException {
+		IntStream.range(0, this.nBlocks).parallel().forEach(i -> {
+			int maxLength = this.codec.maxCompressedLength(this.blockSize);
+			if (this.compressed[i] == null
+					|| this.compressed[i].length < maxLength) {
+				this.compressed[i] = new byte[maxLength];
+			}
+			CRC32 crc = new CRC32();
+			crc.update(this.blocks[i], 0, this.blockLengths[i]);
+			this.checksums[i] = (int) crc.getValue();
+			this.compressedLengths[i] = this.codec.compress(this.blocks[i],
+					0, this.blockLengths[i], this.compressed[i], 0);
+		});
+		for (int i = 0; i < this.nBlocks; i++) {
+			writeInt(this.out, this.blockLengths[i]);
+			if (this.compressedLengths[i] < this.blockLengths[i]) {
+				writeInt(this.out, this.compressedLengths[i]);
+				writeInt(this.out, this.checksums[i]);
+				this.out.write(this.compressed[i], 0,
+						this.compressedLengths[i]);
+			} else {
+				writeInt(this.out, this.blockLengths[i]);
+				writeInt(this.out, this.checksums[i]);
+				this.out.write(this.blocks[i], 0, this.blockLengths[i]);
+			}
+		}
+		this.nBlocks = 0;
+	}
+
+	private static void writeInt(final OutputStream out, final int value)
+			throws IOException {
+		// one write per int, out may be an unbuffered channel stream
+		out.write(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+				(byte) (value >>> 8), (byte) value });
+	}
+}
@@ -0,0 +1,715 @@
+package common.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Directory of binary column files. Each column is stored in its own file
+ * with a fixed size header followed by little endian data:
+ * <p>
+ * magic (int), format version (int), column type (int), flags (int),
+ * number of elements (long)
+ * <p>
+ * String columns store number of strings + 1 int offsets followed by the
+ * UTF-8 bytes of all strings. Columns are read back with bulk copies from
+ * memory mapped windows so loading runs at disk speed.
+ * <p>
+ * If a codec is set with setCodec() the data after the header is written as
+ * an MLBlockOutputStream and the blocks flag is set, such columns are
+ * decompressed in parallel when read. Compression is detected per column so
+ * a store can mix plain and compressed columns.
+ * <p>
+ * Numeric columns can be extended in place with the append functions, the
+ * number of elements in the header is updated after the data is written.
+ * Strings appended to an existing string column are written into part
+ * columns name.part1, name.part2, ... which readStrings() concatenates.
+ * <p>
+ * Plain int columns can also be mapped with mapInts() instead of being
+ * copied onto the heap.
+ */
+public class MLColumnStore {
+
+	public static final int MAGIC = 0x4d4c4353;
+	public static final int VERSION = 1;
+	public static final String EXTENSION = ".col";
+	private static final int HEADER_SIZE = 24;
+	private static final int FLAG_BLOCKS = 1;
+	private static final int WINDOW_SIZE = 1 << 28;
+	private static final int DECODE_WINDOW_SIZE = 1 << 24;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	public enum ColumnType {
+		BYTE(1),
+		INT(4),
+		LONG(8),
+		FLOAT(4),
+		STRING(1);
+
+		private int nBytes;
+
+		ColumnType(final int nBytesP) {
+			this.nBytes = nBytesP;
+		}
+	}
+
+	private String path;
+	private MLBlockCodec codec;
+
+	public MLColumnStore(final String pathP) {
+		if (pathP.endsWith(File.separator) == true) {
+			this.path = pathP;
+		} else {
+			this.path = pathP + File.separator;
+		}
+	}
+
+	public static MLColumnStore create(final String path) throws IOException {
+		File dir = new File(path);
+		if (dir.exists() == false && dir.mkdirs() == false) {
+			throw new IOException("failed to create " + path);
+		}
+		return new MLColumnStore(path);
+	}
+
+	public boolean exists() {
+		return new File(this.path).isDirectory();
+	}
+
+	public MLBlockCodec getCodec() {
+		return this.codec;
+	}
+
+	public String getFile(final String name) {
+		return this.path + name + EXTENSION;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	public boolean hasColumn(final String name) {
+		return new File(this.getFile(name)).exists();
+	}
+
+	/**
+	 * @return true if the column is plain and small enough to be mapped in
+	 *         one piece with mapInts()
+	 */
+	public boolean isMappable(final String name, final ColumnType type)
+			throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(this.getFile(name),
+				"r"); FileChannel channel = file.getChannel()) {
+			Header header = readHeader(channel, type, name);
+			return (header.flags & FLAG_BLOCKS) == 0
+					&& header.length <= Integer.MAX_VALUE / type.nBytes;
+		}
+	}
+
+	public void appendBytes(final String name, final byte[] values,
+			final int offset, final int length) throws IOException {
+		try (ColumnWriter writer = this.getAppender(name, ColumnType.BYTE)) {
+			writer.put(values, offset, length);
+		}
+	}
+
+	public void appendFloats(final String name, final float[] values,
+			final int offset, final int length) throws IOException {
+		try (ColumnWriter writer = this.getAppender(name, ColumnType.FLOAT)) {
+			writer.put(values, offset, length);
+		}
+	}
+
+	public void appendInts(final String name, final int[] values,
+			final int offset, final int length) throws IOException {
+		try (ColumnWriter writer = this.getAppender(name, ColumnType.INT)) {
+			writer.put(values, offset, length);
+		}
+	}
+
+	public void appendLongs(final String name, final long[] values,
+			final int offset, final int length) throws IOException {
+		try (ColumnWriter writer = this.getAppender(name, ColumnType.LONG)) {
+			writer.put(values, offset, length);
+		}
+	}
+
+	public void appendStrings(final String name, final String[] values,
+			final int offset, final int length) throws IOException {
+		String[] appended = Arrays.copyOfRange(values, offset,
+				offset + length);
+		if (this.hasColumn(name) == false) {
+			this.writeStrings(name, appended);
+			return;
+		}
+		int part = 1;
+		while (this.hasColumn(getPartName(name, part)) == true) {
+			part++;
+		}
+		writeStringColumn(this.getFile(getPartName(name, part)), appended,
+				this.codec);
+	}
+
+	/**
+	 * @return number of elements in the column, for string columns this
+	 *         includes all parts
+	 */
+	public long getLength(final String name) throws IOException {
+		long length = readLength(this.getFile(name), name);
+		int part = 1;
+		while (this.hasColumn(getPartName(name, part)) == true) {
+			length += readLength(this.getFile(getPartName(name, part)), name);
+			part++;
+		}
+		return length;
+	}
+
+	/**
+	 * Maps the data of a plain int column read only. The mapping stays valid
+	 * after this returns, pages are loaded on first access and are shared
+	 * with other processes that map the same column.
+	 */
+	public IntBuffer mapInts(final String name) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(this.getFile(name),
+				"r"); FileChannel channel = file.getChannel()) {
+			Header header = readHeader(channel, ColumnType.INT, name);
+			if ((header.flags & FLAG_BLOCKS) != 0) {
+				throw new IOException("compressed column " + name
+						+ " can't be mapped");
+			}
+			if (header.length > Integer.MAX_VALUE / ColumnType.INT.nBytes) {
+				throw new IOException("column " + name
+						+ " is too large to map");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+					header.length * ColumnType.INT.nBytes)
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+	}
+
+	public byte[] readBytes(final String name) throws IOException {
+		try (ColumnReader reader = new ColumnReader(this.getFile(name),
+				ColumnType.BYTE, name)) {
+			byte[] values = new byte[toArrayLength(reader.length, name)];
+			reader.read(values.length, ColumnType.BYTE,
+					(buffer, offset, n) -> buffer.get(values, offset, n));
+			return values;
+		}
+	}
+
+	public float[] readFloats(final String name) throws IOException {
+		try (ColumnReader reader = new ColumnReader(this.getFile(name),
+				ColumnType.FLOAT, name)) {
+			float[] values = new float[toArrayLength(reader.length, name)];
+			reader.read(values.length, ColumnType.FLOAT,
+					(buffer, offset, n) -> buffer.asFloatBuffer().get(values,
+							offset, n));
+			return values;
+		}
+	}
+
+	public int[] readInts(final String name) throws IOException {
+		try (ColumnReader reader = new ColumnReader(this.getFile(name),
+				ColumnType.INT, name)) {
+			int[] values = new int[toArrayLength(reader.length, name)];
+			reader.read(values.length, ColumnType.INT,
+					(buffer, offset, n) -> buffer.asIntBuffer().get(values,
+							offset, n));
+			return values;
+		}
+	}
+
+	public long[] readLongs(final String name) throws IOException {
+		try (ColumnReader reader = new ColumnReader(this.getFile(name),
+				ColumnType.LONG, name)) {
+			long[] values = new long[toArrayLength(reader.length, name)];
+			reader.read(values.length, ColumnType.LONG,
+					(buffer, offset, n) -> buffer.asLongBuffer().get(values,
+							offset, n));
+			return values;
+		}
+	}
+
+	public String[] readStrings(final String name) throws IOException {
+		String[] values = readStringColumn(this.getFile(name), name);
+		int part = 1;
+		while (this.hasColumn(getPartName(name, part)) == true) {
+			String[] partValues = readStringColumn(
+					this.getFile(getPartName(name, part)), name);
+			int nValues = values.length;
+			values = Arrays.copyOf(values, nValues + partValues.length);
+			System.arraycopy(partValues, 0, values, nValues,
+					partValues.length);
+			part++;
+		}
+		return values;
+	}
+
+	public void writeBytes(final String name, final byte[] values)
+			throws IOException {
+		try (ColumnWriter writer = new ColumnWriter(this.getFile(name),
+				ColumnType.BYTE, values.length, this.codec)) {
+			writer.put(values, 0, values.length);
+		}
+	}
+
+	public void writeFloats(final String name, final float[] values)
+			throws IOException {
+		try (ColumnWriter writer = new ColumnWriter(this.getFile(name),
+				ColumnType.FLOAT, values.length, this.codec)) {
+			writer.put(values, 0, values.length);
+		}
+	}
+
+	public void writeInts(final String name, final int[] values)
+			throws IOException {
+		try (ColumnWriter writer = new ColumnWriter(this.getFile(name),
+				ColumnType.INT, values.length, this.codec)) {
+			writer.put(values, 0, values.length);
+		}
+	}
+
+	public void writeLongs(final String name, final long[] values)
+			throws IOException {
+		try (ColumnWriter writer = new ColumnWriter(this.getFile(name),
+				ColumnType.LONG, values.length, this.codec)) {
+			writer.put(values, 0, values.length);
+		}
+	}
+
+	/**
+	 * @param codecP codec for columns written from now on, null writes plain
+	 *               columns
+	 */
+	public void setCodec(final MLBlockCodec codecP) {
+		this.codec = codecP;
+	}
+
+	public void writeStrings(final String name, final String[] values)
+			throws IOException {
+		writeStringColumn(this.getFile(name), values, this.codec);
+		// parts of a previous version of this column are no longer valid
+		int part = 1;
+		while (this.hasColumn(getPartName(name, part)) == true) {
+			if (new File(this.getFile(getPartName(name, part))).delete() == false) {
+				throw new IOException("failed to delete part " + part + " of " + name);
+			}
+			part++;
+		}
+	}
+
+	private ColumnWriter getAppender(final String name, final ColumnType type)
+			throws IOException {
+		if (this.hasColumn(name) == false) {
+			// start with an empty column
+			new ColumnWriter(this.getFile(name), type, 0, this.codec).close();
+		}
+		return new ColumnWriter(this.getFile(name), type);
+	}
+
+	private static String getPartName(final String name, final int part) {
+		return name + ".part" + part;
+	}
+
+	/**
+	 * Streams values into a column file, the number of elements must be known
+	 * in advance since it is written into the header. In append mode values
+	 * are written after the existing elements and the header is updated on
+	 * close(), so an interrupted append leaves the previous plain column
+	 * intact.
+	 */
+	public static class ColumnWriter implements AutoCloseable {
+
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private MLBlockOutputStream blocks;
+		private ColumnType appendType;
+		private long appendLength;
+		private long nPut;
+
+		public ColumnWriter(final String fileP, final ColumnType type,
+				final long length) throws IOException {
+			this(fileP, type, length, null);
+		}
+
+		/**
+		 * @param codec block compression codec or null for a plain column
+		 */
+		public ColumnWriter(final String fileP, final ColumnType type,
+				final long length, final MLBlockCodec codec)
+				throws IOException {
+			this.file = new RandomAccessFile(fileP, "rw");
+			this.file.setLength(0);
+			this.channel = this.file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(type.ordinal());
+			header.putInt(codec == null ? 0 : FLAG_BLOCKS);
+			header.putLong(length);
+			header.flip();
+			while (header.hasRemaining() == true) {
+				this.channel.write(header);
+			}
+			if (codec == null) {
+				this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			} else {
+				this.buffer = ByteBuffer.allocate(BUFFER_SIZE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				this.blocks = new MLBlockOutputStream(
+						Channels.newOutputStream(this.channel), codec);
+			}
+		}
+
+		/**
+		 * Opens an existing column in append mode, compressed columns are
+		 * continued with the codec and block size they were written with.
+		 */
+		public ColumnWriter(final String fileP, final ColumnType type)
+				throws IOException {
+			if (type.equals(ColumnType.STRING) == true) {
+				throw new IllegalArgumentException(
+						"string columns can't be appended in place");
+			}
+			this.file = new RandomAccessFile(fileP, "rw");
+			this.channel = this.file.getChannel();
+			Header header = readHeader(this.channel, type, fileP);
+			this.appendType = type;
+			this.appendLength = header.length;
+			if ((header.flags & FLAG_BLOCKS) == 0) {
+				// drop data left behind by an interrupted append
+				long end = HEADER_SIZE + header.length * type.nBytes;
+				this.file.setLength(end);
+				this.channel.position(end);
+				this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				return;
+			}
+
+			// continue the block stream in place of its end marker
+			long end = this.channel.size()
+					- MLBlockOutputStream.BLOCK_HEADER_SIZE;
+			ByteBuffer marker = readFully(this.channel, end,
+					MLBlockOutputStream.BLOCK_HEADER_SIZE, fileP);
+			while (marker.hasRemaining() == true) {
+				if (marker.get() != 0) {
+					throw new IOException("column is truncated " + fileP);
+				}
+			}
+			ByteBuffer streamHeader = readFully(this.channel, HEADER_SIZE,
+					MLBlockOutputStream.HEADER_SIZE, fileP);
+			if (streamHeader.getInt() != MLBlockOutputStream.MAGIC
+					|| streamHeader.getInt() != MLBlockOutputStream.VERSION) {
+				throw new IOException("not a block compressed column "
+						+ fileP);
+			}
+			MLBlockCodec codec = MLBlockCodec.get(streamHeader.getInt());
+			int blockSize = streamHeader.getInt();
+			this.file.setLength(end);
+			this.channel.position(end);
+			this.buffer = ByteBuffer.allocate(BUFFER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			this.blocks = new MLBlockOutputStream(
+					Channels.newOutputStream(this.channel), codec, blockSize,
+					Runtime.getRuntime().availableProcessors(), false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.flush();
+			if (this.blocks != null) {
+				this.blocks.finish();
+			}
+			if (this.appendType != null) {
+				ByteBuffer length = ByteBuffer.allocate(8)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				length.putLong(this.appendLength + this.nPut);
+				length.flip();
+				while (length.hasRemaining() == true) {
+					this.channel.write(length, 16 + length.position());
+				}
+			}
+			this.channel.close();
+			this.file.close();
+		}
+
+		private void flush() throws IOException {
+			if (this.blocks != null) {
+				this.blocks.write(this.buffer.array(), 0,
+						this.buffer.position());
+				this.buffer.clear();
+				return;
+			}
+			this.buffer.flip();
+			while (this.buffer.hasRemaining() == true) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		public void put(final byte[] values, final int offset,
+				final int length) throws IOException {
+			this.nPut += length;
+			int cur = offset;
+			int end = offset + length;
+			while (cur < end) {
+				if (this.buffer.remaining() == 0) {
+					this.flush();
+				}
+				int n = Math.min(end - cur, this.buffer.remaining());
+				this.buffer.put(values, cur, n);
+				cur += n;
+			}
+		}
+
+		public void put(final float[] values, final int offset,
+				final int length) throws IOException {
+			this.nPut += length;
+			int cur = offset;
+			int end = offset + length;
+			while (cur < end) {
+				if (this.buffer.remaining() < 4) {
+					this.flush();
+				}
+				int n = Math.min(end - cur, this.buffer.remaining() / 4);
+				this.buffer.asFloatBuffer().put(values, cur, n);
+				this.buffer.position(this.buffer.position() + n * 4);
+				cur += n;
+			}
+		}
+
+		public void put(final int[] values, final int offset,
+				final int length) throws IOException {
+			this.nPut += length;
+			int cur = offset;
+			int end = offset + length;
+			while (cur < end) {
+				if (this.buffer.remaining() < 4) {
+					this.flush();
+				}
+				int n = Math.min(end - cur, this.buffer.remaining() / 4);
+				this.buffer.asIntBuffer().put(values, cur, n);
+				this.buffer.position(this.buffer.position() + n * 4);
+				cur += n;
+			}
+		}
+
+		public void put(final long[] values, final int offset,
+				final int length) throws IOException {
+			this.nPut += length;
+			int cur = offset;
+			int end = offset + length;
+			while (cur < end) {
+				if (this.buffer.remaining() < 8) {
+					this.flush();
+				}
+				int n = Math.min(end - cur, this.buffer.remaining() / 8);
+				this.buffer.asLongBuffer().put(values, cur, n);
+				this.buffer.position(this.buffer.position() + n * 8);
+				cur += n;
+			}
+		}
+	}
+
+	private interface SectionReader {
+		void read(ByteBuffer buffer, int offset, int n);
+	}
+
+	private static class Header {
+		private long length;
+		private int flags;
+	}
+
+	/**
+	 * Reads the data of a column in order, plain columns are read from
+	 * memory mapped windows and compressed columns are decompressed into a
+	 * window buffer.
+	 */
+	private static class ColumnReader implements AutoCloseable {
+
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private InputStream blocks;
+		private long length;
+		private long position;
+
+		public ColumnReader(final String fileName, final ColumnType type,
+				final String name) throws IOException {
+			this.file = new RandomAccessFile(fileName, "r");
+			this.channel = this.file.getChannel();
+			Header header = readHeader(this.channel, type, name);
+			this.length = header.length;
+			this.position = HEADER_SIZE;
+			if ((header.flags & FLAG_BLOCKS) != 0) {
+				this.channel.position(HEADER_SIZE);
+				this.blocks = new MLBlockInputStream(new BufferedInputStream(
+						Channels.newInputStream(this.channel), BUFFER_SIZE));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+			this.file.close();
+		}
+
+		public void read(final int n, final ColumnType type,
+				final SectionReader reader) throws IOException {
+			if (this.blocks == null) {
+				readSection(this.channel, this.position, n, type, reader);
+				this.position += (long) n * type.nBytes;
+				return;
+			}
+			byte[] window = new byte[(int) Math.min((long) n * type.nBytes,
+					DECODE_WINDOW_SIZE)];
+			int maxElements = window.length / type.nBytes;
+			int cur = 0;
+			while (cur < n) {
+				int nWindow = Math.min(n - cur, maxElements);
+				int nBytes = nWindow * type.nBytes;
+				int nRead = 0;
+				while (nRead < nBytes) {
+					int read = this.blocks.read(window, nRead, nBytes - nRead);
+					if (read < 0) {
+						throw new IOException("truncated column "
+								+ this.file);
+					}
+					nRead += read;
+				}
+				reader.read(ByteBuffer.wrap(window, 0, nBytes)
+						.order(ByteOrder.LITTLE_ENDIAN), cur, nWindow);
+				cur += nWindow;
+			}
+		}
+	}
+
+	private static long readLength(final String fileName, final String name)
+			throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			 FileChannel channel = file.getChannel()) {
+			return readHeader(channel, null, name).length;
+		}
+	}
+
+	private static ByteBuffer readFully(final FileChannel channel,
+			final long position, final int length, final String name)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining() == true) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("truncated column " + name);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String[] readStringColumn(final String fileName,
+			final String name) throws IOException {
+		try (ColumnReader reader = new ColumnReader(fileName,
+				ColumnType.STRING, name)) {
+			int nStrings = toArrayLength(reader.length, name);
+			int[] offsets = new int[nStrings + 1];
+			reader.read(offsets.length, ColumnType.INT,
+					(buffer, offset, n) -> buffer.asIntBuffer().get(offsets,
+							offset, n));
+			byte[] bytes = new byte[offsets[nStrings]];
+			reader.read(bytes.length, ColumnType.BYTE,
+					(buffer, offset, n) -> buffer.get(bytes, offset, n));
+			String[] values = new String[nStrings];
+			for (int i = 0; i < nStrings; i++) {
+				values[i] = new String(bytes, offsets[i],
+						offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+			}
+			return values;
+		}
+	}
+
+	private static void writeStringColumn(final String fileName,
+			final String[] values, final MLBlockCodec codec)
+			throws IOException {
+		byte[][] encoded = new byte[values.length][];
+		int[] offsets = new int[values.length + 1];
+		for (int i = 0; i < values.length; i++) {
+			encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+			if ((long) offsets[i] + encoded[i].length > Integer.MAX_VALUE) {
+				throw new IOException("string column too large " + fileName);
+			}
+			offsets[i + 1] = offsets[i] + encoded[i].length;
+		}
+		try (ColumnWriter writer = new ColumnWriter(fileName,
+				ColumnType.STRING, values.length, codec)) {
+			writer.put(offsets, 0, offsets.length);
+			for (byte[] value : encoded) {
+				writer.put(value, 0, value.length);
+			}
+		}
+	}
+
+	/**
+	 * @param type expected column type, not checked if null
+	 */
+	private static Header readHeader(final FileChannel channel,
+			final ColumnType type, final String name) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() == true) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("truncated header in column " + name);
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException("not a column file " + name);
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported column version " + version
+					+ " in " + name);
+		}
+		int typeIndex = header.getInt();
+		if (type != null && typeIndex != type.ordinal()) {
+			throw new IOException("column " + name + " has type "
+					+ ColumnType.values()[typeIndex] + " expected " + type);
+		}
+		Header result = new Header();
+		result.flags = header.getInt();
+		result.length = header.getLong();
+		return result;
+	}
+
+	private static void readSection(final FileChannel channel,
+			final long position, final int length, final ColumnType type,
+			final SectionReader reader) throws IOException {
+		int maxElements = WINDOW_SIZE / type.nBytes;
+		int cur = 0;
+		while (cur < length) {
+			int n = Math.min(length - cur, maxElements);
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					position + (long) cur * type.nBytes,
+					(long) n * type.nBytes).order(ByteOrder.LITTLE_ENDIAN);
+			reader.read(buffer, cur, n);
+			cur += n;
+		}
+	}
+
+	private static int toArrayLength(final long length, final String name)
+			throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("column " + name + " is too large for an array");
+		}
+		return (int) length;
+	}
+}
@@ -1,9 +1,13 @@
 package common.utils;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.*;
 
 public class MLConcurrentUtils {
@@ -88,8 +92,12 @@ public class MLConcurrentUtils {
 			updatePool = pool;
 		}
 
+		/**
+		 * Stops the update thread, close() doesn't wait for it so it throws
+		 * no checked exceptions.
+		 */
 		@Override
-		public void close() throws Exception {
+		public void close() {
 			if (this.updatePool != null) {
 				this.updatePool.shutdownNow();
 			}
@@ -114,4 +122,102 @@ public class MLConcurrentUtils {
 		}
 
 	}
+
+	/**
+	 * Produces chunks 0..nChunks-1 in parallel and writes them in chunk
+	 * order, so the output does not depend on thread scheduling. Worker
+	 * threads claim chunk indexes in increasing order and publish each
+	 * finished chunk into a ring of window slots, the calling thread is the
+	 * only writer and commits the slots in order. No lock is held while
+	 * producing or writing: a semaphore bounds the number of claimed but
+	 * unwritten chunks to window, and the writer parks until the next chunk
+	 * is published.
+	 */
+	public static class OrderedWriter<T> {
+
+		public interface ChunkWriter<U> {
+			void write(U chunk) throws IOException;
+		}
+
+		private int nThreads;
+		private int window;
+
+		/**
+		 * @param windowP maximum number of chunks held in memory
+		 */
+		public OrderedWriter(final int nThreadsP, final int windowP) {
+			if (nThreadsP < 1 || windowP < 1) {
+				throw new IllegalArgumentException(
+						"nThreads and window must be positive");
+			}
+			this.nThreads = nThreadsP;
+			this.window = windowP;
+		}
+
+		/**
+		 * @param producer builds chunk i, must not return null
+		 * @param writer   called on the calling thread in chunk order
+		 */
+		public void run(final int nChunks, final IntFunction<T> producer,
+				final ChunkWriter<T> writer) throws IOException {
+			final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(
+					this.window);
+			final Semaphore permits = new Semaphore(this.window);
+			final AtomicInteger next = new AtomicInteger(0);
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			final Thread ioThread = Thread.currentThread();
+
+			ExecutorService pool = Executors.newFixedThreadPool(this.nThreads);
+			try {
+				for (int t = 0; t < this.nThreads; t++) {
+					pool.submit(() -> {
+						try {
+							while (failure.get() == null) {
+								permits.acquire();
+								int chunk = next.getAndIncrement();
+								if (chunk >= nChunks) {
+									permits.release();
+									return;
+								}
+								T result = producer.apply(chunk);
+								if (result == null) {
+									throw new NullPointerException(
+											"null chunk " + chunk);
+								}
+								// chunk - window is written before a permit
+								// for chunk is available so the slot is free
+								slots.set(chunk % this.window, result);
+								LockSupport.unpark(ioThread);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+							LockSupport.unpark(ioThread);
+						}
+					});
+				}
+
+				for (int chunk = 0; chunk < nChunks; chunk++) {
+					int slot = chunk % this.window;
+					T result;
+					while ((result = slots.get(slot)) == null) {
+						if (failure.get() != null) {
+							throw new RuntimeException("failed to produce chunk",
+									failure.get());
+						}
+						LockSupport.park(this);
+						if (Thread.interrupted() == true) {
+							throw new IOException("interrupted");
+						}
+					}
+					slots.set(slot, null);
+					writer.write(result);
+					permits.release();
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
 }
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -39,6 +40,74 @@ public class MLIOUtils {
 		}
 	}
 
+	/**
+	 * Opens file for reading, files written through MLBlockOutputStream are
+	 * decompressed transparently.
+	 */
+	public static InputStream newInputStream(final String file)
+			throws IOException {
+		InputStream inputStream = new BufferedInputStream(
+				new FileInputStream(file));
+		if (MLBlockInputStream.isBlockCompressed(file) == true) {
+			return new MLBlockInputStream(inputStream);
+		}
+		return inputStream;
+	}
+
+	/**
+	 * Opens file for writing, block compressed with codec unless codec is
+	 * null.
+	 */
+	public static OutputStream newOutputStream(final String file,
+			final MLBlockCodec codec) throws IOException {
+		OutputStream outputStream = new BufferedOutputStream(
+				new FileOutputStream(file));
+		if (codec != null) {
+			return new MLBlockOutputStream(outputStream, codec);
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Decompresses a block compressed file into a plain file.
+	 */
+	public static void decompressFile(final String file,
+			final String outFile) throws IOException {
+		try (InputStream inputStream = newInputStream(file);
+			 OutputStream outputStream = newOutputStream(outFile, null)) {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = inputStream.read(buffer)) >= 0) {
+				outputStream.write(buffer, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Concatenates files in order into outFile, block compressed with codec
+	 * unless codec is null. Input files are decompressed transparently so
+	 * they can be written with any codec.
+	 */
+	public static void concatFiles(final String[] files, final String outFile,
+			final MLBlockCodec codec) throws IOException {
+		for (String file : files) {
+			if (new File(file).exists() == false) {
+				throw new IOException("file doesn't exists " + file);
+			}
+		}
+		try (OutputStream outputStream = newOutputStream(outFile, codec)) {
+			byte[] buffer = new byte[1 << 16];
+			for (String file : files) {
+				try (InputStream inputStream = newInputStream(file)) {
+					int n;
+					while ((n = inputStream.read(buffer)) >= 0) {
+						outputStream.write(buffer, 0, n);
+					}
+				}
+			}
+		}
+	}
+
 	public static <T extends Serializable> T readObjectFromFile(
 			final String file, Class<T> classType) throws Exception {
 		if ((new File(file)).exists() == false) {
@@ -47,10 +116,8 @@ public class MLIOUtils {
 
 		ObjectInputStream objectInputStream = null;
 		try {
-			BufferedInputStream fileInputStream = new BufferedInputStream(
-					new FileInputStream(file));
-
-			objectInputStream = new MLObjectInputStream(fileInputStream, classType.getClassLoader());
+			objectInputStream = new MLObjectInputStream(newInputStream(file),
+					classType.getClassLoader());
 			Object o = objectInputStream.readObject();
 
 			if (o.getClass().equals(classType) == true) {
@@ -115,6 +182,21 @@ public class MLIOUtils {
 		}
 	}
 
+	public static void writeObjectToFile(final Object object,
+			final String file, final MLBlockCodec codec) throws IOException {
+		ObjectOutputStream objectOutputStream = null;
+		try {
+			objectOutputStream = new ObjectOutputStream(
+					newOutputStream(file, codec));
+			objectOutputStream.writeObject(object);
+
+		} finally {
+			if (objectOutputStream != null) {
+				objectOutputStream.close();
+			}
+		}
+	}
+
 	public static void writeObjectToFileGZ(final Object object,
 			final String file) throws IOException {
 		ObjectOutputStream objectOutputStream = null;
@@ -0,0 +1,162 @@
+package common.utils;
+
+import java.io.Serializable;
+
+/**
+ * Open addressing int to int hash map with linear probing. Keys and values
+ * are stored in primitive arrays so lookups don't box and don't follow
+ * collision chains. Missing keys return noValue, which can't be stored as a
+ * value. Not thread safe for concurrent updates.
+ */
+public class MLIntIntMap implements Serializable {
+
+	private static final long serialVersionUID = 6286212718925574519L;
+	private static final int FREE_KEY = 0;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private int[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+	private int noValue;
+	// FREE_KEY marks empty slots so its value is stored separately
+	private int freeKeyValue;
+
+	public MLIntIntMap(final int noValueP) {
+		this(16, noValueP);
+	}
+
+	public MLIntIntMap(final int expectedSize, final int noValueP) {
+		int capacity = tableSize(expectedSize);
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+		this.noValue = noValueP;
+		this.freeKeyValue = noValueP;
+	}
+
+	public boolean containsKey(final int key) {
+		return this.get(key) != this.noValue;
+	}
+
+	public int get(final int key) {
+		if (key == FREE_KEY) {
+			return this.freeKeyValue;
+		}
+		int slot = hash(key) & this.mask;
+		while (true) {
+			int cur = this.keys[slot];
+			if (cur == key) {
+				return this.values[slot];
+			}
+			if (cur == FREE_KEY) {
+				return this.noValue;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	/**
+	 * @return keys indexed by value, only valid when values are unique
+	 *         indexes in [0, nValues)
+	 */
+	public int[] getKeysByValue(final int nValues) {
+		int[] keysByValue = new int[nValues];
+		if (this.freeKeyValue != this.noValue) {
+			keysByValue[this.freeKeyValue] = FREE_KEY;
+		}
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != FREE_KEY) {
+				keysByValue[this.values[i]] = this.keys[i];
+			}
+		}
+		return keysByValue;
+	}
+
+	public int getNoValue() {
+		return this.noValue;
+	}
+
+	/**
+	 * @return previous value or noValue
+	 */
+	public int put(final int key, final int value) {
+		if (value == this.noValue) {
+			throw new IllegalArgumentException("can't store noValue");
+		}
+		if (key == FREE_KEY) {
+			int prev = this.freeKeyValue;
+			if (prev == this.noValue) {
+				this.size++;
+			}
+			this.freeKeyValue = value;
+			return prev;
+		}
+		int slot = hash(key) & this.mask;
+		while (true) {
+			int cur = this.keys[slot];
+			if (cur == key) {
+				int prev = this.values[slot];
+				this.values[slot] = value;
+				return prev;
+			}
+			if (cur == FREE_KEY) {
+				this.keys[slot] = key;
+				this.values[slot] = value;
+				this.size++;
+				if (this.size > this.keys.length * LOAD_FACTOR) {
+					this.rehash(this.keys.length * 2);
+				}
+				return this.noValue;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void rehash(final int capacity) {
+		int[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int key = oldKeys[i];
+			if (key != FREE_KEY) {
+				int slot = hash(key) & this.mask;
+				while (this.keys[slot] != FREE_KEY) {
+					slot = (slot + 1) & this.mask;
+				}
+				this.keys[slot] = key;
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	static int hash(final int key) {
+		// murmur3 finalizer, spreads sequential ids across the table
+		int h = key;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	static int tableSize(final int expectedSize) {
+		long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+		if (needed > (1 << 30)) {
+			throw new IllegalArgumentException("too many keys " + expectedSize);
+		}
+		int capacity = Integer.highestOneBit((int) needed);
+		if (capacity < needed) {
+			capacity <<= 1;
+		}
+		return Math.max(capacity, 16);
+	}
+}
@@ -0,0 +1,202 @@
+package common.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format. Compression uses a
+ * single hash table lookup per position and skips ahead faster through
+ * data that doesn't compress, decompression is a loop of literal and match
+ * copies so it runs at memory speed. Blocks are limited to 64KB back
+ * references and are compatible with other LZ4 block decoders.
+ */
+public class MLLZ4Codec implements MLBlockCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 16;
+	private static final int SKIP_STRENGTH = 6;
+
+	// hash tables are reused by each thread
+	private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal
+			.withInitial(() -> new int[1 << HASH_LOG]);
+
+	@Override
+	public int compress(final byte[] src, final int srcOffset,
+			final int srcLength, final byte[] dst, final int dstOffset) {
+		int srcEnd = srcOffset + srcLength;
+		int dp = dstOffset;
+		int anchor = srcOffset;
+		if (srcLength > MF_LIMIT) {
+			// positions are stored + 1 so 0 marks an empty slot
+			int[] table = HASH_TABLE.get();
+			Arrays.fill(table, 0);
+			int matchLimit = srcEnd - LAST_LITERALS;
+			int mfLimit = srcEnd - MF_LIMIT;
+			int sp = srcOffset;
+			int nMisses = 0;
+			while (sp < mfLimit) {
+				int sequence = readInt(src, sp);
+				int hash = hash(sequence);
+				int ref = table[hash] - 1 + srcOffset;
+				table[hash] = sp - srcOffset + 1;
+				if (ref < srcOffset || sp - ref > MAX_DISTANCE
+						|| readInt(src, ref) != sequence) {
+					sp += 1 + (nMisses++ >>> SKIP_STRENGTH);
+					continue;
+				}
+				nMisses = 0;
+				while (sp > anchor && ref > srcOffset
+						&& src[sp - 1] == src[ref - 1]) {
+					sp--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (sp + matchLength < matchLimit
+						&& src[sp + matchLength] == src[ref + matchLength]) {
+					matchLength++;
+				}
+				int tokenPosition = dp;
+				dp = writeSequence(src, anchor, sp - anchor, dst, dp);
+				dst[dp++] = (byte) (sp - ref);
+				dst[dp++] = (byte) ((sp - ref) >>> 8);
+				int extra = matchLength - MIN_MATCH;
+				if (extra >= 15) {
+					dst[tokenPosition] |= 15;
+					dp = writeLength(extra - 15, dst, dp);
+				} else {
+					dst[tokenPosition] |= extra;
+				}
+				sp += matchLength;
+				anchor = sp;
+			}
+		}
+		// last sequence only has literals
+		dp = writeSequence(src, anchor, srcEnd - anchor, dst, dp);
+		return dp - dstOffset;
+	}
+
+	@Override
+	public void decompress(final byte[] src, final int srcOffset,
+			final int srcLength, final byte[] dst, final int dstOffset,
+			final int dstLength) throws IOException {
+		int sp = srcOffset;
+		int srcEnd = srcOffset + srcLength;
+		int dp = dstOffset;
+		int dstEnd = dstOffset + dstLength;
+		while (true) {
+			if (sp >= srcEnd) {
+				throw new IOException("corrupt block");
+			}
+			int token = src[sp++] & 0xFF;
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw new IOException("corrupt block");
+					}
+					b = src[sp++] & 0xFF;
+					literalLength += b;
+				} while (b == 255);
+			}
+			if (literalLength > srcEnd - sp || literalLength > dstEnd - dp) {
+				throw new IOException("corrupt block");
+			}
+			System.arraycopy(src, sp, dst, dp, literalLength);
+			sp += literalLength;
+			dp += literalLength;
+			if (sp == srcEnd) {
+				break;
+			}
+
+			if (srcEnd - sp < 2) {
+				throw new IOException("corrupt block");
+			}
+			int offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+			sp += 2;
+			if (offset == 0 || offset > dp - dstOffset) {
+				throw new IOException("corrupt block");
+			}
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw new IOException("corrupt block");
+					}
+					b = src[sp++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > dstEnd - dp) {
+				throw new IOException("corrupt block");
+			}
+			int ref = dp - offset;
+			if (offset >= matchLength) {
+				System.arraycopy(dst, ref, dst, dp, matchLength);
+				dp += matchLength;
+			} else {
+				// overlapping match repeats the last offset bytes
+				for (int i = 0; i < matchLength; i++) {
+					dst[dp++] = dst[ref++];
+				}
+			}
+		}
+		if (dp != dstEnd) {
+			throw new IOException("corrupt block");
+		}
+	}
+
+	@Override
+	public int getId() {
+		return 1;
+	}
+
+	@Override
+	public int maxCompressedLength(final int length) {
+		return length + length / 255 + 16;
+	}
+
+	private static int hash(final int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	private static int readInt(final byte[] src, final int position) {
+		return (src[position] & 0xFF) | ((src[position + 1] & 0xFF) << 8)
+				| ((src[position + 2] & 0xFF) << 16)
+				| ((src[position + 3] & 0xFF) << 24);
+	}
+
+	private static int writeLength(final int length, final byte[] dst,
+			final int position) {
+		int dp = position;
+		int remaining = length;
+		while (remaining >= 255) {
+			dst[dp++] = (byte) 255;
+			remaining -= 255;
+		}
+		dst[dp++] = (byte) remaining;
+		return dp;
+	}
+
+	/**
+	 * Writes token with literal length and the literals, match length is
+	 * added to the token by the caller.
+	 */
+	private static int writeSequence(final byte[] src, final int from,
+			final int literalLength, final byte[] dst, final int position) {
+		int dp = position;
+		if (literalLength >= 15) {
+			dst[dp++] = (byte) (15 << 4);
+			dp = writeLength(literalLength - 15, dst, dp);
+		} else {
+			dst[dp++] = (byte) (literalLength << 4);
+		}
+		System.arraycopy(src, from, dst, dp, literalLength);
+		return dp + literalLength;
+	}
+}
@@ -0,0 +1,386 @@
+package common.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Byte level CSV reader over a memory mapped file. Rows are tokenized in a
+ * single pass that records field boundaries, and numeric fields are parsed
+ * directly from the mapped bytes so no per row objects are created unless a
+ * field is explicitly materialized with getString().
+ * <p>
+ * Quote handling matches splitWithQuotes() in the data parsers: commas inside
+ * double quotes are not field separators, quotes are kept in the field, and
+ * getString() replaces quoted commas with spaces.
+ * <p>
+ * Files larger than 2GB are read through a sliding window of mappings, a row
+ * that crosses the end of the current window is re-read from a new window
+ * that starts at the beginning of that row.
+ */
+public class MLMappedCSVReader implements AutoCloseable {
+
+	private static final int WINDOW_SIZE = 1 << 28;
+	private static final int MAX_FIELDS = 64;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long start;
+	private long end;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int windowLimit;
+
+	private long rowStart;
+	private int rowPos;
+	private long nextRowStart;
+	private int nFields;
+	private int[] fieldStarts;
+	private int[] fieldEnds;
+	private boolean[] fieldQuoted;
+	private byte[] bytes;
+	private int[] ints;
+
+	public MLMappedCSVReader(final String fileP) throws IOException {
+		this(fileP, 0, -1);
+	}
+
+	/**
+	 * Reads rows in the byte range [startP, endP) of the file, startP must be
+	 * the first byte of a row. Pass endP < 0 to read to the end of the file.
+	 */
+	public MLMappedCSVReader(final String fileP, final long startP,
+			final long endP) throws IOException {
+		this.file = new RandomAccessFile(fileP, "r");
+		this.channel = this.file.getChannel();
+		this.start = startP;
+		this.end = endP < 0 ? this.channel.size() : endP;
+		this.nextRowStart = this.start;
+		this.fieldStarts = new int[MAX_FIELDS];
+		this.fieldEnds = new int[MAX_FIELDS];
+		this.fieldQuoted = new boolean[MAX_FIELDS];
+		this.bytes = new byte[256];
+		this.ints = new int[32];
+		this.mapWindow(this.start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.window = null;
+		this.channel.close();
+		this.file.close();
+	}
+
+	/**
+	 * Advances to the next row, returns false once the end of the range is
+	 * reached. Line terminators are '\n' or "\r\n".
+	 */
+	public boolean nextRow() throws IOException {
+		if (this.nextRowStart >= this.end) {
+			return false;
+		}
+		if (this.tokenize() == false) {
+			// row crosses the end of the window so remap from its start
+			this.mapWindow(this.nextRowStart);
+			if (this.tokenize() == false) {
+				throw new IOException("row at " + this.nextRowStart
+						+ " is longer than the mapping window");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the remaining rows in the range without tokenizing them, this
+	 * exhausts the reader.
+	 */
+	public int countRows() throws IOException {
+		int count = 0;
+		byte last = '\n';
+		long position = this.nextRowStart;
+		while (position < this.end) {
+			this.mapWindow(position);
+			for (int i = 0; i < this.windowLimit; i++) {
+				last = this.window.get(i);
+				if (last == '\n') {
+					count++;
+				}
+			}
+			position += this.windowLimit;
+		}
+		if (last != '\n') {
+			// last row without a line terminator
+			count++;
+		}
+		this.nextRowStart = this.end;
+		return count;
+	}
+
+	private boolean tokenize() {
+		int pos = (int) (this.nextRowStart - this.windowStart);
+		int limit = this.windowLimit;
+		boolean atEnd = this.windowStart + limit >= this.end;
+		int rowEnd = -1;
+		int n = 0;
+		boolean inQuotes = false;
+		boolean quoted = false;
+		this.fieldStarts[0] = pos;
+		for (int i = pos; i < limit; i++) {
+			byte b = this.window.get(i);
+			if (b == '\n') {
+				rowEnd = i;
+				break;
+			} else if (b == '"') {
+				inQuotes = !inQuotes;
+				quoted = true;
+			} else if (b == ',' && inQuotes == false) {
+				this.fieldEnds[n] = i;
+				this.fieldQuoted[n] = quoted;
+				n++;
+				if (n == this.fieldStarts.length) {
+					this.growFields();
+				}
+				this.fieldStarts[n] = i + 1;
+				quoted = false;
+			}
+		}
+		long next;
+		if (rowEnd < 0) {
+			if (atEnd == false) {
+				return false;
+			}
+			// last row without a line terminator
+			rowEnd = limit;
+			next = this.windowStart + limit;
+		} else {
+			next = this.windowStart + rowEnd + 1;
+		}
+		if (rowEnd > pos && this.window.get(rowEnd - 1) == '\r') {
+			rowEnd--;
+		}
+		this.fieldEnds[n] = Math.max(rowEnd, this.fieldStarts[n]);
+		this.fieldQuoted[n] = quoted;
+		this.nFields = n + 1;
+		this.rowStart = this.nextRowStart;
+		this.rowPos = pos;
+		this.nextRowStart = next;
+		return true;
+	}
+
+	private void growFields() {
+		int size = this.fieldStarts.length * 2;
+		this.fieldStarts = Arrays.copyOf(this.fieldStarts, size);
+		this.fieldEnds = Arrays.copyOf(this.fieldEnds, size);
+		this.fieldQuoted = Arrays.copyOf(this.fieldQuoted, size);
+	}
+
+	private void mapWindow(final long position) throws IOException {
+		long size = Math.min(WINDOW_SIZE, this.end - position);
+		this.window = this.channel.map(FileChannel.MapMode.READ_ONLY,
+				position, Math.max(size, 0));
+		this.windowStart = position;
+		this.windowLimit = (int) Math.max(size, 0);
+	}
+
+	public int getNFields() {
+		return this.nFields;
+	}
+
+	/**
+	 * @return file offset of the first byte of the current row
+	 */
+	public long getRowStart() {
+		return this.rowStart;
+	}
+
+	/**
+	 * @return file offset of the first byte after the current row
+	 */
+	public long getRowEnd() {
+		return this.nextRowStart;
+	}
+
+	public int getFieldLength(final int field) {
+		return this.fieldEnds[field] - this.fieldStarts[field];
+	}
+
+	public boolean isEmpty(final int field) {
+		return this.fieldEnds[field] == this.fieldStarts[field];
+	}
+
+	public boolean fieldEquals(final int field, final byte[] value) {
+		int from = this.fieldStarts[field];
+		if (this.fieldEnds[field] - from != value.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if (this.window.get(from + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getString(final int field) {
+		return this.decode(this.fieldStarts[field], this.fieldEnds[field],
+				this.fieldQuoted[field]);
+	}
+
+	/**
+	 * Splits field on separator and materializes each token, trailing empty
+	 * tokens are removed to match String.split().
+	 */
+	public String[] getStrings(final int field, final byte separator) {
+		if (this.fieldQuoted[field] == true) {
+			return this.getString(field).split(
+					Pattern.quote(String.valueOf((char) separator)));
+		}
+		int from = this.fieldStarts[field];
+		int last = this.trimTrailing(from, this.fieldEnds[field], separator);
+		if (last == from) {
+			return from == this.fieldEnds[field] ? new String[]{""}
+					: new String[0];
+		}
+		int count = 1;
+		for (int i = from; i < last; i++) {
+			if (this.window.get(i) == separator) {
+				count++;
+			}
+		}
+		String[] tokens = new String[count];
+		int cur = 0;
+		int tokenStart = from;
+		for (int i = from; i <= last; i++) {
+			if (i == last || this.window.get(i) == separator) {
+				tokens[cur] = this.decode(tokenStart, i, false);
+				cur++;
+				tokenStart = i + 1;
+			}
+		}
+		return tokens;
+	}
+
+	public int getInt(final int field) {
+		return this.parseInt(this.fieldStarts[field], this.fieldEnds[field]);
+	}
+
+	public long getLong(final int field) {
+		return this.parseLong(this.fieldStarts[field], this.fieldEnds[field]);
+	}
+
+	/**
+	 * Parses separator delimited integers into an internal buffer that is
+	 * reused across calls, use getInts() to read the parsed values.
+	 *
+	 * @return number of integers parsed
+	 */
+	public int parseInts(final int field, final byte separator) {
+		int from = this.fieldStarts[field];
+		int last = this.trimTrailing(from, this.fieldEnds[field], separator);
+		if (last == from) {
+			return 0;
+		}
+		int count = 0;
+		int tokenStart = from;
+		for (int i = from; i <= last; i++) {
+			if (i == last || this.window.get(i) == separator) {
+				if (count == this.ints.length) {
+					this.ints = Arrays.copyOf(this.ints, count * 2);
+				}
+				this.ints[count] = this.parseInt(tokenStart, i);
+				count++;
+				tokenStart = i + 1;
+			}
+		}
+		return count;
+	}
+
+	public int[] getInts() {
+		return this.ints;
+	}
+
+	private int trimTrailing(final int from, final int to, final byte separator) {
+		int last = to;
+		while (last > from && this.window.get(last - 1) == separator) {
+			last--;
+		}
+		return last;
+	}
+
+	/**
+	 * @return the current row as a string, used for error reporting
+	 */
+	public String getLine() {
+		int to = this.fieldEnds[this.nFields - 1];
+		return this.decode(this.rowPos, to, false);
+	}
+
+	private long parseLong(final int from, final int to) {
+		if (from == to) {
+			throw new NumberFormatException("empty field");
+		}
+		int i = from;
+		boolean negative = false;
+		byte first = this.window.get(i);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+			if (i == to) {
+				throw new NumberFormatException(this.decode(from, to, false));
+			}
+		}
+		// accumulate negatively like Long.parseLong() so that MIN_VALUE
+		// can be parsed and overflow is detected before it happens
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multLimit = limit / 10;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = this.window.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(this.decode(from, to, false));
+			}
+			if (value < multLimit) {
+				throw new NumberFormatException(this.decode(from, to, false));
+			}
+			value *= 10;
+			if (value < limit + digit) {
+				throw new NumberFormatException(this.decode(from, to, false));
+			}
+			value -= digit;
+		}
+		return negative ? value : -value;
+	}
+
+	private int parseInt(final int from, final int to) {
+		long value = this.parseLong(from, to);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException(this.decode(from, to, false));
+		}
+		return (int) value;
+	}
+
+	private String decode(final int from, final int to, final boolean quoted) {
+		int length = to - from;
+		if (this.bytes.length < length) {
+			this.bytes = new byte[length * 2];
+		}
+		boolean inQuotes = false;
+		for (int i = 0; i < length; i++) {
+			byte b = this.window.get(from + i);
+			if (quoted == true) {
+				if (b == '"') {
+					inQuotes = !inQuotes;
+				} else if (b == ',' && inQuotes == true) {
+					b = ' ';
+				}
+			}
+			this.bytes[i] = b;
+		}
+		return new String(this.bytes, 0, length, StandardCharsets.UTF_8);
+	}
+}
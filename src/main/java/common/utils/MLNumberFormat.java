@@ -0,0 +1,89 @@
+package common.utils;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Fixed precision float formatting that appends to a StringBuilder, gives
+ * the same text as String.format("%.<precision>f", value) without parsing a
+ * format string and creating a Formatter for every value.
+ * <p>
+ * A float is m * 2^e with a 24 bit m, so |value| * 10^precision is rounded
+ * half up with exact long arithmetic. Formatter rounds half up the decimal
+ * digits of the value widened to double, both agree for every float since
+ * a float that is not a tie is further from a tie than the double digits
+ * are from the float. Values of 2^40 and above, which Formatter prints with
+ * fewer significant digits than the exact value, NaN, infinities and
+ * locales that don't format with '.' and ASCII digits fall back to
+ * String.format.
+ */
+public class MLNumberFormat {
+
+	public static final int MAX_PRECISION = 9;
+	private static final int MAX_EXPONENT = 127 + 40;
+	private static final long[] POW10 = { 1L, 10L, 100L, 1_000L, 10_000L,
+			100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L };
+	private static final boolean ASCII_LOCALE;
+
+	static {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols
+				.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		ASCII_LOCALE = symbols.getDecimalSeparator() == '.'
+				&& symbols.getZeroDigit() == '0';
+	}
+
+	/**
+	 * Appends value with precision digits after the decimal point.
+	 */
+	public static void appendFixed(final StringBuilder builder,
+			final float value, final int precision) {
+		if (precision < 0 || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException(
+					"precision must be in [0, " + MAX_PRECISION + "]");
+		}
+		int bits = Float.floatToRawIntBits(value);
+		int exponent = (bits >>> 23) & 0xff;
+		if (exponent >= MAX_EXPONENT || ASCII_LOCALE == false) {
+			builder.append(String.format("%." + precision + "f", value));
+			return;
+		}
+
+		long mantissa = bits & 0x7fffff;
+		int shift;
+		if (exponent == 0) {
+			// subnormal
+			shift = 149;
+		} else {
+			mantissa |= 0x800000;
+			shift = 150 - exponent;
+		}
+		long integer;
+		long fraction;
+		if (shift <= 0) {
+			integer = mantissa << -shift;
+			fraction = 0;
+		} else {
+			// mantissa * 10^precision < 2^54, a shift of 63 or more always
+			// rounds to 0
+			long scaled = 0;
+			if (shift < 63) {
+				long n = mantissa * POW10[precision];
+				scaled = (n + (1L << (shift - 1))) >>> shift;
+			}
+			integer = scaled / POW10[precision];
+			fraction = scaled % POW10[precision];
+		}
+
+		if (bits < 0) {
+			builder.append('-');
+		}
+		builder.append(integer);
+		if (precision > 0) {
+			builder.append('.');
+			for (int i = precision - 1; i > 0 && POW10[i] > fraction; i--) {
+				builder.append('0');
+			}
+			builder.append(fraction);
+		}
+	}
+}
@@ -47,6 +47,20 @@ public class MLRandomUtils {
 		}
 	}
 
+	public static void shuffle(int[] array, int startInclusive,
+			int endExclusive, final Random rng) {
+		final int len = endExclusive - startInclusive;
+
+		for (int j = len - 1; j > 0; j--) {
+			int index = rng.nextInt(j + 1) + startInclusive;
+			int i = j + startInclusive;
+			// swap
+			int element = array[index];
+			array[index] = array[i];
+			array[i] = element;
+		}
+	}
+
 	public static void shuffle(Object[] array, int startInclusive,
 			int endExclusive, final Random rng) {
 		final int len = endExclusive - startInclusive;
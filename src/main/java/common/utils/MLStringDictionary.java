@@ -0,0 +1,163 @@
+package common.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Interns strings into int indexes. New strings get the next index after
+ * the largest index in the dictionary so strings added with add() are
+ * indexed in insertion order. Strings are kept in an array by index and
+ * the open addressing table only stores indexes, with hashes cached per
+ * index so the table can grow without rehashing strings. Not thread safe
+ * for concurrent updates.
+ */
+public class MLStringDictionary implements Serializable {
+
+	private static final long serialVersionUID = -5185263017391794422L;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private String[] strings;
+	private int[] hashes;
+	// index + 1 for each slot, 0 marks empty slots
+	private int[] table;
+	private int mask;
+	private int size;
+	private int maxIndex;
+
+	public MLStringDictionary() {
+		this(16);
+	}
+
+	public MLStringDictionary(final int expectedSize) {
+		int capacity = MLIntIntMap.tableSize(expectedSize);
+		this.strings = new String[Math.max(expectedSize, 16)];
+		this.hashes = new int[this.strings.length];
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+		this.maxIndex = -1;
+	}
+
+	public MLStringDictionary(final String[] stringsP) {
+		this(stringsP.length);
+		for (int i = 0; i < stringsP.length; i++) {
+			this.put(stringsP[i], i);
+		}
+	}
+
+	/**
+	 * @return index of the string, a new string is added with index
+	 *         getMaxIndex() + 1
+	 */
+	public int add(final String string) {
+		int hash = hash(string);
+		int slot = this.find(string, hash);
+		if (this.table[slot] != 0) {
+			return this.table[slot] - 1;
+		}
+		int index = this.maxIndex + 1;
+		this.insert(slot, string, hash, index);
+		return index;
+	}
+
+	/**
+	 * @return index of the string or -1 if not found
+	 */
+	public int get(final String string) {
+		return this.table[this.find(string, hash(string))] - 1;
+	}
+
+	/**
+	 * @return largest index in the dictionary or -1 if empty
+	 */
+	public int getMaxIndex() {
+		return this.maxIndex;
+	}
+
+	/**
+	 * @return string with this index or null
+	 */
+	public String getString(final int index) {
+		if (index < 0 || index > this.maxIndex) {
+			return null;
+		}
+		return this.strings[index];
+	}
+
+	/**
+	 * Adds string with a given index, both must not be in the dictionary.
+	 */
+	public void put(final String string, final int index) {
+		if (index < 0) {
+			throw new IllegalArgumentException("negative index " + index);
+		}
+		if (this.getString(index) != null) {
+			throw new IllegalArgumentException("index " + index + " already used");
+		}
+		int hash = hash(string);
+		int slot = this.find(string, hash);
+		if (this.table[slot] != 0) {
+			throw new IllegalArgumentException(string + " already added");
+		}
+		this.insert(slot, string, hash, index);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private int find(final String string, final int hash) {
+		int slot = hash & this.mask;
+		while (true) {
+			int cur = this.table[slot];
+			if (cur == 0) {
+				return slot;
+			}
+			if (this.hashes[cur - 1] == hash && string.equals(this.strings[cur - 1]) == true) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	private void insert(final int slot, final String string, final int hash,
+			final int index) {
+		if (index >= this.strings.length) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(index + 1L, this.strings.length * 2L));
+			this.strings = Arrays.copyOf(this.strings, capacity);
+			this.hashes = Arrays.copyOf(this.hashes, capacity);
+		}
+		this.strings[index] = string;
+		this.hashes[index] = hash;
+		this.table[slot] = index + 1;
+		this.size++;
+		if (this.maxIndex < index) {
+			this.maxIndex = index;
+		}
+		if (this.size > this.table.length * LOAD_FACTOR) {
+			this.rehash(this.table.length * 2);
+		}
+	}
+
+	private void rehash(final int capacity) {
+		int[] oldTable = this.table;
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < oldTable.length; i++) {
+			int cur = oldTable[i];
+			if (cur != 0) {
+				int slot = this.hashes[cur - 1] & this.mask;
+				while (this.table[slot] != 0) {
+					slot = (slot + 1) & this.mask;
+				}
+				this.table[slot] = cur;
+			}
+		}
+	}
+
+	private static int hash(final String string) {
+		// String caches hashCode(), mix it since the table is a power of 2
+		return MLIntIntMap.hash(string.hashCode());
+	}
+}
@@ -0,0 +1,332 @@
+package common.xgb;
+
+import common.utils.MLBlockCodec;
+import common.utils.MLColumnStore;
+import common.utils.MLColumnStore.ColumnType;
+import common.utils.MLColumnStore.ColumnWriter;
+import ml.dmlc.xgboost4j.java.DMatrix;
+import ml.dmlc.xgboost4j.java.XGBoostError;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Binary feature matrix for XGBoost stored as MLColumnStore columns in
+ * place of a LIBSVM text file. Rows are kept in CSR layout (offsets,
+ * indexes and values columns) with label and group sidecar columns, values
+ * are stored as float32 so nothing is lost to text formatting. load()
+ * builds the DMatrix directly from the columns with the native CSR
+ * constructor, so no text is formatted when writing or parsed when
+ * loading.
+ * <p>
+ * Rows are streamed with a Writer: addRow() for every row of a group
+ * followed by endGroup(). The native constructor takes Java arrays so a
+ * store is limited to 2^31 - 1 non-zero values.
+ */
+public class MLDMatrixStore {
+
+	private static final String META = "meta";
+	private static final String OFFSETS = "offsets";
+	private static final String INDEXES = "indexes";
+	private static final String VALUES = "values";
+	private static final String LABELS = "labels";
+	private static final String GROUPS = "groups";
+
+	public static class Writer implements AutoCloseable {
+
+		private MLColumnStore store;
+		private int nCols;
+		private ColumnWriter offsets;
+		private ColumnWriter indexes;
+		private ColumnWriter values;
+		private ColumnWriter labels;
+		private ColumnWriter groups;
+		private long nnz;
+		private int nRows;
+		private int groupSize;
+		private long[] offset;
+		private float[] label;
+		private int[] group;
+
+		/**
+		 * @param codec block compression codec or null for plain columns
+		 */
+		public Writer(final String path, final int nColsP,
+				final MLBlockCodec codec) throws IOException {
+			this.store = MLColumnStore.create(path);
+			this.store.setCodec(codec);
+			// a previous store at path is incomplete until close()
+			new File(this.store.getFile(META)).delete();
+			this.nCols = nColsP;
+			this.offsets = this.open(OFFSETS, ColumnType.LONG);
+			this.indexes = this.open(INDEXES, ColumnType.INT);
+			this.values = this.open(VALUES, ColumnType.FLOAT);
+			this.labels = this.open(LABELS, ColumnType.FLOAT);
+			this.groups = this.open(GROUPS, ColumnType.INT);
+			this.offset = new long[]{0};
+			this.label = new float[1];
+			this.group = new int[1];
+			this.offsets.put(this.offset, 0, 1);
+		}
+
+		private ColumnWriter open(final String name, final ColumnType type)
+				throws IOException {
+			// start with an empty column and append, the length is set on
+			// close
+			String file = this.store.getFile(name);
+			new ColumnWriter(file, type, 0, this.store.getCodec()).close();
+			return new ColumnWriter(file, type);
+		}
+
+		/**
+		 * Adds row with non-zero values indexes[start, end) and
+		 * values[start, end).
+		 */
+		public void addRow(final int[] rowIndexes, final float[] rowValues,
+				final int start, final int end, final float rowLabel)
+				throws IOException {
+			this.indexes.put(rowIndexes, start, end - start);
+			this.values.put(rowValues, start, end - start);
+			this.nnz += end - start;
+			if (this.nnz > Integer.MAX_VALUE) {
+				throw new IOException("too many non-zero values");
+			}
+			this.offset[0] = this.nnz;
+			this.offsets.put(this.offset, 0, 1);
+			this.label[0] = rowLabel;
+			this.labels.put(this.label, 0, 1);
+			this.nRows++;
+			this.groupSize++;
+		}
+
+		/**
+		 * Ends the group of rows added since the previous endGroup().
+		 */
+		public void endGroup() throws IOException {
+			this.group[0] = this.groupSize;
+			this.groups.put(this.group, 0, 1);
+			this.groupSize = 0;
+		}
+
+		/**
+		 * Appends all rows and groups of buffer.
+		 */
+		public void write(final Buffer buffer) throws IOException {
+			int groupStart = 0;
+			for (int g = 0; g < buffer.nGroups; g++) {
+				int groupEnd = groupStart + buffer.groups[g];
+				for (int row = groupStart; row < groupEnd; row++) {
+					this.addRow(buffer.indexes, buffer.values,
+							buffer.offsets[row], buffer.offsets[row + 1],
+							buffer.labels[row]);
+				}
+				this.endGroup();
+				groupStart = groupEnd;
+			}
+		}
+
+		public int getNRows() {
+			return this.nRows;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.offsets.close();
+			this.indexes.close();
+			this.values.close();
+			this.labels.close();
+			this.groups.close();
+			// meta is written last, a store without it is incomplete
+			this.store.writeInts(META, new int[]{this.nRows, this.nCols});
+		}
+	}
+
+	/**
+	 * In memory rows and groups with the same addRow()/endGroup() API as
+	 * Writer, used to build a chunk of rows off the writing thread and add
+	 * it with Writer.write(), or to build a DMatrix without writing a store.
+	 * Only complete groups are written and added.
+	 */
+	public static class Buffer {
+
+		private int[] offsets;
+		private int[] indexes;
+		private float[] values;
+		private float[] labels;
+		private int[] groups;
+		private int nRows;
+		private int nGroups;
+		private int groupSize;
+
+		public Buffer() {
+			this.offsets = new int[16];
+			this.indexes = new int[256];
+			this.values = new float[256];
+			this.labels = new float[16];
+			this.groups = new int[4];
+		}
+
+		public void addRow(final int[] rowIndexes, final float[] rowValues,
+				final int start, final int end, final float rowLabel) {
+			int nnz = this.offsets[this.nRows];
+			int length = end - start;
+			if ((long) nnz + length > Integer.MAX_VALUE) {
+				throw new IllegalStateException("too many non-zero values");
+			}
+			if (nnz + length > this.indexes.length) {
+				int capacity = Math.max(nnz + length, this.indexes.length * 2);
+				this.indexes = Arrays.copyOf(this.indexes, capacity);
+				this.values = Arrays.copyOf(this.values, capacity);
+			}
+			if (this.nRows + 2 > this.offsets.length) {
+				this.offsets = Arrays.copyOf(this.offsets,
+						this.offsets.length * 2);
+				this.labels = Arrays.copyOf(this.labels, this.labels.length * 2);
+			}
+			System.arraycopy(rowIndexes, start, this.indexes, nnz, length);
+			System.arraycopy(rowValues, start, this.values, nnz, length);
+			this.labels[this.nRows] = rowLabel;
+			this.nRows++;
+			this.offsets[this.nRows] = nnz + length;
+			this.groupSize++;
+		}
+
+		public void endGroup() {
+			if (this.nGroups == this.groups.length) {
+				this.groups = Arrays.copyOf(this.groups, this.groups.length * 2);
+			}
+			this.groups[this.nGroups] = this.groupSize;
+			this.nGroups++;
+			this.groupSize = 0;
+		}
+
+		/**
+		 * Appends all complete groups of buffer.
+		 */
+		public void addAll(final Buffer buffer) {
+			int groupStart = 0;
+			for (int g = 0; g < buffer.nGroups; g++) {
+				int groupEnd = groupStart + buffer.groups[g];
+				for (int row = groupStart; row < groupEnd; row++) {
+					this.addRow(buffer.indexes, buffer.values,
+							buffer.offsets[row], buffer.offsets[row + 1],
+							buffer.labels[row]);
+				}
+				this.endGroup();
+				groupStart = groupEnd;
+			}
+		}
+
+		/**
+		 * Builds DMatrix with labels and groups from the buffered rows, the
+		 * last group must be ended.
+		 */
+		public DMatrix toDMatrix(final int nCols) throws XGBoostError {
+			if (this.groupSize != 0) {
+				throw new IllegalStateException("last group is not ended");
+			}
+			int nnz = this.offsets[this.nRows];
+			long[] rowIndex = new long[this.nRows + 1];
+			for (int i = 0; i <= this.nRows; i++) {
+				rowIndex[i] = this.offsets[i];
+			}
+			DMatrix matrix = new DMatrix(rowIndex,
+					Arrays.copyOf(this.indexes, nnz),
+					Arrays.copyOf(this.values, nnz), DMatrix.SparseType.CSR,
+					nCols);
+			matrix.setLabel(Arrays.copyOf(this.labels, this.nRows));
+			if (this.nGroups > 0) {
+				matrix.setGroup(Arrays.copyOf(this.groups, this.nGroups));
+			}
+			return matrix;
+		}
+
+		public int getNRows() {
+			return this.nRows;
+		}
+	}
+
+	/**
+	 * @return true if path is a store written by Writer
+	 */
+	public static boolean exists(final String path) {
+		MLColumnStore store = new MLColumnStore(path);
+		return store.exists() == true && store.hasColumn(META) == true;
+	}
+
+	/**
+	 * Concatenates the rows and groups of stores in order into a new store
+	 * at path, stores must have the same number of columns.
+	 */
+	public static void concat(final String[] paths, final String path,
+			final MLBlockCodec codec) throws IOException {
+		int nCols = -1;
+		for (String shardPath : paths) {
+			if (exists(shardPath) == false) {
+				throw new IOException("incomplete feature matrix " + shardPath);
+			}
+			int shardCols = new MLColumnStore(shardPath).readInts(META)[1];
+			if (nCols >= 0 && shardCols != nCols) {
+				throw new IOException("expected " + nCols + " columns in "
+						+ shardPath + " found " + shardCols);
+			}
+			nCols = shardCols;
+		}
+		try (Writer writer = new Writer(path, Math.max(nCols, 0), codec)) {
+			for (String shardPath : paths) {
+				MLColumnStore store = new MLColumnStore(shardPath);
+				int[] meta = store.readInts(META);
+				long[] offsets = store.readLongs(OFFSETS);
+				int[] indexes = store.readInts(INDEXES);
+				float[] values = store.readFloats(VALUES);
+				float[] labels = store.readFloats(LABELS);
+				int[] groups = store.readInts(GROUPS);
+				check(shardPath, meta, offsets, indexes, values, labels, groups);
+				int row = 0;
+				for (int group : groups) {
+					for (int i = 0; i < group; i++, row++) {
+						writer.addRow(indexes, values, (int) offsets[row],
+								(int) offsets[row + 1], labels[row]);
+					}
+					writer.endGroup();
+				}
+			}
+		}
+	}
+
+	public static DMatrix load(final String path) throws Exception {
+		MLColumnStore store = new MLColumnStore(path);
+		if (store.hasColumn(META) == false) {
+			throw new IOException("incomplete feature matrix " + path);
+		}
+		int[] meta = store.readInts(META);
+		long[] offsets = store.readLongs(OFFSETS);
+		int[] indexes = store.readInts(INDEXES);
+		float[] values = store.readFloats(VALUES);
+		float[] labels = store.readFloats(LABELS);
+		int[] groups = store.readInts(GROUPS);
+		check(path, meta, offsets, indexes, values, labels, groups);
+		DMatrix matrix = new DMatrix(offsets, indexes, values,
+				DMatrix.SparseType.CSR, meta[1]);
+		matrix.setLabel(labels);
+		if (groups.length > 0) {
+			matrix.setGroup(groups);
+		}
+		return matrix;
+	}
+
+	private static void check(final String path, final int[] meta,
+			final long[] offsets, final int[] indexes, final float[] values,
+			final float[] labels, final int[] groups) throws IOException {
+		long groupRows = 0;
+		for (int group : groups) {
+			groupRows += group;
+		}
+		if (offsets.length != meta[0] + 1 || labels.length != meta[0]
+				|| indexes.length != offsets[meta[0]]
+				|| values.length != offsets[meta[0]]
+				|| (groups.length > 0 && groupRows != meta[0])) {
+			throw new IOException("inconsistent columns in " + path);
+		}
+	}
+}
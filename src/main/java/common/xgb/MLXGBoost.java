@@ -2,11 +2,19 @@ package common.xgb;
 
 import common.linalg.MLSparseMatrix;
 import common.linalg.MLSparseVector;
+import common.utils.MLBlockInputStream;
 import common.utils.MLConcurrentUtils.Async;
+import common.utils.MLIOUtils;
+import common.utils.MLNumberFormat;
 import ml.dmlc.xgboost4j.LabeledPoint;
 import ml.dmlc.xgboost4j.java.*;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 
 public final class MLXGBoost {
@@ -120,6 +128,143 @@ public final class MLXGBoost {
 		return importances;
 	}
 
+	/**
+	 * Loads a LIBSVM file or an MLDMatrixStore directory into DMatrix. The
+	 * native LIBSVM loader only reads plain files so block compressed files
+	 * are parsed from the decompressed stream into CSR arrays, together with
+	 * the plain .gr group file.
+	 */
+	public static DMatrix loadDMatrix(final String file) throws Exception {
+		if (MLDMatrixStore.exists(file) == true) {
+			return MLDMatrixStore.load(file);
+		}
+		if (MLBlockInputStream.isBlockCompressed(file) == false) {
+			return new DMatrix(file);
+		}
+		return loadLIBSVM(file);
+	}
+
+	/**
+	 * Parses a LIBSVM file with 0 based feature indexes the same way as the
+	 * native loader: the number of columns is the largest index + 1, values
+	 * are parsed like the native parser and labels and groups are set from
+	 * the file and its .gr file, so the DMatrix and trained models are the
+	 * same as for the plain file.
+	 */
+	private static DMatrix loadLIBSVM(final String file) throws Exception {
+		int nRows = 0;
+		int nnz = 0;
+		int nCols = 0;
+		long[] rowIndex = new long[1024];
+		float[] labels = new float[1024];
+		int[] indexes = new int[1 << 16];
+		float[] values = new float[1 << 16];
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				MLIOUtils.newInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int end = line.length();
+				int pos = 0;
+				while (pos < end && line.charAt(pos) == ' ') {
+					pos++;
+				}
+				if (pos == end) {
+					continue;
+				}
+				if (nRows + 2 > rowIndex.length) {
+					rowIndex = Arrays.copyOf(rowIndex, rowIndex.length * 2);
+					labels = Arrays.copyOf(labels, labels.length * 2);
+				}
+				int tokenEnd = line.indexOf(' ', pos);
+				if (tokenEnd < 0) {
+					tokenEnd = end;
+				}
+				labels[nRows] = parseFloat(line, pos, tokenEnd);
+				pos = tokenEnd;
+				while (pos < end) {
+					if (line.charAt(pos) == ' ') {
+						pos++;
+						continue;
+					}
+					int colon = line.indexOf(':', pos);
+					tokenEnd = line.indexOf(' ', pos);
+					if (tokenEnd < 0) {
+						tokenEnd = end;
+					}
+					if (colon < 0 || colon > tokenEnd) {
+						throw new IOException("invalid entry in " + file
+								+ " row " + nRows);
+					}
+					if (nnz == indexes.length) {
+						indexes = Arrays.copyOf(indexes, indexes.length * 2);
+						values = Arrays.copyOf(values, values.length * 2);
+					}
+					indexes[nnz] = Integer.parseInt(line.substring(pos, colon));
+					values[nnz] = parseFloat(line, colon + 1, tokenEnd);
+					nCols = Math.max(nCols, indexes[nnz] + 1);
+					nnz++;
+					pos = tokenEnd;
+				}
+				nRows++;
+				rowIndex[nRows] = nnz;
+			}
+		}
+		DMatrix matrix = new DMatrix(Arrays.copyOf(rowIndex, nRows + 1),
+				Arrays.copyOf(indexes, nnz), Arrays.copyOf(values, nnz),
+				DMatrix.SparseType.CSR, nCols);
+		matrix.setLabel(Arrays.copyOf(labels, nRows));
+		File groupFile = new File(file + ".gr");
+		if (groupFile.exists() == true) {
+			int[] groups = Files.readAllLines(groupFile.toPath()).stream()
+					.filter(line -> line.trim().isEmpty() == false)
+					.mapToInt(line -> Integer.parseInt(line.trim())).toArray();
+			matrix.setGroup(groups);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Parses line[start, end) like the native LIBSVM parser, which adds the
+	 * fraction digits as a float to the integer part instead of rounding
+	 * the decimal once, so the result can differ from Float.parseFloat() in
+	 * the last bit. Text with an exponent or other characters is parsed
+	 * with Float.parseFloat().
+	 */
+	private static float parseFloat(final String line, final int start,
+			final int end) {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+			negative = line.charAt(pos) == '-';
+			pos++;
+		}
+		long integer = 0;
+		int digitsStart = pos;
+		while (pos < end && line.charAt(pos) >= '0' && line.charAt(pos) <= '9'
+				&& pos - digitsStart < 18) {
+			integer = integer * 10 + (line.charAt(pos) - '0');
+			pos++;
+		}
+		float value = integer;
+		if (pos < end && line.charAt(pos) == '.') {
+			pos++;
+			long fraction = 0;
+			long pow10 = 1;
+			int fractionStart = pos;
+			while (pos < end && line.charAt(pos) >= '0'
+					&& line.charAt(pos) <= '9' && pos - fractionStart < 18) {
+				fraction = fraction * 10 + (line.charAt(pos) - '0');
+				pow10 *= 10;
+				pos++;
+			}
+			value += (float) ((double) fraction / (double) pow10);
+		}
+		if (pos != end || pos == digitsStart) {
+			return Float.parseFloat(line.substring(start, end));
+		}
+		return negative == true ? -value : value;
+	}
+
 	public static DMatrix toDMatrix(final MLSparseMatrix matrix)
 			throws XGBoostError {
 
@@ -157,21 +302,41 @@ public final class MLXGBoost {
 				DMatrix.SparseType.CSR, nCols);
 	}
 
+	/**
+	 * Creates DMatrix from the first nRows rows of a CSR buffer, the native
+	 * CSR constructor needs exact sized arrays so the rows are copied.
+	 */
+	public static DMatrix toDMatrix(final int[] rowOffsets,
+			final int[] indexes, final float[] values, final int nRows,
+			final int nCols) throws XGBoostError {
+		int start = rowOffsets[0];
+		int nnz = rowOffsets[nRows] - start;
+		long[] rowIndex = new long[nRows + 1];
+		for (int i = 0; i <= nRows; i++) {
+			rowIndex[i] = rowOffsets[i] - start;
+		}
+		return new DMatrix(rowIndex, Arrays.copyOfRange(indexes, start,
+				start + nnz), Arrays.copyOfRange(values, start, start + nnz),
+				DMatrix.SparseType.CSR, nCols);
+	}
+
 	public static String toLIBSVMString(final LabeledPoint vec) {
 		float target = vec.label();
 		StringBuilder builder = new StringBuilder();
 		if (target == (int) target) {
 			builder.append((int) target);
 		} else {
-			builder.append(String.format("%.5f", target));
+			MLNumberFormat.appendFixed(builder, target, 5);
 		}
 		for (int i = 0; i < vec.indices().length; i++) {
 			float val = vec.values()[i];
+			builder.append(' ');
+			builder.append(vec.indices()[i]);
+			builder.append(':');
 			if (val == Math.round(val)) {
-				builder.append(" " + (vec.indices()[i]) + ":" + ((int) val));
+				builder.append((int) val);
 			} else {
-				builder.append(" " + (vec.indices()[i]) + ":"
-						+ String.format("%.5f", val));
+				MLNumberFormat.appendFixed(builder, val, 5);
 			}
 		}
 		return builder.toString();
@@ -0,0 +1,94 @@
+package recsys2019;
+import java.util.Arrays;
+
+/**
+ * Price statistics and local ranks of the impressions of one clickout
+ * grouped by a small class index such as the star or rating class. For
+ * every class it holds the number of impressions and their average price
+ * and price rank, and for every impression its 1 based position and price
+ * rank within its class, equal prices are ranked in impression order.
+ * <p>
+ * compute() fills everything with one grouping pass over primitive
+ * buffers that only grow, so an instance is reused for every clickout of a
+ * thread and must not be shared between threads.
+ */
+public class RecSys19ClassStats {
+
+    public int nClasses;
+    public int[] counts;
+    public float[] priceAverage;
+    public float[] priceRankAverage;
+    public int[] rankLocal;
+    public int[] priceRankLocal;
+    private int[] classStarts;
+    private int[] classIndexes;
+    private int[] classPrices;
+    private int[] classRanks;
+    private long[] keys;
+
+    public RecSys19ClassStats(final int nClassesP) {
+        this.nClasses = nClassesP;
+        this.counts = new int[nClassesP];
+        this.priceAverage = new float[nClassesP];
+        this.priceRankAverage = new float[nClassesP];
+        this.classStarts = new int[nClassesP + 1];
+        this.ensureCapacity(25);
+    }
+
+    /**
+     * @param classes      class index of each impression
+     * @param prices       price of each impression
+     * @param priceRanking price rank of each impression in the clickout
+     * @param n            number of impressions
+     */
+    public void compute(final int[] classes, final int[] prices, final int[] priceRanking, final int n) {
+        this.ensureCapacity(n);
+        Arrays.fill(this.counts, 0);
+        Arrays.fill(this.priceAverage, 0);
+        Arrays.fill(this.priceRankAverage, 0);
+        for (int i = 0; i < n; i++) {
+            int c = classes[i];
+            this.counts[c]++;
+            this.rankLocal[i] = this.counts[c];
+            // sums are accumulated in impression order
+            this.priceAverage[c] += prices[i];
+            this.priceRankAverage[c] += priceRanking[i];
+        }
+        for (int c = 0; c < this.nClasses; c++) {
+            if (this.counts[c] > 0) {
+                this.priceAverage[c] = this.priceAverage[c] / (float) this.counts[c];
+                this.priceRankAverage[c] = this.priceRankAverage[c] / (float) this.counts[c];
+            }
+            this.classStarts[c + 1] = this.classStarts[c] + this.counts[c];
+        }
+
+        // group impressions by class in impression order and rank prices
+        // within each class
+        for (int i = 0; i < n; i++) {
+            this.classIndexes[this.classStarts[classes[i]] + this.rankLocal[i] - 1] = i;
+        }
+        for (int c = 0; c < this.nClasses; c++) {
+            int start = this.classStarts[c];
+            int count = this.counts[c];
+            for (int j = 0; j < count; j++) {
+                this.classPrices[j] = prices[this.classIndexes[start + j]];
+            }
+            RecSys19Helper.argsort(this.classPrices, count, true, true, this.classRanks, this.keys);
+            for (int j = 0; j < count; j++) {
+                this.priceRankLocal[this.classIndexes[start + j]] = this.classRanks[j];
+            }
+        }
+    }
+
+    private void ensureCapacity(final int n) {
+        if (this.rankLocal != null && this.rankLocal.length >= n) {
+            return;
+        }
+        this.rankLocal = new int[n];
+        this.priceRankLocal = new int[n];
+        this.classIndexes = new int[n];
+        this.classPrices = new int[n];
+        this.classRanks = new int[n];
+        this.keys = new long[n];
+    }
+}
@@ -1,10 +1,12 @@
 package recsys2019;
 import common.feature.MLSparseFeature;
+import common.linalg.MLIntCSR;
+import common.linalg.MLSparseMatrix;
+import common.linalg.MLSparseMatrixFlat;
+import common.utils.MLIntIntMap;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 public class RecSys19Data implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -61,29 +63,185 @@ public class RecSys19Data implements Serializable {
         }
     }
 
-    public Map<Integer, Integer> getIndexToItemId() {
-        Map<Integer, Integer> indexToItemId = new HashMap(itemIdToIndex.size());
-        for (Map.Entry<Integer, Integer> entry : itemIdToIndex.entrySet()) {
-            indexToItemId.put(entry.getValue(), entry.getKey());
-        }
-        return indexToItemId;
+    public int[] getIndexToItemId() {
+        MLIntIntMap itemIdToIndex = this.getItemIdToIndex();
+        return itemIdToIndex.getKeysByValue(itemIdToIndex.size());
     }
 
-    public int[] referenceItems;
-    public long[] timeStamps;
-    public int[][] impressions;
-    public int[][] prices;
-    public Map<Integer, Integer> itemIdToIndex;
+    // columns are volatile since they can be loaded lazily from a store by
+    // any thread, see RecSys19DataStore.open()
+    public volatile int[] referenceItems;
+    public volatile long[] timeStamps;
+    public volatile MLIntCSR impressions;
+    public volatile MLIntCSR prices;
+    public volatile MLIntIntMap itemIdToIndex;
     public Map<ItemFeature, MLSparseFeature> itemFeatures;
-    public Map<Integer, Set<Integer>> userToSessionStart;
-    public Map<Integer, Set<Integer>> trainToSessionStart;
-    public Map<Integer, Set<Integer>> testToSessionStart;
+    // star and rating class of each item, see RecSys19Helper.getItemStars()
+    public volatile byte[] itemStars;
+    public volatile byte[] itemRatings;
+    public volatile RecSys19SessionTable sessions;
     public Map<SessionFeature, MLSparseFeature> sessionFeatures;
     public int[] trainEventIndexes; //sorted
     public int[] validEventIndexes; //sorted
     public int[] testEventIndexes; //sorted
+    transient RecSys19DataStore store;
 
     public RecSys19Data() {
 
     }
+
+    public int[] getReferenceItems() {
+        if (this.referenceItems == null && this.store != null) {
+            synchronized (this) {
+                if (this.referenceItems == null) {
+                    this.referenceItems = this.store.readReferenceItems();
+                }
+            }
+        }
+        return this.referenceItems;
+    }
+
+    public long[] getTimeStamps() {
+        if (this.timeStamps == null && this.store != null) {
+            synchronized (this) {
+                if (this.timeStamps == null) {
+                    this.timeStamps = this.store.readTimeStamps();
+                }
+            }
+        }
+        return this.timeStamps;
+    }
+
+    public MLIntCSR getImpressions() {
+        if (this.impressions == null && this.store != null) {
+            synchronized (this) {
+                if (this.impressions == null) {
+                    this.impressions = this.store.readRows(SessionFeature.impressions);
+                }
+            }
+        }
+        return this.impressions;
+    }
+
+    public MLIntCSR getPrices() {
+        if (this.prices == null && this.store != null) {
+            synchronized (this) {
+                if (this.prices == null) {
+                    this.prices = this.store.readRows(SessionFeature.prices);
+                }
+            }
+        }
+        return this.prices;
+    }
+
+    public MLIntIntMap getItemIdToIndex() {
+        if (this.itemIdToIndex == null && this.store != null) {
+            synchronized (this) {
+                if (this.itemIdToIndex == null) {
+                    this.itemIdToIndex = this.store.readItemIdToIndex();
+                }
+            }
+        }
+        return this.itemIdToIndex;
+    }
+
+    public MLSparseFeature getItemFeature(final ItemFeature featureName) {
+        MLSparseFeature feature = this.itemFeatures.get(featureName);
+        if (feature == null && this.store != null) {
+            synchronized (this) {
+                feature = this.itemFeatures.get(featureName);
+                if (feature == null) {
+                    feature = this.store.readItemFeature(featureName);
+                    if (feature != null) {
+                        this.itemFeatures.put(featureName, feature);
+                    }
+                }
+            }
+        }
+        return feature;
+    }
+
+    public byte[] getItemStars() {
+        if (this.itemStars == null) {
+            synchronized (this) {
+                if (this.itemStars == null) {
+                    if (this.store != null) {
+                        this.itemStars = this.store.readItemStars();
+                    } else {
+                        this.itemStars = RecSys19Helper.getItemStars(this.getItemFeature(ItemFeature.properties),
+                                this.getItemIdToIndex().size());
+                    }
+                }
+            }
+        }
+        return this.itemStars;
+    }
+
+    public byte[] getItemRatings() {
+        if (this.itemRatings == null) {
+            synchronized (this) {
+                if (this.itemRatings == null) {
+                    if (this.store != null) {
+                        this.itemRatings = this.store.readItemRatings();
+                    } else {
+                        this.itemRatings = RecSys19Helper.getItemRatings(this.getItemFeature(ItemFeature.properties),
+                                this.getItemIdToIndex().size());
+                    }
+                }
+            }
+        }
+        return this.itemRatings;
+    }
+
+    public MLSparseFeature getSessionFeature(final SessionFeature featureName) {
+        MLSparseFeature feature = this.sessionFeatures.get(featureName);
+        if (feature == null && this.store != null) {
+            synchronized (this) {
+                feature = this.sessionFeatures.get(featureName);
+                if (feature == null) {
+                    feature = this.store.readSessionFeature(featureName, this);
+                    if (feature != null) {
+                        this.sessionFeatures.put(featureName, feature);
+                    }
+                }
+            }
+        }
+        return feature;
+    }
+
+    /**
+     * Returns the category index of every row of a single valued session
+     * feature, rows without a value are MLSparseMatrixFlat.MISSING_ROW. This
+     * is the backing array of the feature so it must not be modified.
+     */
+    public int[] getIndexColumn(final SessionFeature featureName) {
+        return getFlat(featureName).getIndexes();
+    }
+
+    /**
+     * Returns the value of every row of a single valued session feature, see
+     * getIndexColumn().
+     */
+    public float[] getValueColumn(final SessionFeature featureName) {
+        return getFlat(featureName).getValues();
+    }
+
+    private MLSparseMatrixFlat getFlat(final SessionFeature featureName) {
+        MLSparseMatrix matrix = this.getSessionFeature(featureName).getFeatMatrix();
+        if ((matrix instanceof MLSparseMatrixFlat) == false) {
+            throw new IllegalArgumentException(featureName.name() + " is not single valued");
+        }
+        return (MLSparseMatrixFlat) matrix;
+    }
+
+    public RecSys19SessionTable getSessions() {
+        if (this.sessions == null && this.store != null) {
+            synchronized (this) {
+                if (this.sessions == null) {
+                    this.sessions = this.store.readSessions();
+                }
+            }
+        }
+        return this.sessions;
+    }
 }
@@ -1,9 +1,11 @@
 package recsys2019;
 import common.feature.MLFeatureTransform;
 import common.feature.MLSparseFeature;
+import common.linalg.MLIntCSR;
 import common.linalg.MLSparseMatrixAOO;
 import common.linalg.MLSparseMatrixFlat;
-import common.utils.MLIOUtils;
+import common.utils.MLIntIntMap;
+import common.utils.MLMappedCSVReader;
 import common.utils.MLTimer;
 import recsys2019.RecSys19Data.ItemFeature;
 import recsys2019.RecSys19Data.SessionFeature;
@@ -12,6 +14,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -19,12 +22,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 public class RecSys19DataParser {
     public static final int N_SESSION_ROWS = 15932993 + 3782336 - 2;
     public static final int N_ITEM_ROWS = 927997;
+    private static final byte PIPE = '|';
+    private static final byte[] UNKNOWN = "unknown".getBytes(StandardCharsets.UTF_8);
     private static MLTimer timer;
 
     static {
@@ -35,17 +40,24 @@ public class RecSys19DataParser {
     public RecSys19Data data;
     public int curItemIndex;
     public int curSessionIndex;
+    private int[] sessionStarts;
+    private int[] sessionUsers;
+    private boolean[] sessionTrain;
+    private int nSessions;
+    // stored rows and sessions before those of data, see appendSessionData()
+    private int nStoredRows;
+    private int nStoredSessions;
 
     public RecSys19DataParser() {
         this.data = new RecSys19Data();
     }
 
     public void parseItemData(final String file) throws Exception {
-        this.data.itemIdToIndex = new HashMap();
+        this.data.itemIdToIndex = new MLIntIntMap(N_ITEM_ROWS, -1);
         String header = Files.lines(Paths.get(file)).iterator().next();
         String[] headerSplit = header.split(",");
         this.data.itemFeatures = new HashMap();
-        this.data.itemIdToIndex = new HashMap();
+        this.data.itemIdToIndex = new MLIntIntMap(N_ITEM_ROWS, -1);
         this.curItemIndex = 0;
         MLSparseFeature feature = new MLSparseFeature(N_ITEM_ROWS, null,
                         new MLFeatureTransform[]{new MLFeatureTransform.ColSelectorTransform(1_000)}, MLSparseMatrixAOO.class);
@@ -167,61 +179,75 @@ public class RecSys19DataParser {
         }
     }
 
+    /**
+     * Selects validation targets among train sessions and writes them to
+     * outFile. A session is a target if it starts in the validation time
+     * range and ends with a clickout on one of its impressions. After
+     * appendSessionData() only the new sessions are checked, their targets
+     * are added to the stored validEventIndexes and appended to outFile.
+     */
     public void createSplit(final String outFile) throws Exception {
         final int clickAction = RecSys19Helper.getActionIndex(RecSys19Data.CLICKOUT_ITEM_ACTION, this.data);
         Map<Integer, String> indexToUser = this.data.sessionFeatures.get(SessionFeature.user_id).getIndexToCat();
         Map<Integer, String> indexToSession = this.data.sessionFeatures.get(SessionFeature.session_id).getIndexToCat();
         List<Integer> validList = new ArrayList();
         int count = 0;
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
-            for (Map.Entry<Integer, Set<Integer>> entry : this.data.trainToSessionStart.entrySet()) {
+        RecSys19SessionTable sessions = this.data.sessions;
+        int[] actionColumn = this.data.getIndexColumn(SessionFeature.action_type);
+        boolean append = this.nStoredSessions > 0;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile, append))) {
+            for (int session = this.nStoredSessions; session < sessions.getNSessions(); session++) {
+                if (sessions.isTrainSession(session) == false) {
+                    continue;
+                }
                 count++;
                 if (count % 100_000 == 0) {
                     timer.tocLoop("createSplit", count);
                 }
-                for (int startIndex : entry.getValue()) {
-                    if (this.data.timeStamps[startIndex] < RecSys19Data.VALID_SPLIT_START
-                            || this.data.timeStamps[startIndex] > RecSys19Data.VALID_SPLIT_END) {
-                        continue;
-                    }
-                    int sessionIndex = RecSys19Helper.getIndex(startIndex, SessionFeature.session_id, this.data);
-                    int curIndex = startIndex;
-                    while (true) {
-                        int nextSessionIndex = RecSys19Helper.getIndex(curIndex + 1, SessionFeature.session_id, this.data);
-                        if (sessionIndex != nextSessionIndex) {
-                            int curAction = RecSys19Helper.getIndex(curIndex, SessionFeature.action_type, this.data);
-                            if (curAction == clickAction) {
-                                int clickedItem = this.data.referenceItems[curIndex];
-                                if (clickedItem < 0) {
-                                    break;
-                                }
-                                boolean found = false;
-                                for (int i = 0; i < this.data.impressions[curIndex].length; i++) {
-                                    if (clickedItem == this.data.impressions[curIndex][i]) {
-                                        found = true;
-                                        break;
-                                    }
-                                }
-                                if (found == false) {
-                                    break;
-                                }
-                                validList.add(curIndex);
-                                String userId = indexToUser.get(RecSys19Helper.getIndex(curIndex, SessionFeature.user_id, this.data));
-                                String sessionId = indexToSession.get(RecSys19Helper.getIndex(curIndex, SessionFeature.session_id, this.data));
-                                int step = (int) RecSys19Helper.getValue(curIndex, SessionFeature.step, this.data);
-                                long timeStamp = this.data.timeStamps[curIndex];
-                                writer.write(userId + "," + sessionId + "," + timeStamp + "," + step + "\n");
-                            }
-                            break;
-                        }
-                        curIndex++;
+                // rows of data start after the stored rows
+                int startIndex = sessions.getSessionStart(session) - this.nStoredRows;
+                if (this.data.timeStamps[startIndex] < RecSys19Data.VALID_SPLIT_START
+                        || this.data.timeStamps[startIndex] > RecSys19Data.VALID_SPLIT_END) {
+                    continue;
+                }
+                // only the last event of a session can be a validation target
+                int curIndex = sessions.getSessionEnd(session) - 1 - this.nStoredRows;
+                int curAction = actionColumn[curIndex];
+                if (curAction != clickAction) {
+                    continue;
+                }
+                int clickedItem = this.data.referenceItems[curIndex];
+                if (clickedItem < 0) {
+                    continue;
+                }
+                boolean found = false;
+                MLIntCSR impressions = this.data.impressions;
+                for (int i = impressions.getRowStart(curIndex); i < impressions.getRowEnd(curIndex); i++) {
+                    if (clickedItem == impressions.getValue(i)) {
+                        found = true;
+                        break;
                     }
                 }
+                if (found == false) {
+                    continue;
+                }
+                validList.add(this.nStoredRows + curIndex);
+                String userId = indexToUser.get(RecSys19Helper.getIndex(curIndex, SessionFeature.user_id, this.data));
+                String sessionId = indexToSession.get(RecSys19Helper.getIndex(curIndex, SessionFeature.session_id, this.data));
+                int step = (int) RecSys19Helper.getValue(curIndex, SessionFeature.step, this.data);
+                long timeStamp = this.data.timeStamps[curIndex];
+                writer.write(userId + "," + sessionId + "," + timeStamp + "," + step + "\n");
             }
         }
-        this.data.validEventIndexes = new int[validList.size()];
-        for (int i = 0; i < this.data.validEventIndexes.length; i++) {
-            this.data.validEventIndexes[i] = validList.get(i);
+        int nOld = 0;
+        if (append == true && this.data.validEventIndexes != null) {
+            nOld = this.data.validEventIndexes.length;
+            this.data.validEventIndexes = Arrays.copyOf(this.data.validEventIndexes, nOld + validList.size());
+        } else {
+            this.data.validEventIndexes = new int[validList.size()];
+        }
+        for (int i = 0; i < validList.size(); i++) {
+            this.data.validEventIndexes[nOld + i] = validList.get(i);
         }
         Arrays.sort(this.data.validEventIndexes);
         timer.toc("nValidSessions " + this.data.validEventIndexes.length);
@@ -229,21 +255,257 @@ public class RecSys19DataParser {
 
     public void parseSessionData(final String trainFile, final String testFile) throws Exception {
         this.initSessionFeatures();
-        this.data.userToSessionStart = new HashMap();
-        this.data.trainToSessionStart = new HashMap();
-        this.data.testToSessionStart = new HashMap();
+        this.initSessions();
         this.data.referenceItems = new int[N_SESSION_ROWS];
         Arrays.fill(this.data.referenceItems, -1);
-        this.data.impressions = new int[N_SESSION_ROWS][];
-        this.data.prices = new int[N_SESSION_ROWS][];
+        this.data.impressions = new MLIntCSR(N_SESSION_ROWS);
+        this.data.prices = new MLIntCSR(N_SESSION_ROWS);
         this.data.timeStamps = new long[N_SESSION_ROWS];
         this.curSessionIndex = -1;
         this.parseSessionData(trainFile, true);
         this.parseSessionData(testFile, false);
+        this.finishSessions();
+        this.data.impressions.trim();
+        this.data.prices.trim();
+        for (Map.Entry<SessionFeature, MLSparseFeature> entry :
+                this.data.sessionFeatures.entrySet()) {
+            entry.getValue().finalizeFeature(true);
+        }
+    }
+
+    /**
+     * Parallel version of parseSessionData(), each file is split into nChunks
+     * ranges on session boundaries and chunks are parsed concurrently. The
+     * resulting data is identical to the serial parser.
+     */
+    public void parseSessionData(final String trainFile, final String testFile, final int nChunks) throws Exception {
+        if (nChunks <= 1) {
+            this.parseSessionData(trainFile, testFile);
+            return;
+        }
+        this.initSessionFeatures();
+        this.initSessions();
+        this.data.referenceItems = new int[N_SESSION_ROWS];
+        Arrays.fill(this.data.referenceItems, -1);
+        this.data.impressions = new MLIntCSR(N_SESSION_ROWS);
+        this.data.prices = new MLIntCSR(N_SESSION_ROWS);
+        this.data.timeStamps = new long[N_SESSION_ROWS];
+        this.curSessionIndex = -1;
+        this.parseSessionDataParallel(trainFile, true, nChunks);
+        this.parseSessionDataParallel(testFile, false, nChunks);
+        this.finishSessions();
+        this.data.impressions.trim();
+        this.data.prices.trim();
+        for (Map.Entry<SessionFeature, MLSparseFeature> entry :
+                this.data.sessionFeatures.entrySet()) {
+            entry.getValue().finalizeFeature(true);
+        }
+    }
+
+    /**
+     * Parses a new train or test file that follows the data stored at path
+     * without loading the stored rows. Only the session table, the item map
+     * and the category dictionaries of session features are loaded, so the
+     * cost depends on the size of the new file. New categories, items, users
+     * and sessions get indexes after the existing ones, so existing indexes
+     * don't change.
+     * <p>
+     * Afterwards data holds only the new rows: row columns and session
+     * features start at the first new row while dictionaries, the item map,
+     * the session table and event indexes cover all rows. Use
+     * createSplit() to add validation targets among the new train sessions
+     * and RecSys19DataStore.append() to write data after the stored rows.
+     */
+    public void appendSessionData(final String path, final String file, final boolean isTrain,
+                                  final int nChunks) throws Exception {
+        RecSys19Data stored = RecSys19DataStore.open(path);
+        int nNewRows = countRows(file);
+        this.data = new RecSys19Data();
+        this.data.referenceItems = new int[nNewRows];
+        Arrays.fill(this.data.referenceItems, -1);
+        this.data.timeStamps = new long[nNewRows];
+        this.data.impressions = new MLIntCSR(nNewRows);
+        this.data.prices = new MLIntCSR(nNewRows);
+        this.data.itemIdToIndex = stored.getItemIdToIndex();
+        this.data.itemFeatures = new HashMap();
+        this.data.sessionFeatures = new HashMap();
+        for (SessionFeature featureName : SessionFeature.values()) {
+            MLSparseFeature feature = stored.store.readSessionDictionary(featureName);
+            if (feature != null) {
+                feature.prepareForAppend(nNewRows);
+                this.data.sessionFeatures.put(featureName, feature);
+            }
+        }
+        this.data.trainEventIndexes = stored.trainEventIndexes;
+        this.data.validEventIndexes = stored.validEventIndexes;
+        this.data.testEventIndexes = stored.testEventIndexes;
+
+        RecSys19SessionTable sessions = stored.getSessions();
+        this.nSessions = sessions.getNSessions();
+        this.sessionStarts = Arrays.copyOf(sessions.sessionStart, this.nSessions + 1024);
+        this.sessionUsers = Arrays.copyOf(sessions.sessionUser, this.nSessions + 1024);
+        this.sessionTrain = Arrays.copyOf(sessions.sessionTrain, this.nSessions + 1024);
+        this.curItemIndex = this.data.itemIdToIndex.size();
+        this.nStoredRows = stored.store.getNRows();
+        this.nStoredSessions = sessions.getNSessions();
+        this.curSessionIndex = -1;
+        if (nChunks <= 1) {
+            this.parseSessionData(file, isTrain);
+        } else {
+            this.parseSessionDataParallel(file, isTrain, nChunks);
+        }
+        this.finishSessions();
+        this.data.impressions.trim();
+        this.data.prices.trim();
         for (Map.Entry<SessionFeature, MLSparseFeature> entry :
                 this.data.sessionFeatures.entrySet()) {
             entry.getValue().finalizeFeature(true);
         }
+        timer.toc("appended " + nNewRows + " rows from " + file);
+    }
+
+    private static int countRows(final String file) throws Exception {
+        long dataStart;
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file)) {
+            reader.nextRow();
+            dataStart = reader.getRowEnd();
+        }
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file, dataStart, new File(file).length())) {
+            return reader.countRows();
+        }
+    }
+
+    private void parseSessionDataParallel(final String file, final boolean isTrain, final int nChunks) throws Exception {
+        String[] headerSplit;
+        long dataStart;
+        long fileEnd = new File(file).length();
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file)) {
+            reader.nextRow();
+            headerSplit = new String[reader.getNFields()];
+            for (int i = 0; i < headerSplit.length; i++) {
+                headerSplit[i] = reader.getString(i);
+            }
+            dataStart = reader.getRowEnd();
+        }
+        int sessIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.session_id);
+
+        // split into chunks that start on session boundaries
+        long[] boundaries = new long[nChunks + 1];
+        boundaries[0] = dataStart;
+        boundaries[nChunks] = fileEnd;
+        IntStream.range(1, nChunks).parallel().forEach(i -> {
+            long position = dataStart + (fileEnd - dataStart) * i / nChunks;
+            try {
+                boundaries[i] = getSessionStart(file, position, sessIndexCSV);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("failed to split " + file);
+            }
+        });
+        List<RecSys19SessionChunk> chunks = new ArrayList();
+        int rowOffset = this.curSessionIndex + 1;
+        long start = dataStart;
+        for (int i = 1; i <= nChunks; i++) {
+            long end = Math.max(boundaries[i], start);
+            if (start == end) {
+                continue;
+            }
+            try (MLMappedCSVReader reader = new MLMappedCSVReader(file, start, end)) {
+                int nRows = reader.countRows();
+                chunks.add(new RecSys19SessionChunk(start, end, rowOffset, nRows));
+                rowOffset += nRows;
+            }
+            start = end;
+        }
+        if (rowOffset > this.data.referenceItems.length) {
+            throw new IllegalStateException("found " + rowOffset + " rows but expected at most " + this.data.referenceItems.length);
+        }
+        timer.toc("parseSessionData " + chunks.size() + " chunks " + (rowOffset - this.curSessionIndex - 1) + " rows");
+
+        AtomicInteger nParsed = new AtomicInteger(0);
+        chunks.parallelStream().forEach(chunk -> {
+            try {
+                chunk.parse(file, headerSplit, isTrain, this.data);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("failed to parse " + file);
+            }
+            timer.tocLoop("parseSessionData chunk", nParsed.incrementAndGet());
+        });
+
+        // merge dictionaries in chunk order so global indexes are assigned in
+        // the same order as the serial parser
+        for (RecSys19SessionChunk chunk : chunks) {
+            for (SessionFeature featureName : RecSys19SessionChunk.getCatFeatures()) {
+                RecSys19SessionChunk.LocalDictionary dictionary = chunk.dictionaries.get(featureName);
+                dictionary.localToGlobal = this.data.sessionFeatures.get(featureName).getCatIndexes(dictionary.cats);
+            }
+            // references that were not in this chunk's impressions can only
+            // resolve to items known before this chunk
+            for (int i = 0; i < chunk.pendingItems.size(); i++) {
+                chunk.pendingItems.set(i, this.data.itemIdToIndex.get(chunk.pendingItems.get(i)));
+            }
+            chunk.itemLocalToGlobal = new int[chunk.nItems];
+            for (int i = 0; i < chunk.itemLocalToGlobal.length; i++) {
+                int itemId = chunk.items[i];
+                int itemIndex = this.data.itemIdToIndex.get(itemId);
+                if (itemIndex < 0) {
+                    this.data.itemIdToIndex.put(itemId, this.curItemIndex);
+                    itemIndex = this.curItemIndex;
+                    this.curItemIndex++;
+                }
+                chunk.itemLocalToGlobal[i] = itemIndex;
+            }
+        }
+        chunks.parallelStream().forEach(chunk -> chunk.remap(this.data));
+
+        int sessionCount = 0;
+        long minTime = chunks.isEmpty() ? 0 : chunks.get(0).minTime;
+        long maxTime = chunks.isEmpty() ? 0 : chunks.get(0).maxTime;
+        List<Integer> testIndexes = new ArrayList();
+        for (RecSys19SessionChunk chunk : chunks) {
+            for (int startIndex : chunk.sessionStarts) {
+                sessionCount++;
+                this.addSession(startIndex, RecSys19Helper.getIndex(startIndex, SessionFeature.user_id, this.data), isTrain);
+            }
+            this.data.impressions.setRows(chunk.rowOffset, chunk.impressions);
+            this.data.prices.setRows(chunk.rowOffset, chunk.prices);
+            chunk.impressions = null;
+            chunk.prices = null;
+            for (int rowIndex : chunk.unresolvedClicks) {
+                if (this.data.referenceItems[rowIndex] < 0) {
+                    testIndexes.add(rowIndex);
+                }
+            }
+            minTime = Math.min(minTime, chunk.minTime);
+            maxTime = Math.max(maxTime, chunk.maxTime);
+        }
+        this.curSessionIndex = rowOffset - 1;
+        timer.toc("item count " + this.curItemIndex);
+        timer.toc("session count " + sessionCount);
+        timer.toc("cur session index " + this.curSessionIndex);
+        timer.toc("range " + minTime + " - " + maxTime);
+        if (isTrain == false) {
+            this.addTestIndexes(testIndexes);
+        }
+    }
+
+    private static long getSessionStart(final String file, final long position, final int sessIndexCSV) throws Exception {
+        // first row that starts a new session at or after position
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file, position - 1, -1)) {
+            // skip the remainder of the row that contains position
+            reader.nextRow();
+            if (reader.nextRow() == false) {
+                return reader.getRowEnd();
+            }
+            String session = reader.getString(sessIndexCSV);
+            while (reader.nextRow() == true) {
+                if (session.equals(reader.getString(sessIndexCSV)) == false) {
+                    return reader.getRowStart();
+                }
+            }
+            return reader.getRowEnd();
+        }
     }
 
     private void parseSessionData(final String file, final boolean isTrain) throws Exception {
@@ -251,8 +513,12 @@ public class RecSys19DataParser {
         int sessionCount = 0;
         long minTime = 0;
         long maxTime = 0;
-        try (BufferedReader fileReader = new BufferedReader(new FileReader(file))) {
-            String[] headerSplit = fileReader.readLine().split(",");
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file)) {
+            reader.nextRow();
+            String[] headerSplit = new String[reader.getNFields()];
+            for (int i = 0; i < headerSplit.length; i++) {
+                headerSplit[i] = reader.getString(i);
+            }
             int userIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.user_id);
             int sessIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.session_id);
             int timeIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.timestamp);
@@ -266,19 +532,18 @@ public class RecSys19DataParser {
             int impressIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.impressions);
             int priceIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.prices);
             int curSession = -1;
-            String line;
-            while ((line = fileReader.readLine()) != null) {
+            int[] impressions = new int[0];
+            while (reader.nextRow() == true) {
                 this.curSessionIndex++;
                 if (this.curSessionIndex % 1_000_000 == 0) {
                     timer.tocLoop("parseSessionData", this.curSessionIndex);
                 }
-                String[] split = splitWithQuotes(line);
-                if (split.length != headerSplit.length) {
+                if (reader.getNFields() != headerSplit.length) {
                     throw new Exception("split length doesn't match");
                 }
-                this.data.sessionFeatures.get(SessionFeature.user_id).addRow(this.curSessionIndex, split[userIndexCSV]);
-                this.data.sessionFeatures.get(SessionFeature.session_id).addRow(this.curSessionIndex, split[sessIndexCSV]);
-                this.data.timeStamps[this.curSessionIndex] = Long.parseLong(split[timeIndexCSV]);
+                this.data.sessionFeatures.get(SessionFeature.user_id).addRow(this.curSessionIndex, reader.getString(userIndexCSV));
+                this.data.sessionFeatures.get(SessionFeature.session_id).addRow(this.curSessionIndex, reader.getString(sessIndexCSV));
+                this.data.timeStamps[this.curSessionIndex] = reader.getLong(timeIndexCSV);
                 if (curSession < 0) {
                     minTime = this.data.timeStamps[this.curSessionIndex];
                     maxTime = this.data.timeStamps[this.curSessionIndex];
@@ -290,78 +555,78 @@ public class RecSys19DataParser {
                         maxTime = this.data.timeStamps[this.curSessionIndex];
                     }
                 }
-                int step = Integer.parseInt(split[stepIndexCSV]);
+                int step = reader.getInt(stepIndexCSV);
                 this.data.sessionFeatures.get(SessionFeature.step).addRow(this.curSessionIndex, step);
-                if (split[actionIndexCSV].length() > 0) {
-                    this.data.sessionFeatures.get(SessionFeature.action_type).addRow(this.curSessionIndex, split[actionIndexCSV]);
+                String action = reader.getString(actionIndexCSV);
+                if (action.length() > 0) {
+                    this.data.sessionFeatures.get(SessionFeature.action_type).addRow(this.curSessionIndex, action);
                 }
-                if (split[platformIndexCSV].length() > 0) {
-                    this.data.sessionFeatures.get(SessionFeature.platform).addRow(this.curSessionIndex, split[platformIndexCSV]);
+                if (reader.isEmpty(platformIndexCSV) == false) {
+                    this.data.sessionFeatures.get(SessionFeature.platform).addRow(this.curSessionIndex, reader.getString(platformIndexCSV));
                 }
-                if (split[cityIndexCSV].length() > 0) {
-                    this.data.sessionFeatures.get(SessionFeature.city).addRow(this.curSessionIndex, split[cityIndexCSV]);
+                if (reader.isEmpty(cityIndexCSV) == false) {
+                    this.data.sessionFeatures.get(SessionFeature.city).addRow(this.curSessionIndex, reader.getString(cityIndexCSV));
                 }
-                if (split[deviceIndexCSV].length() > 0) {
-                    this.data.sessionFeatures.get(SessionFeature.device).addRow(this.curSessionIndex, split[deviceIndexCSV]);
+                if (reader.isEmpty(deviceIndexCSV) == false) {
+                    this.data.sessionFeatures.get(SessionFeature.device).addRow(this.curSessionIndex, reader.getString(deviceIndexCSV));
                 }
-                if (split[filterIndexCSV].length() > 0) {
-                    this.data.sessionFeatures.get(SessionFeature.current_filters).addRow(this.curSessionIndex, split[filterIndexCSV].split("\\|"));
+                if (reader.isEmpty(filterIndexCSV) == false) {
+                    this.data.sessionFeatures.get(SessionFeature.current_filters).addRow(this.curSessionIndex, reader.getStrings(filterIndexCSV, PIPE));
                 }
                 int userIndex = RecSys19Helper.getIndex(this.curSessionIndex, SessionFeature.user_id, this.data);
                 int sessionIndex = RecSys19Helper.getIndex(this.curSessionIndex, SessionFeature.session_id, this.data);
                 if (curSession < 0 || curSession != sessionIndex) {
                     sessionCount++;
-                    if (isTrain == true) {
-                        addToSetMap(this.data.trainToSessionStart, sessionIndex, this.curSessionIndex);
-                    } else {
-                        addToSetMap(this.data.testToSessionStart, sessionIndex, this.curSessionIndex);
-                    }
-                    addToSetMap(this.data.userToSessionStart, userIndex, this.curSessionIndex);
+                    this.addSession(this.curSessionIndex, userIndex, isTrain);
                     curSession = sessionIndex;
                 }
-                if (split[impressIndexCSV].length() > 0) {
-                    String[] impressions = split[impressIndexCSV].split("\\|");
-                    String[] prices = split[priceIndexCSV].split("\\|");
-                    this.data.impressions[this.curSessionIndex] = new int[impressions.length];
-                    this.data.prices[this.curSessionIndex] = new int[prices.length];
-                    for (int i = 0; i < impressions.length; i++) {
-                        int itemId = Integer.parseInt(impressions[i]);
-                        Integer itemIndex = this.data.itemIdToIndex.get(itemId);
-                        if (itemIndex == null) {
+                if (reader.isEmpty(impressIndexCSV) == false) {
+                    int nImpressions = reader.parseInts(impressIndexCSV, PIPE);
+                    if (impressions.length < nImpressions) {
+                        impressions = new int[nImpressions];
+                    }
+                    for (int i = 0; i < nImpressions; i++) {
+                        int itemId = reader.getInts()[i];
+                        int itemIndex = this.data.itemIdToIndex.get(itemId);
+                        if (itemIndex < 0) {
                             this.data.itemIdToIndex.put(itemId, this.curItemIndex);
                             itemIndex = this.curItemIndex;
                             this.curItemIndex++;
                         }
-                        this.data.impressions[this.curSessionIndex][i] = itemIndex;
-                        this.data.prices[this.curSessionIndex][i] = Integer.parseInt(prices[i]);
+                        impressions[i] = itemIndex;
+                    }
+                    int nPrices = reader.parseInts(priceIndexCSV, PIPE);
+                    if (nPrices < nImpressions) {
+                        throw new IllegalStateException("fewer prices than impressions " + reader.getLine());
                     }
+                    this.data.impressions.setRow(this.curSessionIndex, impressions, 0, nImpressions);
+                    this.data.prices.setRow(this.curSessionIndex, reader.getInts(), 0, nPrices);
                 }
-                String action = split[actionIndexCSV];
                 if (action.equals(RecSys19Data.CLICKOUT_ITEM_ACTION) ||
                         action.equals(RecSys19Data.INTERACTION_ITEM_RATING_ACTION) ||
                         action.equals(RecSys19Data.INTERACTION_ITEM_INFO_ACTION) ||
                         action.equals(RecSys19Data.INTERACTION_ITEM_IMAGE_ACTION) ||
                         action.equals(RecSys19Data.INTERACTION_ITEM_DEALS_ACTION) ||
                         action.equals(RecSys19Data.SEARCH_FOR_ITEM_ACTION)) {
-                    if (split[referenceIndexCSV].length() > 0 && split[referenceIndexCSV].equals("unknown") == false) {
+                    if (reader.isEmpty(referenceIndexCSV) == false && reader.fieldEquals(referenceIndexCSV, UNKNOWN) == false) {
                         try {
-                            Integer itemIndex = this.data.itemIdToIndex.get(Integer.parseInt(split[referenceIndexCSV]));
-                            if (itemIndex != null) {
+                            int itemIndex = this.data.itemIdToIndex.get(reader.getInt(referenceIndexCSV));
+                            if (itemIndex >= 0) {
                                 this.data.referenceItems[this.curSessionIndex] = itemIndex;
                             }
                         } catch (Exception e) {
-                            System.out.println("failed " + line);
+                            System.out.println("failed " + reader.getLine());
                         }
                     }
                 } else {
                     if (action.equals(RecSys19Data.CHANGE_OF_SORT_ORDER_ACTION)) {
-                        this.data.sessionFeatures.get(SessionFeature.reference_sort_order).addRow(this.curSessionIndex, split[referenceIndexCSV]);
+                        this.data.sessionFeatures.get(SessionFeature.reference_sort_order).addRow(this.curSessionIndex, reader.getString(referenceIndexCSV));
                     } else if (action.equals(RecSys19Data.FILTER_SELECTION_ACTION)) {
-                        this.data.sessionFeatures.get(SessionFeature.reference_filter).addRow(this.curSessionIndex, split[referenceIndexCSV]);
+                        this.data.sessionFeatures.get(SessionFeature.reference_filter).addRow(this.curSessionIndex, reader.getString(referenceIndexCSV));
                     } else if (action.equals(RecSys19Data.SEARCH_FOR_DESTINATION_ACTION)) {
-                        this.data.sessionFeatures.get(SessionFeature.reference_search_dest).addRow(this.curSessionIndex, split[referenceIndexCSV]);
+                        this.data.sessionFeatures.get(SessionFeature.reference_search_dest).addRow(this.curSessionIndex, reader.getString(referenceIndexCSV));
                     } else if (action.equals(RecSys19Data.SEARCH_FOR_POI_ACTION)) {
-                        this.data.sessionFeatures.get(SessionFeature.reference_search_poi).addRow(this.curSessionIndex, split[referenceIndexCSV]);
+                        this.data.sessionFeatures.get(SessionFeature.reference_search_poi).addRow(this.curSessionIndex, reader.getString(referenceIndexCSV));
                     } else {
                         throw new IllegalStateException("unknown action " + action);
                     }
@@ -376,22 +641,56 @@ public class RecSys19DataParser {
         timer.toc("cur session index " + this.curSessionIndex);
         timer.toc("range " + minTime + " - " + maxTime);
         if (isTrain == false) {
+            this.addTestIndexes(testIndexes);
+        }
+    }
+
+    private void addTestIndexes(final List<Integer> testIndexes) {
+        // appended test files add to the existing test events
+        int nOld = 0;
+        if (this.data.testEventIndexes != null) {
+            nOld = this.data.testEventIndexes.length;
+            this.data.testEventIndexes = Arrays.copyOf(this.data.testEventIndexes, nOld + testIndexes.size());
+        } else {
             this.data.testEventIndexes = new int[testIndexes.size()];
-            for (int i = 0; i < testIndexes.size(); i++) {
-                this.data.testEventIndexes[i] = testIndexes.get(i);
-            }
-            Arrays.sort(this.data.testEventIndexes);
-            timer.toc("test index count " + this.data.testEventIndexes.length);
         }
+        for (int i = 0; i < testIndexes.size(); i++) {
+            this.data.testEventIndexes[nOld + i] = this.nStoredRows + testIndexes.get(i);
+        }
+        Arrays.sort(this.data.testEventIndexes);
+        timer.toc("test index count " + this.data.testEventIndexes.length);
+    }
+
+    private void initSessions() {
+        this.sessionStarts = new int[1024];
+        this.sessionUsers = new int[1024];
+        this.sessionTrain = new boolean[1024];
+        this.nSessions = 0;
     }
 
-    private static void addToSetMap(final Map<Integer, Set<Integer>> map, final int key, final int value) {
-        Set<Integer> indexes = map.get(key);
-        if (indexes == null) {
-            indexes = new TreeSet();
-            map.put(key, indexes);
+    /**
+     * @param startIndex first row of the session in data, sessions are
+     *                   stored with row indexes after the stored rows
+     */
+    private void addSession(final int startIndex, final int userIndex, final boolean isTrain) {
+        if (this.nSessions == this.sessionStarts.length) {
+            this.sessionStarts = Arrays.copyOf(this.sessionStarts, this.nSessions * 2);
+            this.sessionUsers = Arrays.copyOf(this.sessionUsers, this.nSessions * 2);
+            this.sessionTrain = Arrays.copyOf(this.sessionTrain, this.nSessions * 2);
         }
-        indexes.add(value);
+        this.sessionStarts[this.nSessions] = this.nStoredRows + startIndex;
+        this.sessionUsers[this.nSessions] = userIndex;
+        this.sessionTrain[this.nSessions] = isTrain;
+        this.nSessions++;
+    }
+
+    private void finishSessions() {
+        this.data.sessions = new RecSys19SessionTable(this.sessionStarts, this.sessionUsers, this.sessionTrain,
+                this.nSessions, this.nStoredRows + this.curSessionIndex + 1,
+                this.data.sessionFeatures.get(SessionFeature.user_id).getCatToIndex().size());
+        this.sessionStarts = null;
+        this.sessionUsers = null;
+        this.sessionTrain = null;
     }
 
     public static String[] splitWithQuotes(final String input) {
@@ -411,6 +710,10 @@ public class RecSys19DataParser {
 
     public static void main(final String[] args) {
         try {
+            if (args.length > 0 && args[0].equals("append") == true) {
+                append(args);
+                return;
+            }
             String dataPath = args[0];
             String outPath = args[1];
             if (!new File(dataPath).exists()) {
@@ -421,13 +724,47 @@ public class RecSys19DataParser {
             }
             RecSys19DataParser parser = new RecSys19DataParser();
             parser.parseItemData(dataPath + "item_metadata.csv");
-            parser.parseSessionData(dataPath + "train.csv", dataPath + "test.csv");
+            int nChunks = Runtime.getRuntime().availableProcessors();
+            if (args.length > 2) {
+                nChunks = Integer.parseInt(args[2]);
+            }
+            parser.parseSessionData(dataPath + "train.csv", dataPath + "test.csv", nChunks);
             parser.createSplit(outPath + "valid.parsed");
-            MLIOUtils.writeObjectToFile(parser.data, outPath + "data.parsed");
+            RecSys19DataStore.write(parser.data, outPath + "data.columns");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * append [train|test] csvFile outPath [nChunks]
+     * <p>
+     * Adds sessions from csvFile to outPath/data.columns written by a full
+     * parse, only the new rows are parsed and written.
+     */
+    private static void append(final String[] args) throws Exception {
+        boolean isTrain;
+        if (args[1].equals("train") == true) {
+            isTrain = true;
+        } else if (args[1].equals("test") == true) {
+            isTrain = false;
+        } else {
+            throw new Exception("expected train or test but got " + args[1]);
+        }
+        String file = args[2];
+        String outPath = args[3];
+        if (!new File(file).exists()) {
+            throw new Exception("Invalid file given!");
+        }
+        int nChunks = Runtime.getRuntime().availableProcessors();
+        if (args.length > 4) {
+            nChunks = Integer.parseInt(args[4]);
+        }
+        RecSys19DataParser parser = new RecSys19DataParser();
+        parser.appendSessionData(outPath + "data.columns", file, isTrain, nChunks);
+        parser.createSplit(outPath + "valid.parsed");
+        RecSys19DataStore.append(parser.data, outPath + "data.columns");
+    }
 }
 //train
 //RecSys19DataParser: session count 910732 elapsed [1 min 0 sec]
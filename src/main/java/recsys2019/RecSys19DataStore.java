@@ -0,0 +1,406 @@
+package recsys2019;
+import common.feature.MLSparseFeature;
+import common.linalg.MLIntCSR;
+import common.utils.MLBlockCodec;
+import common.utils.MLColumnStore;
+import common.utils.MLIntIntMap;
+import common.utils.MLTimer;
+import recsys2019.RecSys19Data.ItemFeature;
+import recsys2019.RecSys19Data.SessionFeature;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Columnar snapshot of RecSys19Data that replaces Java serialization of the
+ * whole object graph. Every array is written into its own column file of an
+ * MLColumnStore directory, impressions and prices are stored in their
+ * MLIntCSR layout (row offsets + flat values), the session table is stored
+ * as session start, user and train flag columns and features store their
+ * category dictionaries as string columns. Star and rating classes of
+ * items are computed once from item properties and stored as byte columns.
+ * Loading is a sequence of bulk reads.
+ * <p>
+ * Columns are written with LZ4 block compression, columns of stores written
+ * without compression are still read as they are. The values of impressions
+ * and prices are the exception, they are written plain and memory mapped on
+ * load so they are paged in on access instead of being copied onto the heap
+ * and processes that use the same store share them in the page cache.
+ * <p>
+ * Data can be loaded fully with read() or opened with open() in which case
+ * columns are loaded on first access through the RecSys19Data getters.
+ * New rows parsed with RecSys19DataParser.appendSessionData() are added
+ * after the stored rows with append().
+ */
+public class RecSys19DataStore {
+    public static final int FORMAT_VERSION = 5;
+    private static final String META = "meta";
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static MLTimer timer;
+
+    static {
+        timer = new MLTimer("RecSys19DataStore");
+        timer.tic();
+    }
+
+    public static void write(final RecSys19Data data, final String path) throws Exception {
+        MLColumnStore store = MLColumnStore.create(path);
+        store.setCodec(MLBlockCodec.LZ4);
+        store.writeInts(META, new int[]{FORMAT_VERSION, data.referenceItems.length, data.itemIdToIndex.size()});
+        store.writeInts("referenceItems", data.referenceItems);
+        store.writeLongs("timeStamps", data.timeStamps);
+        writeRows(store, "impressions", data.impressions);
+        writeRows(store, "prices", data.prices);
+
+        store.writeInts("itemIds", data.getIndexToItemId());
+        for (Map.Entry<ItemFeature, MLSparseFeature> entry : data.itemFeatures.entrySet()) {
+            entry.getValue().writeColumns(store, "item." + entry.getKey().name());
+        }
+        int nItems = data.itemIdToIndex.size();
+        MLSparseFeature properties = data.itemFeatures.get(ItemFeature.properties);
+        store.writeBytes("itemStars", RecSys19Helper.getItemStars(properties, nItems));
+        store.writeBytes("itemRatings", RecSys19Helper.getItemRatings(properties, nItems));
+        for (Map.Entry<SessionFeature, MLSparseFeature> entry : data.sessionFeatures.entrySet()) {
+            entry.getValue().writeColumns(store, "session." + entry.getKey().name());
+        }
+        timer.toc("features written");
+
+        RecSys19SessionTable sessions = data.sessions;
+        store.writeInts("sessions.meta", new int[]{sessions.nTrainSessions, data.referenceItems.length,
+                sessions.getNUsers()});
+        store.writeInts("sessions.start", sessions.sessionStart);
+        store.writeInts("sessions.user", sessions.sessionUser);
+        store.writeBytes("sessions.train", toBytes(sessions.sessionTrain, 0, sessions.getNSessions()));
+        writeEventIndexes(store, data);
+        timer.toc("written to " + path);
+    }
+
+    /**
+     * Appends data parsed with RecSys19DataParser.appendSessionData() to
+     * the store at path. Row columns and session features of data hold
+     * only the new rows, they are written after the stored rows together
+     * with new categories and items. The session table is extended with the
+     * new sessions, small columns such as shapes and event indexes are
+     * rewritten and meta is written last.
+     */
+    public static void append(final RecSys19Data data, final String path) throws Exception {
+        MLColumnStore store = new MLColumnStore(path);
+        store.setCodec(MLBlockCodec.LZ4);
+        int[] meta = store.readInts(META);
+        if (meta[0] != FORMAT_VERSION) {
+            throw new IOException("unsupported data format version " + meta[0] + " in " + path);
+        }
+        int fromRow = meta[1];
+        int fromItem = meta[2];
+        int nNewRows = data.referenceItems.length;
+        int nRows = fromRow + nNewRows;
+        if (data.sessions.getNSessions() > 0 && data.sessions.getSessionEnd(data.sessions.getNSessions() - 1) != nRows) {
+            throw new IllegalArgumentException("data doesn't follow the " + fromRow + " rows of " + path);
+        }
+        if (data.itemIdToIndex.size() < fromItem) {
+            throw new IllegalArgumentException("data has fewer items than " + path);
+        }
+        store.appendInts("referenceItems", data.referenceItems, 0, nNewRows);
+        store.appendLongs("timeStamps", data.timeStamps, 0, nNewRows);
+        appendRows(store, "impressions", data.impressions, fromRow);
+        appendRows(store, "prices", data.prices, fromRow);
+        int[] itemIds = data.getIndexToItemId();
+        store.appendInts("itemIds", itemIds, fromItem, itemIds.length - fromItem);
+        // items that are first seen in session files have no properties
+        byte[] newItems = new byte[itemIds.length - fromItem];
+        store.appendBytes("itemStars", newItems, 0, newItems.length);
+        store.appendBytes("itemRatings", newItems, 0, newItems.length);
+        for (Map.Entry<SessionFeature, MLSparseFeature> entry : data.sessionFeatures.entrySet()) {
+            entry.getValue().appendColumns(store, "session." + entry.getKey().name());
+            if (entry.getKey().equals(SessionFeature.current_filters) == true) {
+                // current_filters is loaded with the category map of item
+                // properties which it adds new filters to
+                entry.getValue().appendCategories(store, "item." + ItemFeature.properties.name());
+            }
+        }
+        timer.toc("features appended");
+
+        RecSys19SessionTable sessions = data.sessions;
+        int fromSession = (int) store.getLength("sessions.start");
+        int nSessions = sessions.getNSessions() - fromSession;
+        store.writeInts("sessions.meta", new int[]{sessions.nTrainSessions, nRows, sessions.getNUsers()});
+        store.appendInts("sessions.start", sessions.sessionStart, fromSession, nSessions);
+        store.appendInts("sessions.user", sessions.sessionUser, fromSession, nSessions);
+        store.appendBytes("sessions.train", toBytes(sessions.sessionTrain, fromSession, nSessions), 0, nSessions);
+        writeEventIndexes(store, data);
+        store.writeInts(META, new int[]{FORMAT_VERSION, nRows, data.itemIdToIndex.size()});
+        timer.toc("appended " + nNewRows + " rows to " + path);
+    }
+
+    private static void writeEventIndexes(final MLColumnStore store, final RecSys19Data data) throws IOException {
+        if (data.trainEventIndexes != null) {
+            store.writeInts("trainEventIndexes", data.trainEventIndexes);
+        }
+        if (data.validEventIndexes != null) {
+            store.writeInts("validEventIndexes", data.validEventIndexes);
+        }
+        if (data.testEventIndexes != null) {
+            store.writeInts("testEventIndexes", data.testEventIndexes);
+        }
+    }
+
+    /**
+     * Opens stored data without loading any columns, each column is loaded
+     * on first access through the RecSys19Data getters so a pipeline stage
+     * only reads the columns that it uses.
+     */
+    public static RecSys19Data open(final String path) throws Exception {
+        MLColumnStore store = new MLColumnStore(path);
+        if (store.exists() == false) {
+            throw new Exception("data doesn't exist " + path);
+        }
+        int[] meta = store.readInts(META);
+        if (meta[0] != FORMAT_VERSION) {
+            throw new IOException("unsupported data format version " + meta[0] + " in " + path);
+        }
+        RecSys19Data data = new RecSys19Data();
+        data.store = new RecSys19DataStore(store, meta[1]);
+        data.itemFeatures = new ConcurrentHashMap();
+        data.sessionFeatures = new ConcurrentHashMap();
+        if (store.hasColumn("trainEventIndexes") == true) {
+            data.trainEventIndexes = store.readInts("trainEventIndexes");
+        }
+        if (store.hasColumn("validEventIndexes") == true) {
+            data.validEventIndexes = store.readInts("validEventIndexes");
+        }
+        if (store.hasColumn("testEventIndexes") == true) {
+            data.testEventIndexes = store.readInts("testEventIndexes");
+        }
+        return data;
+    }
+
+    /**
+     * Loads all stored columns.
+     */
+    public static RecSys19Data read(final String path) throws Exception {
+        RecSys19Data data = open(path);
+        data.getReferenceItems();
+        data.getTimeStamps();
+        data.getImpressions();
+        data.getPrices();
+        data.getItemIdToIndex();
+        for (ItemFeature featureName : ItemFeature.values()) {
+            data.getItemFeature(featureName);
+        }
+        data.getItemStars();
+        data.getItemRatings();
+        for (SessionFeature featureName : SessionFeature.values()) {
+            data.getSessionFeature(featureName);
+        }
+        data.getSessions();
+        timer.toc("loaded from " + path);
+        return data;
+    }
+
+    private MLColumnStore store;
+    private int nRows;
+
+    private RecSys19DataStore(final MLColumnStore storeP, final int nRowsP) {
+        this.store = storeP;
+        this.nRows = nRowsP;
+    }
+
+    int[] readReferenceItems() {
+        try {
+            int[] referenceItems = this.store.readInts("referenceItems");
+            timer.toc("referenceItems loaded");
+            return referenceItems;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load referenceItems", e);
+        }
+    }
+
+    long[] readTimeStamps() {
+        try {
+            long[] timeStamps = this.store.readLongs("timeStamps");
+            timer.toc("timeStamps loaded");
+            return timeStamps;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load timeStamps", e);
+        }
+    }
+
+    MLIntCSR readRows(final SessionFeature featureName) {
+        try {
+            MLIntCSR rows = readRows(this.store, featureName.name());
+            timer.toc(featureName.name() + " loaded");
+            return rows;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load " + featureName.name(), e);
+        }
+    }
+
+    MLIntIntMap readItemIdToIndex() {
+        try {
+            int[] itemIds = this.store.readInts("itemIds");
+            MLIntIntMap itemIdToIndex = new MLIntIntMap(itemIds.length, -1);
+            for (int i = 0; i < itemIds.length; i++) {
+                itemIdToIndex.put(itemIds[i], i);
+            }
+            return itemIdToIndex;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load itemIds", e);
+        }
+    }
+
+    byte[] readItemStars() {
+        try {
+            byte[] itemStars = this.store.readBytes("itemStars");
+            timer.toc("itemStars loaded");
+            return itemStars;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load itemStars", e);
+        }
+    }
+
+    byte[] readItemRatings() {
+        try {
+            byte[] itemRatings = this.store.readBytes("itemRatings");
+            timer.toc("itemRatings loaded");
+            return itemRatings;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load itemRatings", e);
+        }
+    }
+
+    MLSparseFeature readItemFeature(final ItemFeature featureName) {
+        String name = "item." + featureName.name();
+        try {
+            if (this.store.hasColumn(name + ".layout") == false) {
+                return null;
+            }
+            MLSparseFeature feature = MLSparseFeature.readColumns(this.store, name, null);
+            timer.toc(name + " loaded");
+            return feature;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load " + name, e);
+        }
+    }
+
+    MLSparseFeature readSessionFeature(final SessionFeature featureName, final RecSys19Data data) {
+        String name = "session." + featureName.name();
+        try {
+            if (this.store.hasColumn(name + ".layout") == false) {
+                return null;
+            }
+            MLSparseFeature catMapFeature = null;
+            if (featureName.equals(SessionFeature.current_filters) == true) {
+                // current_filters shares category map with item properties
+                catMapFeature = data.getItemFeature(ItemFeature.properties);
+            }
+            MLSparseFeature feature = MLSparseFeature.readColumns(this.store, name, catMapFeature);
+            timer.toc(name + " loaded");
+            return feature;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load " + name, e);
+        }
+    }
+
+    /**
+     * Loads the category dictionary and transforms of a session feature
+     * without its rows, see RecSys19DataParser.appendSessionData().
+     * current_filters is loaded with its own copy of the category map it
+     * shares with item properties so item properties are not loaded.
+     */
+    MLSparseFeature readSessionDictionary(final SessionFeature featureName) {
+        String name = "session." + featureName.name();
+        try {
+            if (this.store.hasColumn(name + ".layout") == false) {
+                return null;
+            }
+            MLSparseFeature feature = MLSparseFeature.readColumns(this.store, name, null, false);
+            timer.toc(name + " dictionary loaded");
+            return feature;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load " + name, e);
+        }
+    }
+
+    int getNRows() {
+        return this.nRows;
+    }
+
+    RecSys19SessionTable readSessions() {
+        try {
+            int[] meta = this.store.readInts("sessions.meta");
+            int[] sessionStart = this.store.readInts("sessions.start");
+            int[] sessionUser = this.store.readInts("sessions.user");
+            byte[] sessionTrainBytes = this.store.readBytes("sessions.train");
+            boolean[] sessionTrain = new boolean[sessionTrainBytes.length];
+            for (int i = 0; i < sessionTrain.length; i++) {
+                sessionTrain[i] = sessionTrainBytes[i] != 0;
+            }
+            RecSys19SessionTable sessions = new RecSys19SessionTable(sessionStart, sessionUser, sessionTrain,
+                    sessionStart.length, meta[1], meta[2]);
+            timer.toc("sessions loaded");
+            return sessions;
+        } catch (Exception e) {
+            throw new RuntimeException("failed to load sessions", e);
+        }
+    }
+
+    private static void writeRows(final MLColumnStore store, final String name, final MLIntCSR rows) throws IOException {
+        store.writeInts(name + ".offsets", rows.getOffsets());
+        // values are written plain so that they can be mapped
+        try (MLColumnStore.ColumnWriter writer = new MLColumnStore.ColumnWriter(store.getFile(name),
+                MLColumnStore.ColumnType.INT, rows.getNValues(), null)) {
+            putValues(writer, rows, 0);
+        }
+    }
+
+    /**
+     * Appends rows after fromRow stored rows, offsets of the new rows
+     * continue from the stored values.
+     */
+    private static void appendRows(final MLColumnStore store, final String name, final MLIntCSR rows,
+                                   final int fromRow) throws IOException {
+        if (store.getLength(name + ".offsets") != fromRow + 1) {
+            throw new IOException("stored rows don't match for " + name);
+        }
+        long nValuesStored = store.getLength(name);
+        if (nValuesStored + rows.getNValues() > Integer.MAX_VALUE) {
+            throw new IOException("too many values for " + name);
+        }
+        int[] offsets = new int[rows.getNRows()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (int) nValuesStored + rows.getRowEnd(i);
+        }
+        try (MLColumnStore.ColumnWriter writer = new MLColumnStore.ColumnWriter(store.getFile(name),
+                MLColumnStore.ColumnType.INT)) {
+            putValues(writer, rows, 0);
+        }
+        store.appendInts(name + ".offsets", offsets, 0, offsets.length);
+    }
+
+    private static void putValues(final MLColumnStore.ColumnWriter writer, final MLIntCSR rows,
+                                  final int fromValue) throws IOException {
+        int[] buffer = new int[Math.min(rows.getNValues() - fromValue, WRITE_BUFFER_SIZE)];
+        for (int i = fromValue; i < rows.getNValues(); i += buffer.length) {
+            int n = Math.min(buffer.length, rows.getNValues() - i);
+            rows.copyValues(i, buffer, 0, n);
+            writer.put(buffer, 0, n);
+        }
+    }
+
+    private static byte[] toBytes(final boolean[] values, final int from, final int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = values[from + i] == true ? (byte) 1 : (byte) 0;
+        }
+        return bytes;
+    }
+
+    private static MLIntCSR readRows(final MLColumnStore store, final String name) throws IOException {
+        int[] offsets = store.readInts(name + ".offsets");
+        if (store.isMappable(name, MLColumnStore.ColumnType.INT) == true) {
+            return new MLIntCSR(offsets, store.mapInts(name));
+        }
+        // values of older stores are compressed
+        return new MLIntCSR(offsets, store.readInts(name));
+    }
+}
@@ -1,17 +1,16 @@
 package recsys2019;
-import common.feature.MLSparseFeature;
 import common.feature.MLFeatureTransform;
-import common.linalg.MLDenseVector;
+import common.linalg.MLFloatTable;
 import common.linalg.MLSparseMatrix;
 import common.linalg.MLSparseVector;
+import common.utils.MLColumnStore;
+import common.utils.MLStringDictionary;
 import common.utils.MLTimer;
 import recsys2019.RecSys19Data.ItemFeature;
 import recsys2019.RecSys19Data.SessionFeature;
 import recsys2019.RecSys19Model.RecSys19Config;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.stream.IntStream;
 
 public class RecSys19FeatureExtractor {
@@ -22,6 +21,123 @@ public class RecSys19FeatureExtractor {
         public MLSparseVector features;
     }
 
+    /**
+     * Values of one clickout that are shared by all of its impressions,
+     * created once per clickout by createClickoutContext(). Impressions can
+     * repeat an item, per item values are taken from the first position of
+     * the item.
+     */
+    public static class ClickoutContext {
+        public int targetIndex;
+        public int sessionStart;
+        public int[] impressions;
+        public int[] prices;
+        public int[] priceRanking;
+        public int[] priceRankingAbove;
+        public int[] stars;
+        public int[] ratings;
+        public int[] firstPositions;
+        // session rows before the clickout with the same impressions, and
+        // how many of them reference the item at each position
+        public int nSameImpress;
+        public int[] sameImpressCounts;
+        // most recent referenced items: price rank, rank, action, distance
+        // to clickout, time spent and time spent on earlier references
+        public float[][] lastItems;
+        public int nItemLags;
+        // most recent non item actions: action and time spent
+        public float[][] lastActions;
+        // cumulative interaction counts by impression rank for clickouts
+        // and other item actions
+        public int[][] interactRankCounts;
+    }
+
+    /**
+     * initCache statistic updates of one range of rows in row order. Every
+     * update is a table id, a flat row major offset into that table and a
+     * value. grouped holds the same updates grouped by table row partition
+     * with their order kept, updates of partition p are in
+     * [partitionStart[p], partitionStart[p + 1]).
+     */
+    private static class CacheChunk {
+        private int[] updates = new int[3 * 1024];
+        private int nUpdates;
+        private int[] grouped = new int[0];
+        private int[] partitionStart;
+
+        private void add(final int table, final int offset, final float value) {
+            if (this.nUpdates + 3 > this.updates.length) {
+                this.updates = Arrays.copyOf(this.updates, this.updates.length * 2);
+            }
+            this.updates[this.nUpdates] = table;
+            this.updates[this.nUpdates + 1] = offset;
+            this.updates[this.nUpdates + 2] = Float.floatToRawIntBits(value);
+            this.nUpdates += 3;
+        }
+
+        private static int getPartition(final int table, final int offset, final int[] tableStrides,
+                                        final int nPartitions) {
+            return (offset / tableStrides[table]) % nPartitions;
+        }
+
+        private void group(final int[] tableStrides, final int nPartitions) {
+            if (this.grouped.length < this.nUpdates) {
+                this.grouped = new int[this.updates.length];
+            }
+            this.partitionStart = new int[nPartitions + 1];
+            for (int i = 0; i < this.nUpdates; i += 3) {
+                this.partitionStart[getPartition(this.updates[i], this.updates[i + 1], tableStrides,
+                        nPartitions) + 1] += 3;
+            }
+            for (int p = 0; p < nPartitions; p++) {
+                this.partitionStart[p + 1] += this.partitionStart[p];
+            }
+            int[] cur = Arrays.copyOf(this.partitionStart, nPartitions);
+            for (int i = 0; i < this.nUpdates; i += 3) {
+                int p = getPartition(this.updates[i], this.updates[i + 1], tableStrides, nPartitions);
+                System.arraycopy(this.updates, i, this.grouped, cur[p], 3);
+                cur[p] += 3;
+            }
+        }
+
+        private void apply(final int partition, final float[][] tables) {
+            for (int i = this.partitionStart[partition]; i < this.partitionStart[partition + 1]; i += 3) {
+                int table = this.grouped[i];
+                int offset = this.grouped[i + 1];
+                float value = Float.intBitsToFloat(this.grouped[i + 2]);
+                float[] target = tables[table];
+                if (table == CACHE_ITEM_PRICES) {
+                    // price sum, max and min of an item, 0 is unset
+                    target[offset] += value;
+                    if (target[offset + 1] == 0.0f || value > target[offset + 1]) {
+                        target[offset + 1] = value;
+                    }
+                    if (target[offset + 2] == 0.0f || value < target[offset + 2]) {
+                        target[offset + 2] = value;
+                    }
+                } else {
+                    target[offset] += value;
+                }
+            }
+        }
+    }
+
+    private static final int MAX_ITEM_LAG = 2;
+    private static final int MAX_ACTION_LAG = 1;
+    // initCache tables, see CacheChunk
+    private static final int CACHE_ITEM_COUNTS = 0;
+    private static final int CACHE_USER_COUNTS = 1;
+    private static final int CACHE_ITEM_PRICES = 2;
+    private static final int CACHE_PLATFORM_COUNTS = 3;
+    private static final int CACHE_CITY_COUNTS = 4;
+    private static final int CACHE_DEVICE_COUNTS = 5;
+    private static final int CACHE_RANK_COUNTS = 6;
+    private static final int CACHE_PRICE_RANK_COUNTS = 7;
+    private static final int CACHE_CHUNK_ROWS = 256;
+    private static final int CACHE_CHUNKS_PER_CORE = 4;
+    // star classes 0-5 and rating classes 0-4, 0 is unknown
+    private static final int N_STARS = 6;
+    private static final int N_RATINGS = 5;
     private static MLTimer timer;
 
     static {
@@ -37,30 +153,76 @@ public class RecSys19FeatureExtractor {
     private MLSparseMatrix impressRUser;
     private MLSparseMatrix impressRUserNorm;
     private MLSparseMatrix impressRUserNormT;
-    private float[][] itemCounts;
-    private float[][] userCounts;
-    private float[][] itemPrices;
+    private RecSys19ItemNeighbours actionNeighbours;
+    private RecSys19ItemNeighbours impressNeighbours;
+    private MLFloatTable itemCounts;
+    private MLFloatTable userCounts;
+    private MLFloatTable itemPrices;
     private MLSparseMatrix itemProperties;
     private float[][] platformCounts;
     private float[][] cityCounts;
     private float[][] deviceCounts;
     private float[][] rankCounts;
     private float[][] priceRankCounts;
-    private MLSparseFeature propFeatMatrix;
-    private Map<Integer, String> propIndexToCat;
+    private byte[] itemStars;
+    private byte[] itemRatings;
     private int itemActionsLength = 0;
+    private int[] actionColumn;
+    private int[] userColumn;
+    private int[] platformColumn;
+    private int[] cityColumn;
+    private int[] deviceColumn;
+    private float[] stepColumn;
+    private int nFeatures;
+    private int nActionsTotal;
+    private int[] interactActionMacros;
+    private ThreadLocal<RecSys19FeatureRows> rows;
+    private ThreadLocal<RecSys19ClassStats> starStats;
+    private ThreadLocal<RecSys19ClassStats> ratingStats;
+    private ThreadLocal<RecSys19SimilarityScorer> scorer;
 
     public RecSys19FeatureExtractor(final RecSys19Data dataP,
                                     final RecSys19Config configP) throws Exception {
         this.data = dataP;
         this.config = configP;
-        this.itemProperties = this.data.itemFeatures.get(ItemFeature.properties).getFeatMatrix();
+        // star and rating classes come from properties before column
+        // selection
+        this.itemStars = this.data.getItemStars();
+        this.itemRatings = this.data.getItemRatings();
+        this.itemProperties = this.data.getItemFeature(ItemFeature.properties).getFeatMatrix();
         MLFeatureTransform colSelector = new MLFeatureTransform.ColSelectorTransform(1_000);
         colSelector.apply(this.itemProperties);
-        this.propFeatMatrix = this.data.itemFeatures.get(ItemFeature.properties);
-        this.propIndexToCat = this.propFeatMatrix.getIndexToCat();
-        this.initMatrices();
-        this.initCache();
+        this.actionColumn = this.data.getIndexColumn(SessionFeature.action_type);
+        this.userColumn = this.data.getIndexColumn(SessionFeature.user_id);
+        this.platformColumn = this.data.getIndexColumn(SessionFeature.platform);
+        this.cityColumn = this.data.getIndexColumn(SessionFeature.city);
+        this.deviceColumn = this.data.getIndexColumn(SessionFeature.device);
+        this.stepColumn = this.data.getValueColumn(SessionFeature.step);
+        this.starStats = ThreadLocal.withInitial(() -> new RecSys19ClassStats(N_STARS));
+        this.ratingStats = ThreadLocal.withInitial(() -> new RecSys19ClassStats(N_RATINGS));
+        if (this.config.featureStorePath == null) {
+            this.initMatrices();
+            this.initCache();
+        } else {
+            RecSys19FeatureStore featureStore = new RecSys19FeatureStore(this.config.featureStorePath, this.data,
+                    this.config);
+            if (featureStore.exists() == true) {
+                this.readFeatureStore(featureStore.getStore());
+            } else if (this.config.requireFeatureStore == true) {
+                throw new IOException("feature store entry " + featureStore.getStore().getPath()
+                        + " doesn't exist, build it with the features run mode first");
+            } else {
+                this.initMatrices();
+                this.initCache();
+                featureStore.create();
+                this.writeFeatureStore(featureStore.getStore());
+                featureStore.commit();
+            }
+        }
+        this.initActions();
+        this.nFeatures = this.getNFeatures();
+        this.rows = ThreadLocal.withInitial(() -> new RecSys19FeatureRows(this.nFeatures));
+        this.scorer = ThreadLocal.withInitial(() -> new RecSys19SimilarityScorer(this.actionRUserNormT.getNCols()));
     }
 
     private void initCache() {
@@ -73,162 +235,94 @@ public class RecSys19FeatureExtractor {
                 RecSys19Data.SEARCH_FOR_ITEM_ACTION
         };
         this.itemActionsLength = itemActions.length;
-        Map<Integer, Integer> actionToIndex = new HashMap();
+        int nActionsTotal = this.data.getSessionFeature(SessionFeature.action_type).getFeatMatrix().getNCols();
+        int[] actionToIndex = new int[nActionsTotal];
+        Arrays.fill(actionToIndex, -1);
         for (int i = 0; i < itemActions.length; i++) {
-            Integer action = RecSys19Helper.getActionIndex(itemActions[i], this.data);
-            actionToIndex.put(action, i);
-        }
-        int nActionsTotal = this.data.sessionFeatures.get(SessionFeature.action_type).getFeatMatrix().getNCols();
-        this.itemCounts = new float[this.data.itemIdToIndex.size()][itemActions.length + 15];
-        this.userCounts = new float[this.data.userToSessionStart.size()][nActionsTotal + 3];
-        this.itemPrices = new float[this.data.itemIdToIndex.size()][3];
-        this.platformCounts = new float[this.data.sessionFeatures.get(SessionFeature.platform).getFeatMatrix().getNCols()][2];
-        this.cityCounts = new float[this.data.sessionFeatures.get(SessionFeature.city).getFeatMatrix().getNCols()][5];
-        this.deviceCounts = new float[this.data.sessionFeatures.get(SessionFeature.device).getFeatMatrix().getNCols()][2];
+            actionToIndex[RecSys19Helper.getActionIndex(itemActions[i], this.data)] = i;
+        }
+        int nItems = this.data.getItemIdToIndex().size();
+        this.itemCounts = new MLFloatTable(nItems, getItemCountsColNames(itemActions));
+        this.userCounts = new MLFloatTable(this.data.getSessions().getNUsers(), this.getUserCountsColNames(nActionsTotal));
+        this.itemPrices = new MLFloatTable(nItems, new String[]{"priceMean", "priceMax", "priceMin"});
+        this.platformCounts = new float[this.data.getSessionFeature(SessionFeature.platform).getFeatMatrix().getNCols()][2];
+        this.cityCounts = new float[this.data.getSessionFeature(SessionFeature.city).getFeatMatrix().getNCols()][5];
+        this.deviceCounts = new float[this.data.getSessionFeature(SessionFeature.device).getFeatMatrix().getNCols()][2];
         this.rankCounts = new float[25][6];
         this.priceRankCounts = new float[25][6];
-        IntStream.range(0, this.data.referenceItems.length).parallel().forEach(index -> {
-            boolean isSkipIndex = RecSys19Helper.isSkipIndex(index, this.config, this.data);
-            int action = RecSys19Helper.getIndex(index, SessionFeature.action_type, this.data);
-            int userIndex = RecSys19Helper.getIndex(index, SessionFeature.user_id, this.data);
-            int platformIndex = RecSys19Helper.getIndex(index, SessionFeature.platform, this.data);
-            int cityIndex = RecSys19Helper.getIndex(index, SessionFeature.city, this.data);
-            int deviceIndex = RecSys19Helper.getIndex(index, SessionFeature.device, this.data);
-            if (isSkipIndex == false) {
-                synchronized (this.userCounts[userIndex]) {
-                    this.userCounts[userIndex][action]++;
-                }
-            }
-            Integer actionIndex = actionToIndex.get(action);
-            if (actionIndex == null) {
-                return;
-            }
-            int itemIndex = this.data.referenceItems[index];
-            if (itemIndex >= 0 && isSkipIndex == false) {
-                synchronized (this.itemCounts[itemIndex]) {
-                    this.itemCounts[itemIndex][actionIndex]++;
-                }
-            }
-            int[] impressions = this.data.impressions[index];
-            if (impressions != null) {
-                int[] prices = this.data.prices[index];
-                int[] priceRanking = RecSys19Helper.argsort(prices, true, true);
-                int[] priceRankingAbove = RecSys19Helper.getPriceRankAbove(prices);
-                int[] stars = RecSys19Helper.getStars(impressions, this.propFeatMatrix, this.propIndexToCat);
-                int[] ratings = RecSys19Helper.getRatings(impressions, this.propFeatMatrix, this.propIndexToCat);
-                float medianPrice = RecSys19Helper.computeMedianPrice(prices, priceRanking);
-                float[] ratingCount = new float[5];
-                for (int i = 0; i < ratings.length; i++) {
-                    ratingCount[ratings[i]]++;
-                }
-                float[] starCount = new float[6];
-                for (int i = 0; i < stars.length; i++) {
-                    starCount[stars[i]]++;
+
+        // rows are split into small chunks that log their updates in row
+        // order in parallel, a wave of chunks at a time to bound memory.
+        // Updates are then applied in parallel by partitions of table rows,
+        // each partition going through the chunks in order, so every table
+        // cell gets its updates in row order and float sums are the same as
+        // a single sequential pass on any number of cores
+        final int nRows = this.data.getReferenceItems().length;
+        final int nCores = Runtime.getRuntime().availableProcessors();
+        final int nPartitions = CACHE_CHUNKS_PER_CORE * nCores;
+        final float[][] tables = new float[8][];
+        tables[CACHE_ITEM_COUNTS] = this.itemCounts.getValues();
+        tables[CACHE_USER_COUNTS] = this.userCounts.getValues();
+        tables[CACHE_ITEM_PRICES] = this.itemPrices.getValues();
+        tables[CACHE_PLATFORM_COUNTS] = new float[this.platformCounts.length * 2];
+        tables[CACHE_CITY_COUNTS] = new float[this.cityCounts.length * 5];
+        tables[CACHE_DEVICE_COUNTS] = new float[this.deviceCounts.length * 2];
+        tables[CACHE_RANK_COUNTS] = new float[this.rankCounts.length * 6];
+        tables[CACHE_PRICE_RANK_COUNTS] = new float[this.priceRankCounts.length * 6];
+        final int[] tableStrides = new int[]{this.itemCounts.getNCols(), this.userCounts.getNCols(), 3, 1, 1, 1, 1, 1};
+        CacheChunk[] chunks = new CacheChunk[CACHE_CHUNKS_PER_CORE * nCores];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new CacheChunk();
+        }
+        final int waveRows = chunks.length * CACHE_CHUNK_ROWS;
+        for (int waveStart = 0; waveStart < nRows; waveStart += waveRows) {
+            final int start = waveStart;
+            final int nChunks = Math.min(chunks.length, (nRows - start + CACHE_CHUNK_ROWS - 1) / CACHE_CHUNK_ROWS);
+            IntStream.range(0, nChunks).parallel().forEach(chunkIndex -> {
+                CacheChunk chunk = chunks[chunkIndex];
+                chunk.nUpdates = 0;
+                int chunkStart = start + chunkIndex * CACHE_CHUNK_ROWS;
+                int chunkEnd = Math.min(nRows, chunkStart + CACHE_CHUNK_ROWS);
+                for (int index = chunkStart; index < chunkEnd; index++) {
+                    this.addCacheRow(index, chunk, actionToIndex, nActionsTotal);
                 }
-                HashMap<Integer, Integer[]> idxStarsMap = RecSys19Helper.getIdxStarMap(impressions, stars);
-                HashMap<Integer, Integer[]> idxRatingsMap = RecSys19Helper.getIdxRatingMap(impressions, ratings);
-                HashMap<String, float[]> priceStatsStarsMap = RecSys19Helper.getPriceStatsStarsMap(idxStarsMap, prices, priceRanking);
-                float[] priceAverageStar = priceStatsStarsMap.get("priceAverageStar");
-                float[] priceRankAverageStar = priceStatsStarsMap.get("priceRankAverageStar");
-                HashMap<String, float[]> priceStatsRatingsMap = RecSys19Helper.getPriceStatsRatingsMap(idxRatingsMap, prices, priceRanking);
-                float[] priceAverageRating = priceStatsRatingsMap.get("priceAverageRating");
-                float[] priceRankAverageRating = priceStatsRatingsMap.get("priceRankAverageRating");
-                HashMap<String, HashMap<Integer, Integer>> starRankLocalMaps = RecSys19Helper.getStarRankingMaps(idxStarsMap, prices);
-                HashMap<Integer, Integer> rankLocalStarsMap = starRankLocalMaps.get("rankLocalStars");
-                HashMap<Integer, Integer> priceRankLocalStarsMap = starRankLocalMaps.get("priceRankLocalStars");
-                HashMap<String, HashMap<Integer, Integer>> ratingRankLocalMaps = RecSys19Helper.getRatingRankingMaps(idxRatingsMap, prices);
-                HashMap<Integer, Integer> rankLocalRatingsMap = ratingRankLocalMaps.get("rankLocalRatings");
-                HashMap<Integer, Integer> priceRankLocalRatingsMap = ratingRankLocalMaps.get("priceRankLocalRatings");
-                for (int i = 0; i < impressions.length; i++) {
-                    synchronized (this.itemCounts[impressions[i]]) {
-                        this.itemCounts[impressions[i]][itemActions.length]++;
-                        this.itemCounts[impressions[i]][itemActions.length + 1] += (1.0f + i);
-                        this.itemCounts[impressions[i]][itemActions.length + 2] += priceRanking[i];
-                        this.itemCounts[impressions[i]][itemActions.length + 3] += priceRankingAbove[i];
-                        this.itemCounts[impressions[i]][itemActions.length + 4] += rankLocalStarsMap.get(i) / starCount[stars[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 5] += priceRankLocalStarsMap.get(i) / starCount[stars[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 6] += rankLocalRatingsMap.get(i) / ratingCount[ratings[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 7] += priceRankLocalRatingsMap.get(i) / ratingCount[ratings[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 8] += priceRanking[i] - priceRankAverageStar[stars[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 9] += priceRankAverageStar[stars[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 10] += priceRanking[i] - priceRankAverageRating[ratings[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 11] += priceRankAverageRating[ratings[i]];
-                        this.itemCounts[impressions[i]][itemActions.length + 12] += prices[i] - medianPrice;
-                        this.itemCounts[impressions[i]][itemActions.length + 13] += medianPrice;
-                    }
-                    synchronized (this.rankCounts[i]) {
-                        this.rankCounts[i][0]++;
-                        this.rankCounts[i][1] += priceRanking[i];
-                        this.rankCounts[i][2] += prices[i] - priceAverageStar[stars[i]];
-                        this.rankCounts[i][3] += prices[i] - priceAverageRating[ratings[i]];
-                        this.rankCounts[i][4] += stars[i];
-                        this.rankCounts[i][5] += ratings[i];
-                    }
-                    synchronized (this.priceRankCounts[priceRanking[i]-1]) {
-                        this.priceRankCounts[priceRanking[i]-1][0]++;
-                        this.priceRankCounts[priceRanking[i]-1][1] += (1.0f + i);
-                        this.priceRankCounts[priceRanking[i]-1][2] += prices[i] - priceAverageStar[stars[i]];
-                        this.priceRankCounts[priceRanking[i]-1][3] += prices[i] - priceAverageRating[ratings[i]];
-                        this.priceRankCounts[priceRanking[i]-1][4] += stars[i];
-                        this.priceRankCounts[priceRanking[i]-1][5] += ratings[i];
-                    }
-                    synchronized (this.platformCounts[platformIndex]) {
-                        if (i < 5) {
-                            this.platformCounts[platformIndex][0]++;
-                            this.platformCounts[platformIndex][1] += priceRanking[i];
-                        }
-                    }
-                    synchronized (this.cityCounts[cityIndex]) {
-                        if (i < 5) {
-                            this.cityCounts[cityIndex][0]++;
-                            this.cityCounts[cityIndex][1] += priceRanking[i];
-                            this.cityCounts[cityIndex][2] += prices[i];
-                            this.cityCounts[cityIndex][3] += stars[i];
-                            this.cityCounts[cityIndex][4] += ratings[i];
-                        }
-                    }
-                    synchronized (this.deviceCounts[deviceIndex]) {
-                        if (i < 5) {
-                            this.deviceCounts[deviceIndex][0]++;
-                            this.deviceCounts[deviceIndex][1] += priceRanking[i];
-                        }
-                    }
-                    synchronized (this.itemPrices[impressions[i]]) {
-                        this.itemPrices[impressions[i]][0] += prices[i];
-                        if (this.itemPrices[impressions[i]][1] == 0.0f || prices[i] > this.itemPrices[impressions[i]][1]) {
-                            this.itemPrices[impressions[i]][1] = prices[i];
-                        }
-                        if (this.itemPrices[impressions[i]][2] == 0.0f || prices[i] < this.itemPrices[impressions[i]][2]) {
-                            this.itemPrices[impressions[i]][2] = prices[i];
-                        }
-                    }
-                    if (itemIndex == impressions[i] && isSkipIndex == false) {
-                        synchronized (this.userCounts[userIndex]) {
-                            this.userCounts[userIndex][nActionsTotal]++;
-                            this.userCounts[userIndex][nActionsTotal + 1] += (1.0 + i);
-                            this.userCounts[userIndex][nActionsTotal + 2] += priceRanking[i];
-                        }
-                    }
+                chunk.group(tableStrides, nPartitions);
+            });
+            IntStream.range(0, nPartitions).parallel().forEach(partition -> {
+                for (int i = 0; i < nChunks; i++) {
+                    chunks[i].apply(partition, tables);
                 }
-            }
-        });
-        for (int i = 0; i < this.itemCounts.length; i++) {
+            });
+        }
+        timer.toc("initCache " + nRows + " rows accumulated");
+        copyRows(tables[CACHE_PLATFORM_COUNTS], this.platformCounts);
+        copyRows(tables[CACHE_CITY_COUNTS], this.cityCounts);
+        copyRows(tables[CACHE_DEVICE_COUNTS], this.deviceCounts);
+        copyRows(tables[CACHE_RANK_COUNTS], this.rankCounts);
+        copyRows(tables[CACHE_PRICE_RANK_COUNTS], this.priceRankCounts);
+        float[] itemPrices = this.itemPrices.getValues();
+        float[] itemCounts = this.itemCounts.getValues();
+        int itemStride = this.itemCounts.getNCols();
+        for (int i = 0; i < nItems; i++) {
+            int offset = this.itemCounts.getRowStart(i) + itemActions.length;
             MLSparseVector row = this.actionRUserNormT.getRow(i, false);
             if (row != null) {
-                this.itemCounts[i][this.itemCounts[i].length - 1] = row.getIndexes().length;
+                itemCounts[this.itemCounts.getRowStart(i) + itemStride - 1] = row.getIndexes().length;
             }
-            float count = this.itemCounts[i][itemActions.length];
+            float count = itemCounts[offset];
             if (count > 1) {
                 for (int j = 1; j <= 13; j++) {
-                    this.itemCounts[i][itemActions.length + j] /= count;
+                    itemCounts[offset + j] /= count;
                 }
             }
         }
-        for (int i = 0; i < this.userCounts.length; i++) {
-            float count = this.userCounts[i][nActionsTotal];
+        float[] userCounts = this.userCounts.getValues();
+        for (int i = 0; i < this.userCounts.getNRows(); i++) {
+            int offset = this.userCounts.getRowStart(i) + nActionsTotal;
+            float count = userCounts[offset];
             if (count > 1) {
-                this.userCounts[i][nActionsTotal + 1] /= count;
-                this.userCounts[i][nActionsTotal + 2] /= count;
+                userCounts[offset + 1] /= count;
+                userCounts[offset + 2] /= count;
             }
         }
         for (int i = 0; i < this.rankCounts.length; i++) {
@@ -271,15 +365,162 @@ public class RecSys19FeatureExtractor {
                 }
             }
         }
-        for (int i = 0; i < this.itemPrices.length; i++) {
-            float count = this.itemCounts[i][itemActions.length + 1];
+        for (int i = 0; i < nItems; i++) {
+            float count = this.itemCounts.get(i, itemActions.length + 1);
             if (count > 1) {
-                this.itemPrices[i][0] /= count;
+                itemPrices[this.itemPrices.getRowStart(i)] /= count;
             }
         }
         timer.toc("initCache done");
     }
 
+    private static String[] getItemCountsColNames(final String[] itemActions) {
+        String[] colNames = new String[itemActions.length + 15];
+        System.arraycopy(itemActions, 0, colNames, 0, itemActions.length);
+        String[] impressionColNames = new String[]{
+                "impressions",
+                "rank",
+                "priceRank",
+                "priceRankAbove",
+                "starRankLocal",
+                "starPriceRankLocal",
+                "ratingRankLocal",
+                "ratingPriceRankLocal",
+                "priceRankVsStar",
+                "starPriceRank",
+                "priceRankVsRating",
+                "ratingPriceRank",
+                "priceVsMedian",
+                "medianPrice",
+                "actionUsers"
+        };
+        System.arraycopy(impressionColNames, 0, colNames, itemActions.length, impressionColNames.length);
+        return colNames;
+    }
+
+    private String[] getUserCountsColNames(final int nActionsTotal) {
+        MLStringDictionary actions = this.data.getSessionFeature(SessionFeature.action_type).getCatToIndex();
+        String[] colNames = new String[nActionsTotal + 3];
+        for (int i = 0; i < nActionsTotal; i++) {
+            String action = actions.getString(i);
+            colNames[i] = action == null ? "action" + i : action;
+        }
+        colNames[nActionsTotal] = "clickouts";
+        colNames[nActionsTotal + 1] = "clickoutRank";
+        colNames[nActionsTotal + 2] = "clickoutPriceRank";
+        return colNames;
+    }
+
+    private void addCacheRow(final int index, final CacheChunk chunk, final int[] actionToIndex,
+                             final int nActionsTotal) {
+        boolean isSkipIndex = RecSys19Helper.isSkipIndex(index, this.config, this.data);
+        int action = this.actionColumn[index];
+        int userOffset = this.userColumn[index] * this.userCounts.getNCols();
+        int platformOffset = this.platformColumn[index] * 2;
+        int cityOffset = this.cityColumn[index] * 5;
+        int deviceOffset = this.deviceColumn[index] * 2;
+        if (isSkipIndex == false) {
+            chunk.add(CACHE_USER_COUNTS, userOffset + action, 1.0f);
+        }
+        int actionIndex = actionToIndex[action];
+        if (actionIndex < 0) {
+            return;
+        }
+        int itemIndex = this.data.getReferenceItems()[index];
+        if (itemIndex >= 0 && isSkipIndex == false) {
+            chunk.add(CACHE_ITEM_COUNTS, itemIndex * this.itemCounts.getNCols() + actionIndex, 1.0f);
+        }
+        int[] impressions = this.data.getImpressions().getRow(index);
+        if (impressions != null) {
+            int[] prices = this.data.getPrices().getRow(index);
+            int[] priceRanking = RecSys19Helper.argsort(prices, true, true);
+            int[] priceRankingAbove = RecSys19Helper.getPriceRankAbove(prices);
+            int[] stars = RecSys19Helper.getStars(impressions, this.itemStars);
+            int[] ratings = RecSys19Helper.getRatings(impressions, this.itemRatings);
+            float medianPrice = RecSys19Helper.computeMedianPrice(prices, priceRanking);
+            float[] ratingCount = new float[5];
+            for (int i = 0; i < ratings.length; i++) {
+                ratingCount[ratings[i]]++;
+            }
+            float[] starCount = new float[6];
+            for (int i = 0; i < stars.length; i++) {
+                starCount[stars[i]]++;
+            }
+            RecSys19ClassStats starStats = this.starStats.get();
+            starStats.compute(stars, prices, priceRanking, impressions.length);
+            float[] priceAverageStar = starStats.priceAverage;
+            float[] priceRankAverageStar = starStats.priceRankAverage;
+            RecSys19ClassStats ratingStats = this.ratingStats.get();
+            ratingStats.compute(ratings, prices, priceRanking, impressions.length);
+            float[] priceAverageRating = ratingStats.priceAverage;
+            float[] priceRankAverageRating = ratingStats.priceRankAverage;
+            int itemStride = this.itemCounts.getNCols();
+            for (int i = 0; i < impressions.length; i++) {
+                int itemOffset = impressions[i] * itemStride + this.itemActionsLength;
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset, 1.0f);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 1, (1.0f + i));
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 2, priceRanking[i]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 3, priceRankingAbove[i]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 4, starStats.rankLocal[i] / starCount[stars[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 5, starStats.priceRankLocal[i] / starCount[stars[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 6, ratingStats.rankLocal[i] / ratingCount[ratings[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 7, ratingStats.priceRankLocal[i] / ratingCount[ratings[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 8, priceRanking[i] - priceRankAverageStar[stars[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 9, priceRankAverageStar[stars[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 10, priceRanking[i] - priceRankAverageRating[ratings[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 11, priceRankAverageRating[ratings[i]]);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 12, prices[i] - medianPrice);
+                chunk.add(CACHE_ITEM_COUNTS, itemOffset + 13, medianPrice);
+
+                int rankOffset = i * 6;
+                chunk.add(CACHE_RANK_COUNTS, rankOffset, 1.0f);
+                chunk.add(CACHE_RANK_COUNTS, rankOffset + 1, priceRanking[i]);
+                chunk.add(CACHE_RANK_COUNTS, rankOffset + 2, prices[i] - priceAverageStar[stars[i]]);
+                chunk.add(CACHE_RANK_COUNTS, rankOffset + 3, prices[i] - priceAverageRating[ratings[i]]);
+                chunk.add(CACHE_RANK_COUNTS, rankOffset + 4, stars[i]);
+                chunk.add(CACHE_RANK_COUNTS, rankOffset + 5, ratings[i]);
+
+                int priceRankOffset = (priceRanking[i] - 1) * 6;
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset, 1.0f);
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset + 1, (1.0f + i));
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset + 2, prices[i] - priceAverageStar[stars[i]]);
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset + 3, prices[i] - priceAverageRating[ratings[i]]);
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset + 4, stars[i]);
+                chunk.add(CACHE_PRICE_RANK_COUNTS, priceRankOffset + 5, ratings[i]);
+
+                if (i < 5) {
+                    chunk.add(CACHE_PLATFORM_COUNTS, platformOffset, 1.0f);
+                    chunk.add(CACHE_PLATFORM_COUNTS, platformOffset + 1, priceRanking[i]);
+
+                    chunk.add(CACHE_CITY_COUNTS, cityOffset, 1.0f);
+                    chunk.add(CACHE_CITY_COUNTS, cityOffset + 1, priceRanking[i]);
+                    chunk.add(CACHE_CITY_COUNTS, cityOffset + 2, prices[i]);
+                    chunk.add(CACHE_CITY_COUNTS, cityOffset + 3, stars[i]);
+                    chunk.add(CACHE_CITY_COUNTS, cityOffset + 4, ratings[i]);
+
+                    chunk.add(CACHE_DEVICE_COUNTS, deviceOffset, 1.0f);
+                    chunk.add(CACHE_DEVICE_COUNTS, deviceOffset + 1, priceRanking[i]);
+                }
+
+                chunk.add(CACHE_ITEM_PRICES, impressions[i] * 3, prices[i]);
+                if (itemIndex == impressions[i] && isSkipIndex == false) {
+                    chunk.add(CACHE_USER_COUNTS, userOffset + nActionsTotal, 1.0f);
+                    chunk.add(CACHE_USER_COUNTS, userOffset + nActionsTotal + 1, (1.0f + i));
+                    chunk.add(CACHE_USER_COUNTS, userOffset + nActionsTotal + 2, priceRanking[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a flat row major table into the rows of target.
+     */
+    private static void copyRows(final float[] table, final float[][] target) {
+        for (int i = 0; i < target.length; i++) {
+            System.arraycopy(table, i * target[i].length, target[i], 0, target[i].length);
+        }
+    }
+
     private void initMatrices() {
         this.actionRUser = RecSys19Helper.createUserMatrix(new String[]{
                         RecSys19Data.CLICKOUT_ITEM_ACTION,
@@ -299,254 +540,327 @@ public class RecSys19FeatureExtractor {
         impressRUserNorm.applyRowNorm(impressRUserNorm.getRowNorm(2));
         impressRUserNorm.applyColNorm(impressRUserNorm.getColNorm(2));
         this.impressRUserNormT = this.impressRUserNorm.transpose();
+        // without a feature store the index would be rebuilt by every stage
+        if (this.config.nItemNeighbours > 0 && this.config.featureStorePath != null) {
+            this.actionNeighbours = RecSys19ItemNeighbours.build(this.actionRUserNorm, this.actionRUserNormT,
+                    this.config.nItemNeighbours);
+            this.impressNeighbours = RecSys19ItemNeighbours.build(this.impressRUserNorm, this.impressRUserNormT,
+                    this.config.nItemNeighbours);
+        }
         timer.toc("initMatrices done");
     }
 
-    public List<MLSparseVector> getItemFeatures(final int itemIndex) {
-        List<MLSparseVector> feats = new LinkedList();
-        feats.add(new MLDenseVector(this.itemCounts[itemIndex]).toSparse());
-        feats.add(this.itemProperties.getRow(itemIndex, true));
-       return feats;
-    }
-
-    public List<MLSparseVector> getUserFeatures(final int userIndex) {
-        List<MLSparseVector> feats = new LinkedList();
-        float[] userCount = this.userCounts[userIndex].clone();
-        feats.add(new MLDenseVector(userCount).toSparse());
-        return feats;
+    private void readFeatureStore(final MLColumnStore store) throws IOException {
+        this.actionRUser = RecSys19FeatureStore.readMatrix(store, "actionRUser");
+        this.actionRUserNorm = RecSys19FeatureStore.readMatrix(store, "actionRUserNorm");
+        this.actionRUserNormT = RecSys19FeatureStore.readMatrix(store, "actionRUserNormT");
+        this.impressRUser = RecSys19FeatureStore.readMatrix(store, "impressRUser");
+        this.impressRUserNorm = RecSys19FeatureStore.readMatrix(store, "impressRUserNorm");
+        this.impressRUserNormT = RecSys19FeatureStore.readMatrix(store, "impressRUserNormT");
+        if (this.config.nItemNeighbours > 0) {
+            this.actionNeighbours = RecSys19ItemNeighbours.fromColumns(store, "actionNeighbours");
+            this.impressNeighbours = RecSys19ItemNeighbours.fromColumns(store, "impressNeighbours");
+        }
+        this.itemCounts = MLFloatTable.fromColumns(store, "itemCounts");
+        this.userCounts = MLFloatTable.fromColumns(store, "userCounts");
+        this.itemPrices = MLFloatTable.fromColumns(store, "itemPrices");
+        this.platformCounts = RecSys19FeatureStore.readTable(store, "platformCounts");
+        this.cityCounts = RecSys19FeatureStore.readTable(store, "cityCounts");
+        this.deviceCounts = RecSys19FeatureStore.readTable(store, "deviceCounts");
+        this.rankCounts = RecSys19FeatureStore.readTable(store, "rankCounts");
+        this.priceRankCounts = RecSys19FeatureStore.readTable(store, "priceRankCounts");
+        this.itemActionsLength = store.readInts("itemActionsLength")[0];
+        timer.toc("feature store loaded from " + store.getPath());
     }
 
-    public List<MLSparseVector> getUserItemFeatures(final int targetUserIndex,
-                                                    final int targetItemIndex) {
-        List<MLSparseVector> feats = new LinkedList();
-        return feats;
+    private void writeFeatureStore(final MLColumnStore store) throws IOException {
+        RecSys19FeatureStore.writeMatrix(store, "actionRUser", this.actionRUser);
+        RecSys19FeatureStore.writeMatrix(store, "actionRUserNorm", this.actionRUserNorm);
+        RecSys19FeatureStore.writeMatrix(store, "actionRUserNormT", this.actionRUserNormT);
+        RecSys19FeatureStore.writeMatrix(store, "impressRUser", this.impressRUser);
+        RecSys19FeatureStore.writeMatrix(store, "impressRUserNorm", this.impressRUserNorm);
+        RecSys19FeatureStore.writeMatrix(store, "impressRUserNormT", this.impressRUserNormT);
+        if (this.actionNeighbours != null) {
+            this.actionNeighbours.toColumns(store, "actionNeighbours");
+            this.impressNeighbours.toColumns(store, "impressNeighbours");
+        }
+        this.itemCounts.toColumns(store, "itemCounts");
+        this.userCounts.toColumns(store, "userCounts");
+        this.itemPrices.toColumns(store, "itemPrices");
+        RecSys19FeatureStore.writeTable(store, "platformCounts", this.platformCounts);
+        RecSys19FeatureStore.writeTable(store, "cityCounts", this.cityCounts);
+        RecSys19FeatureStore.writeTable(store, "deviceCounts", this.deviceCounts);
+        RecSys19FeatureStore.writeTable(store, "rankCounts", this.rankCounts);
+        RecSys19FeatureStore.writeTable(store, "priceRankCounts", this.priceRankCounts);
+        store.writeInts("itemActionsLength", new int[]{this.itemActionsLength});
     }
 
-    public List<MLSparseVector> getSessionFeatures(final int targetUserIndex,
-                                                   final int targetItemIndex,
-                                                   final int targetSessionStart,
-                                                   final int targetSessionEnd) {
-        List<MLSparseVector> feats = new LinkedList();
-        int nActionsTotal = this.data.sessionFeatures.get(SessionFeature.action_type).getFeatMatrix().getNCols();
-        float[][] actionFeats = new float[nActionsTotal][];
-        String[] actions = new String[]{
+    private void initActions() {
+        this.nActionsTotal = this.data.getSessionFeature(SessionFeature.action_type).getFeatMatrix().getNCols();
+        // clickouts and other item actions counted by
+        // addColdWarmSessionStats(), -1 for actions that are not counted
+        String[] actionNames = new String[]{
                 RecSys19Data.CLICKOUT_ITEM_ACTION,
                 RecSys19Data.INTERACTION_ITEM_RATING_ACTION,
                 RecSys19Data.INTERACTION_ITEM_INFO_ACTION,
                 RecSys19Data.INTERACTION_ITEM_IMAGE_ACTION,
                 RecSys19Data.INTERACTION_ITEM_DEALS_ACTION,
-                RecSys19Data.SEARCH_FOR_ITEM_ACTION};
-        for (String itemAction : actions) {
-            int actionIndex = RecSys19Helper.getActionIndex(itemAction, this.data);
-            actionFeats[actionIndex] = new float[2];
-        }
-        int[] targetImpressions = this.data.impressions[targetSessionEnd];
-        int[] targetPrices = this.data.prices[targetSessionEnd];
-        int[] targetPriceRank = RecSys19Helper.argsort(targetPrices, true, true);
-        int[] targetPriceRankAbove = RecSys19Helper.getPriceRankAbove(targetPrices);
-        int[] targetStars = RecSys19Helper.getStars(targetImpressions, this.propFeatMatrix, this.propIndexToCat);
-        int[] targetRatings = RecSys19Helper.getRatings(targetImpressions, this.propFeatMatrix, this.propIndexToCat);
-        int[] targetStarRank = RecSys19Helper.argsort(targetStars, false, true);
-        int[] targetRatingRank = RecSys19Helper.argsort(targetRatings, false, true);
-        int targetItemRank = 0;
-        int targetItemPrice = 0;
-        int targetItemPriceRank = 0;
-        int targetItemPriceRankAbove = 0;
-        for (int i = 0; i < targetImpressions.length; i++) {
-            if (targetImpressions[i] == targetItemIndex) {
-                targetItemRank = 1 + i;
-                targetItemPrice = targetPrices[i];
-                targetItemPriceRank = targetPriceRank[i];
-                targetItemPriceRankAbove = targetPriceRankAbove[i];
-                break;
+                RecSys19Data.SEARCH_FOR_ITEM_ACTION,
+        };
+        this.interactActionMacros = new int[this.nActionsTotal];
+        Arrays.fill(this.interactActionMacros, -1);
+        for (int i = 0; i < actionNames.length; i++) {
+            this.interactActionMacros[RecSys19Helper.getActionIndex(actionNames[i], this.data)] = i == 0 ? 0 : 1;
+        }
+    }
+
+    /**
+     * @return number of columns of a feature row, sum of the lengths of all
+     * feature blocks in the order they are added in extractFeatureRows()
+     */
+    public int getNFeatures() {
+        int nFeatures = 0;
+        // user features
+        nFeatures += this.userCounts.getNCols();
+        // item features
+        nFeatures += this.itemCounts.getNCols();
+        nFeatures += this.itemProperties.getNCols();
+        // session features
+        nFeatures += 3 + 3 + 2 + 2 + MAX_ITEM_LAG * 8 + MAX_ACTION_LAG * 2;
+        // impression features
+        nFeatures += 13;
+        nFeatures += 6;
+        nFeatures += this.itemCounts.getNCols();
+        nFeatures += 4;
+        nFeatures += 16;
+        nFeatures += 6;
+        nFeatures += 8;
+        nFeatures += 6;
+        nFeatures += 8;
+        nFeatures += this.rankCounts[0].length;
+        nFeatures += this.priceRankCounts[0].length;
+        nFeatures += this.platformCounts[0].length;
+        nFeatures += this.cityCounts[0].length;
+        nFeatures += this.deviceCounts[0].length;
+        nFeatures += this.data.getSessionFeature(SessionFeature.device).getFeatMatrix().getNCols();
+        return nFeatures;
+    }
+
+    public void addItemFeatures(final RecSys19FeatureRows row,
+                                final int itemIndex) {
+        row.add(this.itemCounts.getValues(), this.itemCounts.getRowStart(itemIndex), this.itemCounts.getNCols());
+        row.add(this.itemProperties.getRow(itemIndex, true));
+    }
+
+    public void addUserFeatures(final RecSys19FeatureRows row,
+                                final int userIndex) {
+        row.add(this.userCounts.getValues(), this.userCounts.getRowStart(userIndex), this.userCounts.getNCols());
+    }
+
+    public void addUserItemFeatures(final RecSys19FeatureRows row,
+                                    final int targetUserIndex,
+                                    final int targetItemIndex) {
+    }
+
+    /**
+     * Computes the values of the clickout at targetIndex that are shared by
+     * all of its impressions.
+     */
+    public ClickoutContext createClickoutContext(final int targetIndex) {
+        ClickoutContext context = new ClickoutContext();
+        int[] impressions = this.data.getImpressions().getRow(targetIndex);
+        int[] prices = this.data.getPrices().getRow(targetIndex);
+        int sessionStart = RecSys19Helper.getSessionStartIndex(targetIndex, this.data);
+        context.targetIndex = targetIndex;
+        context.sessionStart = sessionStart;
+        context.impressions = impressions;
+        context.prices = prices;
+        context.priceRanking = RecSys19Helper.argsort(prices, true, true);
+        context.priceRankingAbove = RecSys19Helper.getPriceRankAbove(prices);
+        context.stars = RecSys19Helper.getStars(impressions, this.itemStars);
+        context.ratings = RecSys19Helper.getRatings(impressions, this.itemRatings);
+        context.firstPositions = new int[impressions.length];
+        for (int i = 0; i < impressions.length; i++) {
+            int first = 0;
+            while (impressions[first] != impressions[i]) {
+                first++;
             }
+            context.firstPositions[i] = first;
         }
-        feats.add(new MLDenseVector(new float[]{
-                this.itemPrices[targetItemIndex][0] - targetItemPrice,
-                this.itemPrices[targetItemIndex][1] - targetItemPrice,
-                this.itemPrices[targetItemIndex][2] - targetItemPrice
-        }).toSparse());
-        feats.add(new MLDenseVector(new float[]{
-                this.itemCounts[targetItemIndex][this.itemActionsLength + 1] - targetItemRank,
-                this.itemCounts[targetItemIndex][this.itemActionsLength + 2] - targetItemPriceRank,
-                this.itemCounts[targetItemIndex][this.itemActionsLength + 3] - targetItemPriceRankAbove,
-        }).toSparse());
-        float[] sameImpress = new float[2];
-        for (int index = targetSessionStart; index < targetSessionEnd; index++) {
-            int itemIndex = this.data.referenceItems[index];
+
+        int[] referenceItems = this.data.getReferenceItems();
+        long[] timeStamps = this.data.getTimeStamps();
+        context.sameImpressCounts = new int[impressions.length];
+        for (int index = sessionStart; index < targetIndex; index++) {
+            int itemIndex = referenceItems[index];
             if (itemIndex >= 0) {
-                if (RecSys19Helper.sameImpressions(targetImpressions, this.data.impressions[index], true) == true) {
-                    sameImpress[0]++;
-                    if (this.data.referenceItems[index] == targetItemIndex) {
-                        sameImpress[1]++;
+                if (RecSys19Helper.sameImpressions(impressions, this.data.getImpressions(), index, true) == true) {
+                    context.nSameImpress++;
+                    for (int i = 0; i < impressions.length; i++) {
+                        if (impressions[i] == itemIndex) {
+                            context.sameImpressCounts[i]++;
+                        }
                     }
                 }
             }
         }
-        feats.add(new MLDenseVector(sameImpress).toSparse());
-        feats.add(new MLDenseVector(new float[]{
-                this.userCounts[targetUserIndex][nActionsTotal + 1] - targetItemRank,
-                this.userCounts[targetUserIndex][nActionsTotal + 2] - targetItemPriceRank,
-        }).toSparse());
-        final int MAX_ITEM_LAG = 2;
-        float[][] lastItemSim = new float[MAX_ITEM_LAG][8];
-        int curItemLag = 0;
-        final int MAX_ACTION_LAG = 1;
-        float[][] lastActionSim = new float[MAX_ACTION_LAG][2];
+
+        // most recent item and non item actions, scan stops once all lags
+        // are filled
+        context.lastItems = new float[MAX_ITEM_LAG][6];
+        context.lastActions = new float[MAX_ACTION_LAG][2];
         int curActionLag = 0;
-        for (int index = targetSessionEnd - 1; index >= targetSessionStart; index--) {
-            int itemIndex = this.data.referenceItems[index];
+        for (int index = targetIndex - 1; index >= sessionStart; index--) {
+            if (context.nItemLags == MAX_ITEM_LAG && curActionLag == MAX_ACTION_LAG) {
+                break;
+            }
+            int itemIndex = referenceItems[index];
             if (itemIndex < 0) {
-                int action = RecSys19Helper.getIndex(index, SessionFeature.action_type, this.data);
                 if (curActionLag < MAX_ACTION_LAG) {
-                    lastActionSim[curActionLag][0] = action;
-                    lastActionSim[curActionLag][1] = this.data.timeStamps[index + 1] - this.data.timeStamps[index];
+                    context.lastActions[curActionLag][0] = this.actionColumn[index];
+                    context.lastActions[curActionLag][1] = timeStamps[index + 1] - timeStamps[index];
                     curActionLag++;
                 }
                 continue;
             }
+            if (context.nItemLags == MAX_ITEM_LAG) {
+                continue;
+            }
             int rank = 0;
             int priceRank = 0;
-            for (int i = 0; i < targetImpressions.length; i++) {
-                if (itemIndex == targetImpressions[i]) {
+            for (int i = 0; i < impressions.length; i++) {
+                if (itemIndex == impressions[i]) {
                     rank = i + 1;
-                    priceRank = targetPriceRank[i];
+                    priceRank = context.priceRanking[i];
                     break;
                 }
             }
-            if (curItemLag < MAX_ITEM_LAG) {
-                float[] stats = new float[2];
-                for (int i = index - 1; i >= targetSessionStart; i--) {
-                    if (this.data.referenceItems[i] == itemIndex) {
-                        stats[0]++;
-                        stats[1] += (this.data.timeStamps[i + 1] - this.data.timeStamps[i]);
-                    }
+            float timeSpent = 0;
+            for (int i = index - 1; i >= sessionStart; i--) {
+                if (referenceItems[i] == itemIndex) {
+                    timeSpent += (timeStamps[i + 1] - timeStamps[i]);
                 }
-                int action = RecSys19Helper.getIndex(index, SessionFeature.action_type, this.data);
-                int cur = 0;
-                lastItemSim[curItemLag][cur] = priceRank;
-                cur++;
-                lastItemSim[curItemLag][cur] = targetItemPriceRank - priceRank;
-                cur++;
-                lastItemSim[curItemLag][cur] = rank;
-                cur++;
-                lastItemSim[curItemLag][cur] = targetItemRank - rank;
-                cur++;
-                lastItemSim[curItemLag][cur] = action;
-                cur++;
-                lastItemSim[curItemLag][cur] = targetSessionEnd - index;
-                cur++;
-                lastItemSim[curItemLag][cur] = this.data.timeStamps[index + 1] - this.data.timeStamps[index];
-                cur++;
-                lastItemSim[curItemLag][cur] = stats[1];
-                curItemLag++;
-            }
-        }
-        for (int i = 0; i < lastItemSim.length; i++) {
-            feats.add(new MLDenseVector(lastItemSim[i]).toSparse());
-        }
-        for (int i = 0; i < lastActionSim.length; i++) {
-            feats.add(new MLDenseVector(lastActionSim[i]).toSparse());
-        }
-        return feats;
-    }
+            }
+            float[] lastItem = context.lastItems[context.nItemLags];
+            lastItem[0] = priceRank;
+            lastItem[1] = rank;
+            lastItem[2] = this.actionColumn[index];
+            lastItem[3] = targetIndex - index;
+            lastItem[4] = timeStamps[index + 1] - timeStamps[index];
+            lastItem[5] = timeSpent;
+            context.nItemLags++;
+        }
 
-    public float[] getColdWarmSessionStats(final int targetUserIndex,
-                                           final int targetItemIndex,
-                                           final int targetSessionStart,
-                                           final int targetSessionEnd) {
-        int[] targetImpressions = this.data.impressions[targetSessionEnd];
-        int[] targetPrices = this.data.prices[targetSessionEnd];
-        int[] targetPriceRank = RecSys19Helper.argsort(targetPrices, true, true);
-        int targetItemRank = 0;
-        int targetItemPriceRank = 0;
-        for (int i = 0; i < targetImpressions.length; i++) {
-            if (targetImpressions[i] == targetItemIndex) {
-                targetItemRank = 1 + i;
-                targetItemPriceRank = targetPriceRank[i];
-                break;
+        // interactions with impressed items by rank, ranks of repeated items
+        // are taken from their last position
+        context.interactRankCounts = new int[2][impressions.length + 1];
+        for (int index = sessionStart; index <= targetIndex - 1; index++) {
+            int referenceItemIndex = referenceItems[index];
+            int actionMacro = this.interactActionMacros[this.actionColumn[index]];
+            if (actionMacro < 0 || referenceItemIndex <= 0) {
+                continue;
+            }
+            int referenceRank = 0;
+            for (int i = impressions.length - 1; i >= 0; i--) {
+                if (impressions[i] == referenceItemIndex) {
+                    referenceRank = i + 1;
+                    break;
+                }
+            }
+            if (referenceRank > 0) {
+                context.interactRankCounts[actionMacro][referenceRank]++;
             }
         }
-        int actionItemClickoutIndex = RecSys19Helper.getActionIndex(RecSys19Data.CLICKOUT_ITEM_ACTION, this.data);
-        int nClickouts = 0;
-        int nSteps = 0;
-        for (int index = targetSessionStart; index <= targetSessionEnd; index++) {
-            int action = RecSys19Helper.getIndex(index, SessionFeature.action_type, this.data);
-            if (action == actionItemClickoutIndex) {
-                nClickouts++;
+        for (int[] counts : context.interactRankCounts) {
+            for (int i = 1; i < counts.length; i++) {
+                counts[i] += counts[i - 1];
             }
-            nSteps++;
         }
-        float[] topRankSignals = new float[5];
-        if (targetItemRank <= topRankSignals.length && targetItemRank >= 1) {
-            topRankSignals[targetItemRank - 1] = 1;
+        return context;
+    }
+
+    public void addSessionFeatures(final RecSys19FeatureRows row,
+                                   final ClickoutContext context,
+                                   final int targetUserIndex,
+                                   final int position) {
+        int targetItemIndex = context.impressions[position];
+        int first = context.firstPositions[position];
+        int targetItemRank = first + 1;
+        int targetItemPrice = context.prices[first];
+        int targetItemPriceRank = context.priceRanking[first];
+        int targetItemPriceRankAbove = context.priceRankingAbove[first];
+        row.add(this.itemPrices.get(targetItemIndex, 0) - targetItemPrice);
+        row.add(this.itemPrices.get(targetItemIndex, 1) - targetItemPrice);
+        row.add(this.itemPrices.get(targetItemIndex, 2) - targetItemPrice);
+        row.add(this.itemCounts.get(targetItemIndex, this.itemActionsLength + 1) - targetItemRank);
+        row.add(this.itemCounts.get(targetItemIndex, this.itemActionsLength + 2) - targetItemPriceRank);
+        row.add(this.itemCounts.get(targetItemIndex, this.itemActionsLength + 3) - targetItemPriceRankAbove);
+        row.add(context.nSameImpress);
+        row.add(context.sameImpressCounts[position]);
+        row.add(this.userCounts.get(targetUserIndex, this.nActionsTotal + 1) - targetItemRank);
+        row.add(this.userCounts.get(targetUserIndex, this.nActionsTotal + 2) - targetItemPriceRank);
+        for (int i = 0; i < MAX_ITEM_LAG; i++) {
+            if (i >= context.nItemLags) {
+                row.skip(8);
+                continue;
+            }
+            float[] lastItem = context.lastItems[i];
+            row.add(lastItem[0]);
+            row.add(targetItemPriceRank - lastItem[0]);
+            row.add(lastItem[1]);
+            row.add(targetItemRank - lastItem[1]);
+            row.add(lastItem[2]);
+            row.add(lastItem[3]);
+            row.add(lastItem[4]);
+            row.add(lastItem[5]);
         }
-        float[] topPriceRankSignals = new float[5];
-        if (targetItemPriceRank <= topPriceRankSignals.length && targetItemPriceRank >= 1) {
-            topPriceRankSignals[targetItemPriceRank - 1] = 1;
+        for (int i = 0; i < MAX_ACTION_LAG; i++) {
+            row.add(context.lastActions[i]);
         }
-        HashMap<Integer, Integer> impressionToRankMap = new HashMap<>();
-        for (int i = 0; i < targetImpressions.length; i++) {
-            impressionToRankMap.put(targetImpressions[i], i+1);
+    }
+
+    public void addColdWarmSessionStats(final RecSys19FeatureRows row,
+                                        final ClickoutContext context,
+                                        final int position) {
+        int first = context.firstPositions[position];
+        int targetItemRank = first + 1;
+        int targetItemPriceRank = context.priceRanking[first];
+        for (int i = 1; i <= 5; i++) {
+            row.add(targetItemRank == i ? 1 : 0);
         }
-        String[] actionNames = new String[] {
-                RecSys19Data.CLICKOUT_ITEM_ACTION,
-                RecSys19Data.INTERACTION_ITEM_RATING_ACTION,
-                RecSys19Data.INTERACTION_ITEM_INFO_ACTION,
-                RecSys19Data.INTERACTION_ITEM_IMAGE_ACTION,
-                RecSys19Data.INTERACTION_ITEM_DEALS_ACTION,
-                RecSys19Data.SEARCH_FOR_ITEM_ACTION,
-        };
-        HashMap<Integer, Integer> actionToIndexMap = new HashMap<>();
-        for (int i = 0; i < actionNames.length; i++) {
-            actionToIndexMap.put(RecSys19Helper.getActionIndex(actionNames[i], this.data), i);
-        }
-        int[] nInteractAboveCounts = new int[2];
-        int[] nInteractEqualCounts = new int[2];
-        int[] nInteractBelowCounts = new int[2];
-        for (int index = targetSessionStart; index <= targetSessionEnd - 1; index++) {
-            int referenceItemIndex = this.data.referenceItems[index];
-            int action = RecSys19Helper.getIndex(index, SessionFeature.action_type, this.data);
-            Integer actionIndex = actionToIndexMap.get(action);
-            if (actionIndex == null) {
-                continue;
-            }
-            int actionIndexMacro = actionIndex == 0 ? 0:1;
-            if (referenceItemIndex > 0) {
-                Integer referenceRank = impressionToRankMap.get(referenceItemIndex);
-                if (referenceRank == null) {
-                    continue;
-                }
-                if (referenceRank < targetItemRank) {
-                    nInteractAboveCounts[actionIndexMacro]++;
-                }
-                if (referenceRank == targetItemRank) {
-                    nInteractEqualCounts[actionIndexMacro]++;
-                }
-                if (referenceRank > targetItemRank) {
-                    nInteractBelowCounts[actionIndexMacro]++;
-                }
-            }
+        for (int i = 1; i <= 5; i++) {
+            row.add(targetItemPriceRank == i ? 1 : 0);
+        }
+        int nRanks = context.impressions.length;
+        for (int[] counts : context.interactRankCounts) {
+            // above
+            row.add(counts[targetItemRank - 1]);
+        }
+        for (int[] counts : context.interactRankCounts) {
+            // equal
+            row.add(counts[targetItemRank] - counts[targetItemRank - 1]);
+        }
+        for (int[] counts : context.interactRankCounts) {
+            // below
+            row.add(counts[nRanks] - counts[targetItemRank]);
         }
-        float[] nInteractAboveCountsFloat = RecSys19Helper.convertToFloats(nInteractAboveCounts);
-        float[] nInteractEqualCountsFloat = RecSys19Helper.convertToFloats(nInteractEqualCounts);
-        float[] nInteractBelowCountsFloat = RecSys19Helper.convertToFloats(nInteractBelowCounts);
-        return RecSys19Helper.combine(
-                topRankSignals,
-                topPriceRankSignals,
-                nInteractAboveCountsFloat,
-                nInteractEqualCountsFloat,
-                nInteractBelowCountsFloat
-        );
     }
 
-    public SessionInstance[] extractFeatures(final int targetIndex) {
-        int[] impressions = this.data.impressions[targetIndex];
-        int[] prices = this.data.prices[targetIndex];
-        int[] priceRanking = RecSys19Helper.argsort(prices, true, true);
-        int[] priceRankingAbove = RecSys19Helper.getPriceRankAbove(prices);
-        int[] stars = RecSys19Helper.getStars(impressions, this.propFeatMatrix, this.propIndexToCat);
-        int[] ratings = RecSys19Helper.getRatings(impressions, this.propFeatMatrix, this.propIndexToCat);
+    /**
+     * Extracts features for every impression of the clickout at targetIndex
+     * into feature rows of the calling thread.
+     *
+     * @return rows of the calling thread, valid until this thread extracts
+     * the next clickout
+     */
+    public RecSys19FeatureRows extractFeatureRows(final int targetIndex) {
+        ClickoutContext context = this.createClickoutContext(targetIndex);
+        int[] impressions = context.impressions;
+        int[] prices = context.prices;
+        int[] priceRanking = context.priceRanking;
+        int[] priceRankingAbove = context.priceRankingAbove;
+        int[] stars = context.stars;
+        int[] ratings = context.ratings;
         float[] ratingCount = new float[5];
         for (int i = 0; i < ratings.length; i++) {
             ratingCount[ratings[i]]++;
@@ -555,17 +869,18 @@ public class RecSys19FeatureExtractor {
         for (int i = 0; i < stars.length; i++) {
             starCount[stars[i]]++;
         }
-        int userIndex = RecSys19Helper.getIndex(targetIndex, SessionFeature.user_id, this.data);
-        int platformIndex = RecSys19Helper.getIndex(targetIndex, SessionFeature.platform, this.data);
-        int cityIndex = RecSys19Helper.getIndex(targetIndex, SessionFeature.city, this.data);
-        int deviceIndex = RecSys19Helper.getIndex(targetIndex, SessionFeature.device, this.data);
-        int targetItem = this.data.referenceItems[targetIndex];
-        int step = (int) RecSys19Helper.getValue(targetIndex, SessionFeature.step, this.data);
-        int sessionStart = RecSys19Helper.getSessionStartIndex(targetIndex, this.data);
-        float[] uuUserAction = RecSys19Helper.getUserUser(userIndex, impressions, this.actionRUserNorm, this.actionRUserNormT);
-        float[] iiUserAction = RecSys19Helper.getItemItem(userIndex, impressions, this.actionRUser, this.actionRUserNormT);
-        float[] uuUserImpress = RecSys19Helper.getUserUser(userIndex, impressions, this.impressRUserNorm, this.impressRUserNormT);
-        float[] iiUserImpress = RecSys19Helper.getItemItem(userIndex, impressions, this.impressRUser, this.impressRUserNormT);
+        int userIndex = this.userColumn[targetIndex];
+        int platformIndex = this.platformColumn[targetIndex];
+        int cityIndex = this.cityColumn[targetIndex];
+        int deviceIndex = this.deviceColumn[targetIndex];
+        int targetItem = this.data.getReferenceItems()[targetIndex];
+        int step = (int) this.stepColumn[targetIndex];
+        int sessionStart = context.sessionStart;
+        RecSys19SimilarityScorer scorer = this.scorer.get();
+        float[] uuUserAction = scorer.getUserUser(userIndex, impressions, this.actionRUserNorm, this.actionRUserNormT);
+        float[] iiUserAction = scorer.getItemItem(userIndex, impressions, this.actionRUser, this.actionRUserNormT);
+        float[] uuUserImpress = scorer.getUserUser(userIndex, impressions, this.impressRUserNorm, this.impressRUserNormT);
+        float[] iiUserImpress = scorer.getItemItem(userIndex, impressions, this.impressRUser, this.impressRUserNormT);
         float[] meanScores = new float[6];
         for (int i = 0; i < uuUserImpress.length; i++) {
             meanScores[0] += uuUserAction[i];
@@ -573,8 +888,13 @@ public class RecSys19FeatureExtractor {
             meanScores[2] += uuUserImpress[i];
             meanScores[3] += iiUserImpress[i];
             if (i > 0) {
-                meanScores[4] += RecSys19Helper.getItemItemForItem(impressions[i], impressions[i - 1], this.actionRUserNormT);
-                meanScores[5] += RecSys19Helper.getItemItemForItem(impressions[i], impressions[i - 1], this.impressRUserNormT);
+                if (this.actionNeighbours != null) {
+                    meanScores[4] += this.actionNeighbours.get(impressions[i], impressions[i - 1], this.actionRUserNormT);
+                    meanScores[5] += this.impressNeighbours.get(impressions[i], impressions[i - 1], this.impressRUserNormT);
+                } else {
+                    meanScores[4] += RecSys19Helper.getItemItemForItem(impressions[i], impressions[i - 1], this.actionRUserNormT);
+                    meanScores[5] += RecSys19Helper.getItemItemForItem(impressions[i], impressions[i - 1], this.impressRUserNormT);
+                }
             }
         }
         float[] scoreEntropy = new float[4];
@@ -596,27 +916,22 @@ public class RecSys19FeatureExtractor {
                 scoreEntropy[3] += rel * Math.log(rel);
             }
         }
-        float[] meanGlobal = new float[this.itemCounts[0].length];
+        float[] meanGlobal = new float[this.itemCounts.getNCols()];
+        float[] itemCounts = this.itemCounts.getValues();
         for (int i = 0; i < impressions.length; i++) {
-            float[] itemGlobal = this.itemCounts[impressions[i]];
-            for (int j = 0; j < itemGlobal.length; j++) {
-                meanGlobal[j] += itemGlobal[j];
-            }
-        }
-        HashMap<Integer, Integer[]> idxStarsMap = RecSys19Helper.getIdxStarMap(impressions, stars);
-        HashMap<Integer, Integer[]> idxRatingsMap = RecSys19Helper.getIdxRatingMap(impressions, ratings);
-        HashMap<String, float[]> priceStatsStarsMap = RecSys19Helper.getPriceStatsStarsMap(idxStarsMap, prices, priceRanking);
-        float[] priceAverageStar = priceStatsStarsMap.get("priceAverageStar");
-        float[] priceRankAverageStar = priceStatsStarsMap.get("priceRankAverageStar");
-        HashMap<String, float[]> priceStatsRatingsMap = RecSys19Helper.getPriceStatsRatingsMap(idxRatingsMap, prices, priceRanking);
-        float[] priceAverageRating = priceStatsRatingsMap.get("priceAverageRating");
-        float[] priceRankAverageRating = priceStatsRatingsMap.get("priceRankAverageRating");
-        HashMap<String, HashMap<Integer, Integer>> starRankLocalMaps = RecSys19Helper.getStarRankingMaps(idxStarsMap, prices);
-        HashMap<Integer, Integer> rankLocalStarsMap = starRankLocalMaps.get("rankLocalStars");
-        HashMap<Integer, Integer> priceRankLocalStarsMap = starRankLocalMaps.get("priceRankLocalStars");
-        HashMap<String, HashMap<Integer, Integer>> ratingRankLocalMaps = RecSys19Helper.getRatingRankingMaps(idxRatingsMap, prices);
-        HashMap<Integer, Integer> rankLocalRatingsMap = ratingRankLocalMaps.get("rankLocalRatings");
-        HashMap<Integer, Integer> priceRankLocalRatingsMap = ratingRankLocalMaps.get("priceRankLocalRatings");
+            int itemStart = this.itemCounts.getRowStart(impressions[i]);
+            for (int j = 0; j < meanGlobal.length; j++) {
+                meanGlobal[j] += itemCounts[itemStart + j];
+            }
+        }
+        RecSys19ClassStats starStats = this.starStats.get();
+        starStats.compute(stars, prices, priceRanking, impressions.length);
+        float[] priceAverageStar = starStats.priceAverage;
+        float[] priceRankAverageStar = starStats.priceRankAverage;
+        RecSys19ClassStats ratingStats = this.ratingStats.get();
+        ratingStats.compute(ratings, prices, priceRanking, impressions.length);
+        float[] priceAverageRating = ratingStats.priceAverage;
+        float[] priceRankAverageRating = ratingStats.priceRankAverage;
         float[] meanTopPrices = RecSys19Helper.getTopKMeans(prices, new int[]{
                 1, 2, 3, 5, 10, 15, 20, 25
         });
@@ -647,69 +962,74 @@ public class RecSys19FeatureExtractor {
                 }
             }
         }
-        SessionInstance[] instances = new SessionInstance[impressions.length];
+        float timeSinceStart = this.data.getTimeStamps()[targetIndex] - this.data.getTimeStamps()[sessionStart];
+        MLSparseVector deviceRow = this.data.getSessionFeature(SessionFeature.device).getRow(targetIndex, true);
+        RecSys19FeatureRows rows = this.rows.get();
+        rows.reset(impressions.length);
         for (int i = 0; i < impressions.length; i++) {
             int itemIndex = impressions[i];
+            rows.startRow(itemIndex, targetItem == itemIndex ? 1 : 0);
+            this.addUserFeatures(rows, userIndex);
+            this.addItemFeatures(rows, itemIndex);
+            this.addUserItemFeatures(rows, userIndex, itemIndex);
+            this.addSessionFeatures(rows, context, userIndex, i);
+            rows.add(i + 1.0f);
+            rows.add(prices[i]);
+            rows.add(priceRanking[i]);
+            rows.add(impressions.length);
+            rows.add(step);
+            rows.add(timeSinceStart);
+            rows.add(uuUserAction[i]);
+            rows.add(iiUserAction[i]);
+            rows.add(uuUserImpress[i]);
+            rows.add(iiUserImpress[i]);
+            rows.add(propertyEntropy);
+            rows.add(priceRankingAbove[i]);
+            rows.add(prices[i] - medianPrice);
+            rows.add(meanScores);
+            rows.add(meanGlobal);
+            rows.add(scoreEntropy);
+            this.addColdWarmSessionStats(rows, context, i);
+            rows.add(starStats.rankLocal[i]);
+            rows.add(starStats.priceRankLocal[i]);
+            rows.add(starCount[stars[i]]);
+            rows.add(ratingStats.rankLocal[i]);
+            rows.add(ratingStats.priceRankLocal[i]);
+            rows.add(ratingCount[ratings[i]]);
+            rows.add(meanTopPrices);
+            rows.add(meanTopPriceRanks);
+            rows.add(priceAverageStar[stars[i]]);
+            rows.add(priceRankAverageStar[stars[i]]);
+            rows.add(priceAverageRating[ratings[i]]);
+            rows.add(priceRankAverageRating[ratings[i]]);
+            rows.add((prices[i] - priceAverageStar[stars[i]]) / priceAverageStar[stars[i]]);
+            rows.add(priceRanking[i] - priceRankAverageStar[stars[i]]);
+            rows.add((prices[i] - priceAverageRating[ratings[i]]) / priceAverageRating[ratings[i]]);
+            rows.add(priceRanking[i] - priceRankAverageRating[ratings[i]]);
+            rows.add(this.rankCounts[i]);
+            rows.add(this.priceRankCounts[priceRanking[i] - 1]);
+            rows.add(this.platformCounts[platformIndex]);
+            rows.add(this.cityCounts[cityIndex]);
+            rows.add(this.deviceCounts[deviceIndex]);
+//            rows.add(meanProperties);
+            rows.add(deviceRow);
+            rows.endRow();
+        }
+        return rows;
+    }
+
+    /**
+     * Same as extractFeatureRows() with each row copied into a
+     * SessionInstance.
+     */
+    public SessionInstance[] extractFeatures(final int targetIndex) {
+        RecSys19FeatureRows rows = this.extractFeatureRows(targetIndex);
+        SessionInstance[] instances = new SessionInstance[rows.nRows];
+        for (int i = 0; i < rows.nRows; i++) {
             SessionInstance instance = new SessionInstance();
-            instance.itemIndex = itemIndex;
-            instance.target = 0;
-            if (targetItem == itemIndex) {
-                instance.target = 1;
-            }
-            List<MLSparseVector> features = new LinkedList();
-            features.addAll(this.getUserFeatures(userIndex));
-            features.addAll(this.getItemFeatures(itemIndex));
-            features.addAll(this.getUserItemFeatures(userIndex, itemIndex));
-            features.addAll(this.getSessionFeatures(userIndex, itemIndex, sessionStart, targetIndex));
-            features.add(new MLDenseVector(new float[]{
-                    i + 1.0f,
-                    prices[i],
-                    priceRanking[i],
-                    impressions.length,
-                    step,
-                    this.data.timeStamps[targetIndex] - this.data.timeStamps[sessionStart],
-                    uuUserAction[i],
-                    iiUserAction[i],
-                    uuUserImpress[i],
-                    iiUserImpress[i],
-                    propertyEntropy,
-                    priceRankingAbove[i],
-                    prices[i] - medianPrice,
-            }).toSparse());
-            features.add(new MLDenseVector(meanScores).toSparse());
-            features.add(new MLDenseVector(meanGlobal).toSparse());
-            features.add(new MLDenseVector(scoreEntropy).toSparse());
-            features.add(new MLDenseVector(this.getColdWarmSessionStats(userIndex, itemIndex, sessionStart, targetIndex)).toSparse());
-            features.add(new MLDenseVector(new float[]{
-                    rankLocalStarsMap.get(i),
-                    priceRankLocalStarsMap.get(i),
-                    starCount[stars[i]],
-                    rankLocalRatingsMap.get(i),
-                    priceRankLocalRatingsMap.get(i),
-                    ratingCount[ratings[i]],
-            }).toSparse());
-            features.add(new MLDenseVector(meanTopPrices).toSparse());
-            features.add(new MLDenseVector(meanTopPriceRanks).toSparse());
-            features.add(new MLDenseVector(new float[]{
-                    priceAverageStar[stars[i]],
-                    priceRankAverageStar[stars[i]],
-                    priceAverageRating[ratings[i]],
-                    priceRankAverageRating[ratings[i]],
-                    (prices[i] - priceAverageStar[stars[i]]) / priceAverageStar[stars[i]],
-                    priceRanking[i] - priceRankAverageStar[stars[i]],
-                    (prices[i] - priceAverageRating[ratings[i]]) / priceAverageRating[ratings[i]],
-                    priceRanking[i] - priceRankAverageRating[ratings[i]],
-            }).toSparse());
-            features.add(new MLDenseVector(this.rankCounts[i]).toSparse());
-            features.add(new MLDenseVector(this.priceRankCounts[priceRanking[i]-1]).toSparse());
-            features.add(new MLDenseVector(this.platformCounts[platformIndex]).toSparse());
-            features.add(new MLDenseVector(this.cityCounts[cityIndex]).toSparse());
-            features.add(new MLDenseVector(this.deviceCounts[deviceIndex]).toSparse());
-//            features.add(new MLDenseVector(meanProperties).toSparse());
-            features.add(this.data.sessionFeatures.get(SessionFeature.device).getRow(targetIndex, true));
-            MLSparseVector[] featArr = new MLSparseVector[features.size()];
-            featArr = features.toArray(featArr);
-            instance.features = MLSparseVector.concat(featArr);
+            instance.itemIndex = rows.itemIndexes[i];
+            instance.target = rows.targets[i];
+            instance.features = rows.getRow(i);
             instances[i] = instance;
         }
         return instances;
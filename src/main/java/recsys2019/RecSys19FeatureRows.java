@@ -0,0 +1,150 @@
+package recsys2019;
+import common.linalg.MLSparseVector;
+import java.util.Arrays;
+
+/**
+ * Reusable CSR buffer with the feature rows of one clickout, one row per
+ * impression. Every row has the same fixed schema of nCols columns and
+ * feature blocks are added in schema order, each block starts at the column
+ * where the previous one ended. Zero values of dense blocks are skipped and
+ * entries of sparse blocks are copied as they are, so a row has the same
+ * indexes and values as MLSparseVector.concat() of the blocks converted
+ * with toSparse().
+ * <p>
+ * Buffers are sized for the largest clickout seen so far and are never
+ * shrunk, so building rows does no allocation once they have grown. An
+ * instance must only be used by one thread at a time.
+ */
+public class RecSys19FeatureRows {
+
+    public int nCols;
+    public int nRows;
+    public int[] rowOffsets;
+    public int[] indexes;
+    public float[] values;
+    public int[] itemIndexes;
+    public int[] targets;
+    public int[] order;
+    private int col;
+
+    public RecSys19FeatureRows(final int nColsP) {
+        this.nCols = nColsP;
+        this.rowOffsets = new int[1];
+        this.indexes = new int[0];
+        this.values = new float[0];
+        this.itemIndexes = new int[0];
+        this.targets = new int[0];
+        this.order = new int[0];
+    }
+
+    /**
+     * Clears the buffer and makes room for nRowsMax rows.
+     */
+    public void reset(final int nRowsMax) {
+        if (this.itemIndexes.length < nRowsMax) {
+            this.rowOffsets = new int[nRowsMax + 1];
+            this.itemIndexes = new int[nRowsMax];
+            this.targets = new int[nRowsMax];
+            this.order = new int[nRowsMax];
+        }
+        long nnzMax = (long) nRowsMax * this.nCols;
+        if (this.indexes.length < nnzMax) {
+            if (nnzMax > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many feature values " + nnzMax);
+            }
+            this.indexes = new int[(int) nnzMax];
+            this.values = new float[(int) nnzMax];
+        }
+        this.nRows = 0;
+        this.rowOffsets[0] = 0;
+    }
+
+    public void startRow(final int itemIndex, final int target) {
+        this.itemIndexes[this.nRows] = itemIndex;
+        this.targets[this.nRows] = target;
+        this.rowOffsets[this.nRows + 1] = this.rowOffsets[this.nRows];
+        this.col = 0;
+    }
+
+    public void endRow() {
+        if (this.col != this.nCols) {
+            throw new IllegalStateException("row has " + this.col + " columns, schema has " + this.nCols);
+        }
+        this.nRows++;
+    }
+
+    public void add(final float value) {
+        if (value != 0) {
+            int cur = this.rowOffsets[this.nRows + 1];
+            this.indexes[cur] = this.col;
+            this.values[cur] = value;
+            this.rowOffsets[this.nRows + 1] = cur + 1;
+        }
+        this.col++;
+    }
+
+    public void add(final float[] block) {
+        for (float value : block) {
+            this.add(value);
+        }
+    }
+
+    /**
+     * Adds the length values starting at offset, used for rows of flat
+     * tables.
+     */
+    public void add(final float[] values, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            this.add(values[i]);
+        }
+    }
+
+    public void add(final MLSparseVector block) {
+        int[] blockIndexes = block.getIndexes();
+        if (blockIndexes != null) {
+            float[] blockValues = block.getValues();
+            int cur = this.rowOffsets[this.nRows + 1];
+            for (int i = 0; i < blockIndexes.length; i++) {
+                this.indexes[cur] = this.col + blockIndexes[i];
+                this.values[cur] = blockValues[i];
+                cur++;
+            }
+            this.rowOffsets[this.nRows + 1] = cur;
+        }
+        this.col += block.getLength();
+    }
+
+    /**
+     * Adds n zero columns.
+     */
+    public void skip(final int n) {
+        this.col += n;
+    }
+
+    public int getRowStart(final int row) {
+        return this.rowOffsets[row];
+    }
+
+    public int getRowEnd(final int row) {
+        return this.rowOffsets[row + 1];
+    }
+
+    /**
+     * @return copy of the row as a sparse vector
+     */
+    public MLSparseVector getRow(final int row) {
+        int start = this.rowOffsets[row];
+        int end = this.rowOffsets[row + 1];
+        return new MLSparseVector(Arrays.copyOfRange(this.indexes, start, end),
+                Arrays.copyOfRange(this.values, start, end), null, this.nCols);
+    }
+
+    /**
+     * Appends the row in LIBSVM format without the label, same output as
+     * getRow(row).toLIBSVMString(offset).
+     */
+    public void appendLIBSVM(final int row, final int offset, final StringBuilder builder) {
+        MLSparseVector.appendLIBSVM(this.indexes, this.values, this.rowOffsets[row], this.rowOffsets[row + 1],
+                offset, builder);
+    }
+}
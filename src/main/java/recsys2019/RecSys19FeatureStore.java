@@ -0,0 +1,241 @@
+package recsys2019;
+import common.linalg.MLIntCSR;
+import common.linalg.MLSparseMatrix;
+import common.linalg.MLSparseMatrixAOO;
+import common.utils.MLBlockCodec;
+import common.utils.MLColumnStore;
+import common.utils.MLTimer;
+import recsys2019.RecSys19Data.SessionFeature;
+import recsys2019.RecSys19Model.RecSys19Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * On disk cache of the global statistics of RecSys19FeatureExtractor, the
+ * user-item matrices and item neighbour indexes built by initMatrices() and
+ * the count tables built by initCache(). Every entry is an MLColumnStore
+ * directory named by a key that combines a fingerprint of the data columns
+ * the statistics are computed from with the config fields that change them
+ * (trainDelta, removeTrain, removeValid and nItemNeighbours). Stages that
+ * run on the same data with the same config load the statistics instead of
+ * recomputing them, a change in either gives a new key and a new entry.
+ * <p>
+ * Matrices are stored in the MLSparseMatrixAOO column layout and tables as
+ * a flat row major float column with a shape column. An entry is built in
+ * a temporary directory next to it and renamed into place by commit(), so
+ * an entry directory is never written after it appears and processes that
+ * miss the cache at the same time don't write the same files. When two
+ * processes build the same entry the first rename wins and the other
+ * build is dropped.
+ */
+public class RecSys19FeatureStore {
+    public static final int FORMAT_VERSION = 2;
+    private static final String META = "meta";
+    private static final int HASH_CHUNK = 1 << 20;
+    private static MLTimer timer;
+
+    static {
+        timer = new MLTimer("RecSys19FeatureStore");
+        timer.tic();
+    }
+
+    private String root;
+    private MLColumnStore store;
+    private MLColumnStore tmpStore;
+    private String key;
+
+    public RecSys19FeatureStore(final String path, final RecSys19Data data, final RecSys19Config config) {
+        this.key = getKey(data, config);
+        this.root = path.endsWith(File.separator) ? path : path + File.separator;
+        this.store = new MLColumnStore(this.root + this.key);
+        this.store.setCodec(MLBlockCodec.LZ4);
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return entry being built between create() and commit(), the
+     * committed entry otherwise
+     */
+    public MLColumnStore getStore() {
+        if (this.tmpStore != null) {
+            return this.tmpStore;
+        }
+        return this.store;
+    }
+
+    /**
+     * @return true if the entry was completely written with this format
+     */
+    public boolean exists() throws IOException {
+        if (this.store.hasColumn(META) == false) {
+            return false;
+        }
+        return this.store.readInts(META)[0] == FORMAT_VERSION;
+    }
+
+    /**
+     * Creates a temporary directory for a new entry, columns are then
+     * written to getStore() and the entry is published with commit().
+     */
+    public void create() throws IOException {
+        Files.createDirectories(Paths.get(this.root));
+        Path tmpPath = Files.createTempDirectory(Paths.get(this.root), this.key + ".tmp");
+        this.tmpStore = new MLColumnStore(tmpPath.toString());
+        this.tmpStore.setCodec(MLBlockCodec.LZ4);
+    }
+
+    /**
+     * Writes meta and renames the temporary directory to the entry. If
+     * another process committed the entry first its entry is kept.
+     */
+    public void commit() throws IOException {
+        this.tmpStore.writeInts(META, new int[]{FORMAT_VERSION});
+        Path tmpPath = Paths.get(this.tmpStore.getPath());
+        Path path = Paths.get(this.store.getPath());
+        if (Files.exists(path) == true && this.exists() == false) {
+            // incomplete entry from an interrupted in place write
+            delete(path);
+        }
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
+            timer.toc("written " + this.store.getPath());
+        } catch (IOException e) {
+            // an atomic move onto a non empty directory fails with a plain
+            // FileSystemException on some platforms
+            if (this.exists() == false) {
+                throw e;
+            }
+            delete(tmpPath);
+            timer.toc("entry committed by another process " + this.store.getPath());
+        }
+        this.tmpStore = null;
+    }
+
+    private static void delete(final Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Key of data and config, the data fingerprint covers every column that
+     * initMatrices() and initCache() read.
+     */
+    public static String getKey(final RecSys19Data data, final RecSys19Config config) {
+        long hash = FORMAT_VERSION;
+        hash = hash(hash, data.getItemIdToIndex().size());
+        hash = hash(hash, data.getSessionFeature(SessionFeature.user_id).getCatToIndex().size());
+        hash = hash(hash, data.getSessions().getNSessions());
+        hash = hash(hash, data.getSessions().getNTrainSessions());
+        hash = hash(hash, hashInts(data.getReferenceItems()));
+        hash = hash(hash, hashRows(data.getImpressions()));
+        hash = hash(hash, hashRows(data.getPrices()));
+        hash = hash(hash, hashBytes(data.getItemStars()));
+        hash = hash(hash, hashBytes(data.getItemRatings()));
+        for (SessionFeature featureName : new SessionFeature[]{SessionFeature.action_type, SessionFeature.user_id,
+                SessionFeature.platform, SessionFeature.city, SessionFeature.device}) {
+            hash = hash(hash, data.getSessionFeature(featureName).getFeatMatrix().getNCols());
+            hash = hash(hash, hashInts(data.getIndexColumn(featureName)));
+        }
+        hash = hash(hash, hashInts(data.trainEventIndexes));
+        hash = hash(hash, hashInts(data.validEventIndexes));
+        hash = hash(hash, hashInts(data.testEventIndexes));
+        timer.toc("data fingerprint " + Long.toHexString(hash));
+
+        return String.format("features_%016x_delta=%d_removeTrain=%d_removeValid=%d_neighbours=%d", hash,
+                config.trainDelta, config.removeTrain ? 1 : 0, config.removeValid ? 1 : 0, config.nItemNeighbours);
+    }
+
+    public static void writeMatrix(final MLColumnStore store, final String name, final MLSparseMatrix matrix)
+            throws IOException {
+        if ((matrix instanceof MLSparseMatrixAOO) == false) {
+            throw new IllegalArgumentException("unsupported type " + matrix.getClass().getName());
+        }
+        ((MLSparseMatrixAOO) matrix).toColumns(store, name);
+    }
+
+    public static MLSparseMatrix readMatrix(final MLColumnStore store, final String name) throws IOException {
+        return MLSparseMatrixAOO.fromColumns(store, name);
+    }
+
+    public static void writeTable(final MLColumnStore store, final String name, final float[][] table)
+            throws IOException {
+        int nCols = table.length > 0 ? table[0].length : 0;
+        float[] values = new float[table.length * nCols];
+        for (int i = 0; i < table.length; i++) {
+            System.arraycopy(table[i], 0, values, i * nCols, nCols);
+        }
+        store.writeInts(name + ".shape", new int[]{table.length, nCols});
+        store.writeFloats(name + ".values", values);
+    }
+
+    public static float[][] readTable(final MLColumnStore store, final String name) throws IOException {
+        int[] shape = store.readInts(name + ".shape");
+        float[] values = store.readFloats(name + ".values");
+        if (values.length != shape[0] * shape[1]) {
+            throw new IOException("inconsistent columns for " + name);
+        }
+        float[][] table = new float[shape[0]][shape[1]];
+        IntStream.range(0, shape[0]).parallel().forEach(i ->
+                System.arraycopy(values, i * shape[1], table[i], 0, shape[1]));
+        return table;
+    }
+
+    private static long hash(final long hash, final long value) {
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static long hashRows(final MLIntCSR rows) {
+        return hash(hashInts(rows.getOffsets()), hashInts(rows::getValue, rows.getNValues()));
+    }
+
+    private static long hashInts(final int[] values) {
+        if (values == null) {
+            return 0;
+        }
+        return hashInts(i -> values[i], values.length);
+    }
+
+    /**
+     * Hashes chunks in parallel and combines chunk hashes in order.
+     */
+    private static long hashInts(final IntUnaryOperator values, final int length) {
+        int nChunks = (length + HASH_CHUNK - 1) / HASH_CHUNK;
+        long[] chunkHashes = new long[nChunks];
+        IntStream.range(0, nChunks).parallel().forEach(chunk -> {
+            long h = chunk;
+            int end = Math.min(length, (chunk + 1) * HASH_CHUNK);
+            for (int i = chunk * HASH_CHUNK; i < end; i++) {
+                h = hash(h, values.applyAsInt(i));
+            }
+            chunkHashes[chunk] = h;
+        });
+        long h = length;
+        for (long chunkHash : chunkHashes) {
+            h = hash(h, chunkHash);
+        }
+        return h;
+    }
+
+    private static long hashBytes(final byte[] values) {
+        long h = values.length;
+        for (byte value : values) {
+            h = hash(h, value);
+        }
+        return h;
+    }
+}
@@ -2,18 +2,15 @@ package recsys2019;
 import common.feature.MLSparseFeature;
 import common.linalg.FloatElement;
 import common.linalg.MLDenseVector;
+import common.linalg.MLIntCSR;
 import common.linalg.MLSparseMatrix;
 import common.linalg.MLSparseMatrixAOO;
 import common.linalg.MLSparseVector;
 import common.utils.MLTimer;
-import com.google.common.primitives.Ints;
 import recsys2019.RecSys19Data.SessionFeature;
 import recsys2019.RecSys19Model.RecSys19Config;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -31,7 +28,7 @@ public class RecSys19Helper {
     }
 
     public static int getActionIndex(final String action, final RecSys19Data data) {
-        return data.sessionFeatures.get(SessionFeature.action_type).getCatToIndex().get(action);
+        return data.getSessionFeature(SessionFeature.action_type).getCatToIndex().get(action);
     }
 
     public static boolean isTrainIndex(final int index, final RecSys19Data data) {
@@ -53,11 +50,11 @@ public class RecSys19Helper {
     }
 
     public static int getIndex(final int rowIndex, final SessionFeature feature, final RecSys19Data data) {
-        return data.sessionFeatures.get(feature).getRow(rowIndex, false).getIndexes()[0];
+        return data.getIndexColumn(feature)[rowIndex];
     }
 
     public static float getValue(final int rowIndex, final SessionFeature feature, final RecSys19Data data) {
-        return data.sessionFeatures.get(feature).getRow(rowIndex, false).getValues()[0];
+        return data.getValueColumn(feature)[rowIndex];
     }
 
     public static int getSessionStartIndex(final int index, final RecSys19Data data) {
@@ -84,8 +81,9 @@ public class RecSys19Helper {
         } else {
             actionIndexes = new int[]{getActionIndex(RecSys19Data.CLICKOUT_ITEM_ACTION, data)};
         }
-        final int nUsers = data.sessionFeatures.get(SessionFeature.user_id).getCatToIndex().size();
-        final int nItems = data.itemIdToIndex.size();
+        final int nUsers = data.getSessionFeature(SessionFeature.user_id).getCatToIndex().size();
+        final int nItems = data.getItemIdToIndex().size();
+        final int[] actionColumn = data.getIndexColumn(SessionFeature.action_type);
         MLSparseVector[] rows = new MLSparseVector[nUsers];
         AtomicInteger count = new AtomicInteger(0);
         IntStream.range(0, nUsers).parallel().forEach(userIndex -> {
@@ -94,28 +92,20 @@ public class RecSys19Helper {
                 timer.tocLoop("createUserMatrix", curCount);
             }
             Map<Integer, FloatElement> userItemMap = new TreeMap();
-            Set<Integer> userSessions = data.userToSessionStart.get(userIndex);
-            for (int sessionStart : userSessions) {
-                final int sessionId = getIndex(sessionStart, SessionFeature.session_id, data);
-                int curIndex = sessionStart - 1;
-                while (true) {
-                    curIndex++;
-                    if (curIndex >= data.referenceItems.length) {
-                        break;
-                    }
-                    int curSessionId = getIndex(curIndex, SessionFeature.session_id, data);
-                    if (sessionId != curSessionId) {
-                        break;
-                    }
+            RecSys19SessionTable sessions = data.getSessions();
+            MLIntCSR userSessions = sessions.userSessions;
+            for (int j = userSessions.getRowStart(userIndex); j < userSessions.getRowEnd(userIndex); j++) {
+                final int session = userSessions.getValues()[j];
+                for (int curIndex = sessions.getSessionStart(session); curIndex < sessions.getSessionEnd(session); curIndex++) {
                     if (checkSkip.get() == true && RecSys19Helper.isSkipIndex(curIndex, config, data) == true) {
                         continue;
                     }
-                    int curAction = getIndex(curIndex, SessionFeature.action_type, data);
+                    int curAction = actionColumn[curIndex];
                     if (Arrays.binarySearch(actionIndexes, curAction) < 0) {
                         continue;
                     }
                     if (actions != null) {
-                        int curItemId = data.referenceItems[curIndex];
+                        int curItemId = data.getReferenceItems()[curIndex];
                         if (curItemId < 0) {
                             continue;
                         }
@@ -127,11 +117,9 @@ public class RecSys19Helper {
                             element.setValue(element.getValue() + 1.0f);
                         }
                     } else {
-                        int[] impressions = data.impressions[curIndex];
-                        if (impressions == null) {
-                            continue;
-                        }
-                        for (int itemId : impressions) {
+                        MLIntCSR impressions = data.getImpressions();
+                        for (int i = impressions.getRowStart(curIndex); i < impressions.getRowEnd(curIndex); i++) {
+                            int itemId = impressions.getValue(i);
                             FloatElement element = userItemMap.get(itemId);
                             if (element == null) {
                                 element = new FloatElement(itemId, 1.0f);
@@ -237,39 +225,74 @@ public class RecSys19Helper {
     }
 
     public static int[] argsort(final int[] a, final boolean ascending, final boolean rank) {
-        Integer[] indexes = new Integer[a.length];
-        for (int i = 0; i < indexes.length; i++) {
-            indexes[i] = i;
-        }
-        Arrays.sort(indexes, new Comparator<Integer>() {
-            @Override
-            public int compare(final Integer i1, final Integer i2) {
-                return (ascending ? 1 : -1) * Ints.compare(a[i1], a[i2]);
-            }
-        });
-        int[] ret = new int[indexes.length];
-        for (int i = 0; i < ret.length; i++) {
+        int[] ret = new int[a.length];
+        argsort(a, a.length, ascending, rank, ret, new long[a.length]);
+        return ret;
+    }
+
+    /**
+     * Stable argsort of the first n values of a without boxing, equal values
+     * keep their index order. Each value is packed with its index into a
+     * long key so a primitive sort of the keys gives the stable order.
+     *
+     * @param out  receives the sorted indexes, or the 1 based rank of each
+     *             value if rank is true
+     * @param keys scratch buffer of at least n longs
+     */
+    public static void argsort(final int[] a, final int n, final boolean ascending, final boolean rank,
+                               final int[] out, final long[] keys) {
+        for (int i = 0; i < n; i++) {
+            // ~value reverses the order of values and keeps ties in index
+            // order
+            int value = ascending ? a[i] : ~a[i];
+            keys[i] = ((long) value << 32) | i;
+        }
+        Arrays.sort(keys, 0, n);
+        for (int i = 0; i < n; i++) {
+            int index = (int) keys[i];
             if (rank == true) {
-                ret[indexes[i]] = i + 1;
+                out[index] = i + 1;
             } else {
-                ret[i] = indexes[i];
+                out[i] = index;
             }
         }
-        return ret;
     }
 
     public static int[] getPriceRankAbove(final int[] prices) {
         int[] priceRankingAbove = new int[prices.length];
-        for (int i = 0; i < prices.length; i++) {
-            int[] priceSubArray = Arrays.copyOfRange(prices, 0, i + 1);
-            priceRankingAbove[i] = RecSys19Helper.argsort(
-                    priceSubArray,
-                    true,
-                    true)[i];
-        }
+        getPriceRankAbove(prices, prices.length, priceRankingAbove, new int[prices.length + 1],
+                new long[prices.length]);
         return priceRankingAbove;
     }
 
+    /**
+     * Rank of each price among itself and the prices before it, same as the
+     * ascending argsort rank of the last value of every prefix. With stable
+     * ranks r over all prices, a[j] <= a[i] for j < i exactly when
+     * r[j] < r[i], so the prefix rank is 1 + the number of earlier ranks
+     * below r[i] which is counted with a Fenwick tree in O(n log n).
+     *
+     * @param out  receives the prefix rank of each of the first n prices
+     * @param tree scratch buffer of at least n + 1 ints
+     * @param keys scratch buffer of at least n longs
+     */
+    public static void getPriceRankAbove(final int[] prices, final int n, final int[] out, final int[] tree,
+                                         final long[] keys) {
+        argsort(prices, n, true, true, out, keys);
+        Arrays.fill(tree, 0, n + 1, 0);
+        for (int i = 0; i < n; i++) {
+            int rank = out[i];
+            int count = 0;
+            for (int j = rank - 1; j > 0; j -= j & -j) {
+                count += tree[j];
+            }
+            out[i] = count + 1;
+            for (int j = rank; j <= n; j += j & -j) {
+                tree[j]++;
+            }
+        }
+    }
+
     public static boolean sameImpressions(final int[] impressions1, final int[] impressions2, final boolean inOrder) {
         if (impressions1 == null || impressions2 == null) {
             return false;
@@ -300,51 +323,131 @@ public class RecSys19Helper {
         return true;
     }
 
-    public static int[] getStars(final int[] impressions, final MLSparseFeature propFeatMatrix, final Map<Integer, String> propIndexToCat) {
-        int[] stars = new int[impressions.length];
-        for (int i = 0; i < impressions.length; i++) {
-            MLSparseVector featuresProps = propFeatMatrix.getRow(impressions[i], true);
-            int[] propIndexes = featuresProps.getIndexes();
-            if (propIndexes == null) {
-                continue;
+    public static boolean sameImpressions(final int[] impressions1, final MLIntCSR impressions, final int rowIndex, final boolean inOrder) {
+        // same as sameImpressions(int[], int[], boolean) but compares against
+        // a CSR row in place
+        if (impressions1 == null || impressions.isEmpty(rowIndex) == true) {
+            return false;
+        }
+        if (impressions1.length != impressions.getRowLength(rowIndex)) {
+            return false;
+        }
+        int start = impressions.getRowStart(rowIndex);
+        int end = impressions.getRowEnd(rowIndex);
+        if (inOrder == true) {
+            for (int i = 0; i < impressions1.length; i++) {
+                if (impressions1[i] != impressions.getValue(start + i)) {
+                    return false;
+                }
             }
-            for (int j = 0; j < propIndexes.length; j++) {
-                String prop = propIndexToCat.get(propIndexes[j]);
-                if (prop.contains("Star")) {
-                    int star = 0;
-                    if (prop.equals("1 Star")) { star = 1; }
-                    else if (prop.equals("2 Star")) { star = 2; }
-                    else if (prop.equals("3 Star")) { star = 3; }
-                    else if (prop.equals("4 Star")) { star = 4; }
-                    else if (prop.equals("5 Star")) { star = 5; }
-                    if (star != 0 && star < stars[i]) {
-                        stars[i] = star;
+        } else {
+            for (int i = 0; i < impressions1.length; i++) {
+                boolean found = false;
+                for (int j = start; j < end; j++) {
+                    if (impressions1[i] == impressions.getValue(j)) {
+                        found = true;
+                        break;
                     }
                 }
+                if (found == false) {
+                    return false;
+                }
             }
         }
+        return true;
+    }
+
+    /**
+     * @return star class of each impression from the precomputed item
+     * column, see getItemStars()
+     */
+    public static int[] getStars(final int[] impressions, final byte[] itemStars) {
+        int[] stars = new int[impressions.length];
+        for (int i = 0; i < impressions.length; i++) {
+            stars[i] = itemStars[impressions[i]];
+        }
         return stars;
     }
 
-    public static int[] getRatings(final int[] impressions, final MLSparseFeature propFeatMatrix, final Map<Integer, String> propIndexToCat) {
+    /**
+     * @return rating class of each impression from the precomputed item
+     * column, see getItemRatings()
+     */
+    public static int[] getRatings(final int[] impressions, final byte[] itemRatings) {
         int[] ratings = new int[impressions.length];
         for (int i = 0; i < impressions.length; i++) {
-            MLSparseVector featuresProps = propFeatMatrix.getRow(impressions[i], true);
-            int[] propIndexes = featuresProps.getIndexes();
-            if (propIndexes == null) {
-                continue;
+            ratings[i] = itemRatings[impressions[i]];
+        }
+        return ratings;
+    }
+
+    /**
+     * Computes the star class of every item from its properties, items
+     * without a properties row get class 0.
+     */
+    public static byte[] getItemStars(final MLSparseFeature propFeatMatrix, final int nItems) {
+        Map<Integer, String> propIndexToCat = propFeatMatrix.getIndexToCat();
+        int nRows = Math.min(nItems, propFeatMatrix.getFeatMatrix().getNRows());
+        byte[] itemStars = new byte[nItems];
+        IntStream.range(0, nRows).parallel().forEach(item -> {
+            itemStars[item] = (byte) getStar(propFeatMatrix.getRow(item, true), propIndexToCat);
+        });
+        return itemStars;
+    }
+
+    /**
+     * Computes the rating class of every item from its properties, see
+     * getItemStars().
+     */
+    public static byte[] getItemRatings(final MLSparseFeature propFeatMatrix, final int nItems) {
+        Map<Integer, String> propIndexToCat = propFeatMatrix.getIndexToCat();
+        int nRows = Math.min(nItems, propFeatMatrix.getFeatMatrix().getNRows());
+        byte[] itemRatings = new byte[nItems];
+        IntStream.range(0, nRows).parallel().forEach(item -> {
+            itemRatings[item] = (byte) getRating(propFeatMatrix.getRow(item, true), propIndexToCat);
+        });
+        return itemRatings;
+    }
+
+    private static int getStar(final MLSparseVector featuresProps, final Map<Integer, String> propIndexToCat) {
+        int stars = 0;
+        int[] propIndexes = featuresProps.getIndexes();
+        if (propIndexes == null) {
+            return stars;
+        }
+        for (int j = 0; j < propIndexes.length; j++) {
+            String prop = propIndexToCat.get(propIndexes[j]);
+            if (prop.contains("Star")) {
+                int star = 0;
+                if (prop.equals("1 Star")) { star = 1; }
+                else if (prop.equals("2 Star")) { star = 2; }
+                else if (prop.equals("3 Star")) { star = 3; }
+                else if (prop.equals("4 Star")) { star = 4; }
+                else if (prop.equals("5 Star")) { star = 5; }
+                if (star != 0 && star < stars) {
+                    stars = star;
+                }
             }
-            for (int j = 0; j < propIndexes.length; j++) {
-                String prop = propIndexToCat.get(propIndexes[j]);
-                if (prop.contains("Rating")) {
-                    int rating = 0;
-                    if (prop.equals("Satisfactory Rating")) { rating = 1; }
-                    else if (prop.equals("Good Rating")) { rating = 2; }
-                    else if (prop.equals("Very Good Rating")) { rating = 3; }
-                    else if (prop.equals("Excellent Rating")) { rating = 4; }
-                    if (rating != 0 && rating < ratings[i]) {
-                        ratings[i] = rating;
-                    }
+        }
+        return stars;
+    }
+
+    private static int getRating(final MLSparseVector featuresProps, final Map<Integer, String> propIndexToCat) {
+        int ratings = 0;
+        int[] propIndexes = featuresProps.getIndexes();
+        if (propIndexes == null) {
+            return ratings;
+        }
+        for (int j = 0; j < propIndexes.length; j++) {
+            String prop = propIndexToCat.get(propIndexes[j]);
+            if (prop.contains("Rating")) {
+                int rating = 0;
+                if (prop.equals("Satisfactory Rating")) { rating = 1; }
+                else if (prop.equals("Good Rating")) { rating = 2; }
+                else if (prop.equals("Very Good Rating")) { rating = 3; }
+                else if (prop.equals("Excellent Rating")) { rating = 4; }
+                if (rating != 0 && rating < ratings) {
+                    ratings = rating;
                 }
             }
         }
@@ -406,179 +509,4 @@ public class RecSys19Helper {
         }
         return topKMeans;
     }
-
-    public static HashMap<Integer, Integer[]> getIdxStarMap(final int[] impressions, final int[] stars) {
-        HashMap<Integer, LinkedList<Integer>> idxStarsListMap = new HashMap<>();
-        for (int star = 0; star < 6; star++) {
-            idxStarsListMap.put(star, new LinkedList<>());
-        }
-        for (int i = 0; i < impressions.length; i++) {
-            if (idxStarsListMap.get(stars[i]) == null) {
-                idxStarsListMap.put(stars[i], new LinkedList<>());
-            }
-            idxStarsListMap.get(stars[i]).add(i);
-        }
-        HashMap<Integer, Integer[]> idxStarsMap = new HashMap<>();
-        for (int star : idxStarsListMap.keySet()) {
-            idxStarsMap.put(star, idxStarsListMap.get(star).toArray(new Integer[0]));
-        }
-        return idxStarsMap;
-    }
-
-    public static HashMap<Integer, Integer[]> getIdxRatingMap(final int[] impressions, final int[] ratings) {
-        HashMap<Integer, LinkedList<Integer>> idxRatingsListMap = new HashMap<>();
-        for (int rating = 0; rating < 5; rating++) {
-            idxRatingsListMap.put(rating, new LinkedList<>());
-        }
-        for (int i = 0; i < impressions.length; i++) {
-            if (idxRatingsListMap.get(ratings[i]) == null) {
-                idxRatingsListMap.put(ratings[i], new LinkedList<>());
-            }
-            idxRatingsListMap.get(ratings[i]).add(i);
-        }
-        HashMap<Integer, Integer[]> idxRatingsMap = new HashMap<>();
-        for (int rating : idxRatingsListMap.keySet()) {
-            idxRatingsMap.put(rating, idxRatingsListMap.get(rating).toArray(new Integer[0]));
-        }
-        return idxRatingsMap;
-    }
-
-    public static HashMap<String, float[]> getPriceStatsStarsMap(HashMap<Integer, Integer[]> idxStarsMap, int[] prices, int[] priceRanking) {
-        float[] priceMinStar = new float[6];
-        float[] priceRankMinStar = new float[6];
-        float[] priceAverageStar = new float[6];
-        float[] priceRankAverageStar = new float[6];
-        for (int star = 0; star < 6; star++) {
-            Integer[] idxStars = idxStarsMap.get(star);
-            int nItems = 0;
-            float priceMin = 0F;
-            float priceRankMin = 0F;
-            float priceSum = 0F;
-            float priceRankSum = 0F;
-            for (int i = 0; i < idxStars.length; i++) {
-                if (i == 0 || prices[idxStars[i]] < priceMin) {
-                    priceMin = prices[idxStars[i]];
-                    priceRankMin = priceRanking[idxStars[i]];
-                }
-                priceSum += prices[idxStars[i]];
-                priceRankSum += priceRanking[idxStars[i]];
-                nItems++;
-            }
-            if (nItems > 0) {
-                priceMinStar[star] = priceMin;
-                priceRankMinStar[star] = priceRankMin;
-                priceAverageStar[star] = priceSum / (float) nItems;
-                priceRankAverageStar[star] = priceRankSum / (float) nItems;
-            }
-        }
-        HashMap<String, float[]> priceStatsStarsMap = new HashMap<>();
-        priceStatsStarsMap.put("priceMinStar", priceMinStar);
-        priceStatsStarsMap.put("priceRankMinStar", priceRankMinStar);
-        priceStatsStarsMap.put("priceAverageStar", priceAverageStar);
-        priceStatsStarsMap.put("priceRankAverageStar", priceRankAverageStar);
-        return priceStatsStarsMap;
-    }
-
-    public static HashMap<String, float[]> getPriceStatsRatingsMap(HashMap<Integer, Integer[]> idxRatingsMap, int[] prices, int[] priceRanking) {
-        float[] priceMinRating = new float[5];
-        float[] priceRankMinRating = new float[5];
-        float[] priceAverageRating = new float[5];
-        float[] priceRankAverageRating = new float[5];
-        for (int rating = 0; rating < 5; rating++) {
-            Integer[] idxRatings = idxRatingsMap.get(rating);
-            int nItems = 0;
-            float priceMin = 0F;
-            float priceRankMin = 0F;
-            float priceSum = 0F;
-            float priceRankSum = 0F;
-            for (int i = 0; i < idxRatings.length; i++) {
-                if (i == 0 || prices[idxRatings[i]] < priceMin) {
-                    priceMin = prices[idxRatings[i]];
-                    priceRankMin = priceRanking[idxRatings[i]];
-                }
-                priceSum += prices[idxRatings[i]];
-                priceRankSum += priceRanking[idxRatings[i]];
-                nItems++;
-            }
-            if (nItems > 0) {
-                priceMinRating[rating] = priceMin;
-                priceRankMinRating[rating] = priceRankMin;
-                priceAverageRating[rating] = priceSum / (float) nItems;
-                priceRankAverageRating[rating] = priceRankSum / (float) nItems;
-            }
-        }
-        HashMap<String, float[]> priceStatsRatingsMap = new HashMap<>();
-        priceStatsRatingsMap.put("priceMinRating", priceMinRating);
-        priceStatsRatingsMap.put("priceRankMinRating", priceRankMinRating);
-        priceStatsRatingsMap.put("priceAverageRating", priceAverageRating);
-        priceStatsRatingsMap.put("priceRankAverageRating", priceRankAverageRating);
-        return priceStatsRatingsMap;
-    }
-
-    public static HashMap<String, HashMap<Integer, Integer>> getStarRankingMaps(HashMap<Integer, Integer[]> idxStarsMap, int[] prices) {
-        HashMap<Integer, Integer> rankStarsMap = new HashMap<>();
-        HashMap<Integer, Integer> rankLocalStarsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceStarsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceRankLocalStarsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceRankLocalAboveStarsMap = new HashMap<>();
-        for (int star = 0; star < 6; star++) {
-            Integer[] idxsStar = idxStarsMap.get(star);
-            int[] rankStars = new int[idxsStar.length];
-            int[] rankLocalStars = new int[idxsStar.length];
-            int[] priceStars = new int[idxsStar.length];
-            for (int i = 0; i < idxsStar.length; i++) {
-                rankStars[i] = idxsStar[i] + 1;
-                rankLocalStars[i] = i + 1;
-                priceStars[i] = prices[idxsStar[i]];
-            }
-            int[] priceRankLocalStars = RecSys19Helper.argsort(priceStars, true, true);
-            int[] priceRankLocalAboveStars = RecSys19Helper.getPriceRankAbove(priceRankLocalStars);
-            for (int i = 0; i < idxsStar.length; i++) {
-                rankStarsMap.put(idxsStar[i], rankStars[i]);
-                rankLocalStarsMap.put(idxsStar[i], rankLocalStars[i]);
-                priceStarsMap.put(idxsStar[i], priceStars[i]);
-                priceRankLocalStarsMap.put(idxsStar[i], priceRankLocalStars[i]);
-                priceRankLocalAboveStarsMap.put(idxsStar[i], priceRankLocalAboveStars[i]);
-            }
-        }
-        HashMap<String, HashMap<Integer, Integer>> starRankLocalMaps = new HashMap<>();
-        starRankLocalMaps.put("rankLocalStars", rankLocalStarsMap);
-        starRankLocalMaps.put("priceRankLocalStars", priceRankLocalStarsMap);
-        starRankLocalMaps.put("priceRankLocalAboveStars", priceRankLocalAboveStarsMap);
-        return starRankLocalMaps;
-    }
-
-    public static HashMap<String, HashMap<Integer, Integer>> getRatingRankingMaps(HashMap<Integer, Integer[]> idxRatingsMap, int[] prices) {
-        HashMap<Integer, Integer> rankRatingsMap = new HashMap<>();
-        HashMap<Integer, Integer> rankLocalRatingsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceRatingsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceRankLocalRatingsMap = new HashMap<>();
-        HashMap<Integer, Integer> priceRankLocalAboveRatingsMap = new HashMap<>();
-        for (int rating = 0; rating < 5; rating++) {
-            Integer[] idxsRating = idxRatingsMap.get(rating);
-            int[] rankRatings = new int[idxsRating.length];
-            int[] rankLocalRatings = new int[idxsRating.length];
-            int[] priceRatings = new int[idxsRating.length];
-            for (int i = 0; i < idxsRating.length; i++) {
-                rankRatings[i] = idxsRating[i] + 1;
-                rankLocalRatings[i] = i + 1;
-                priceRatings[i] = prices[idxsRating[i]];
-            }
-            int[] priceRankLocalRatings = RecSys19Helper.argsort(priceRatings, true, true);
-            int[] priceRankLocalAboveRatings = RecSys19Helper.getPriceRankAbove(priceRankLocalRatings);
-            for (int i = 0; i < idxsRating.length; i++) {
-                rankRatingsMap.put(idxsRating[i], rankRatings[i]);
-                rankLocalRatingsMap.put(idxsRating[i], rankLocalRatings[i]);
-                priceRatingsMap.put(idxsRating[i], priceRatings[i]);
-                priceRankLocalRatingsMap.put(idxsRating[i], priceRankLocalRatings[i]);
-                priceRankLocalAboveRatingsMap.put(idxsRating[i], priceRankLocalAboveRatings[i]);
-            }
-        }
-        HashMap<String, HashMap<Integer, Integer>> ratingRankLocalMaps = new HashMap<>();
-        ratingRankLocalMaps.put("rankLocalRatings", rankLocalRatingsMap);
-        ratingRankLocalMaps.put("priceRankLocalRatings", priceRankLocalRatingsMap);
-        ratingRankLocalMaps.put("priceRankLocalAboveRatings", priceRankLocalAboveRatingsMap);
-        return ratingRankLocalMaps;
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,199 @@
+package recsys2019;
+import common.linalg.MLSparseMatrix;
+import common.linalg.MLSparseVector;
+import common.utils.MLColumnStore;
+import common.utils.MLTimer;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Top-K item-item neighbour index of a normalized user-item matrix. Row i
+ * of the CSR layout holds the K items with the largest column products
+ * with item i, sorted by item index for lookup. Items with at most K
+ * neighbours keep all of them and are marked complete so a missing pair
+ * has similarity 0, for other items a missing pair is computed from the
+ * matrix.
+ * <p>
+ * Products are accumulated in increasing user order in double precision,
+ * the same as MLSparseVector.multiply(), so get() gives the same value as
+ * RecSys19Helper.getItemItemForItem().
+ */
+public class RecSys19ItemNeighbours {
+
+    private static MLTimer timer;
+
+    static {
+        timer = new MLTimer("RecSys19ItemNeighbours");
+        timer.tic();
+    }
+
+    private int[] offsets;
+    private int[] neighbours;
+    private float[] similarities;
+    private byte[] complete;
+
+    private RecSys19ItemNeighbours(final int[] offsetsP, final int[] neighboursP, final float[] similaritiesP,
+                                   final byte[] completeP) {
+        this.offsets = offsetsP;
+        this.neighbours = neighboursP;
+        this.similarities = similaritiesP;
+        this.complete = completeP;
+    }
+
+    /**
+     * Builds the index with one sparse R^T R pass per item in parallel.
+     *
+     * @param R  normalized user-item matrix
+     * @param Rt transpose of R
+     * @param K  number of neighbours kept per item
+     */
+    public static RecSys19ItemNeighbours build(final MLSparseMatrix R, final MLSparseMatrix Rt, final int K) {
+        final int nItems = Rt.getNRows();
+        int[][] rowNeighbours = new int[nItems][];
+        float[][] rowSimilarities = new float[nItems][];
+        byte[] complete = new byte[nItems];
+        ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(() -> new Accumulator(R.getNCols()));
+        IntStream.range(0, nItems).parallel().forEach(item -> {
+            MLSparseVector itemCol = Rt.getRow(item, false);
+            if (itemCol == null) {
+                complete[item] = 1;
+                return;
+            }
+            Accumulator acc = accumulators.get();
+            int[] users = itemCol.getIndexes();
+            float[] userValues = itemCol.getValues();
+            for (int i = 0; i < users.length; i++) {
+                MLSparseVector userRow = R.getRow(users[i], false);
+                if (userRow == null) {
+                    continue;
+                }
+                int[] items = userRow.getIndexes();
+                float[] itemValues = userRow.getValues();
+                for (int j = 0; j < items.length; j++) {
+                    acc.add(items[j], userValues[i] * itemValues[j]);
+                }
+            }
+            int n = Math.min(K, acc.nTouched);
+            if (acc.nTouched <= K) {
+                complete[item] = 1;
+                System.arraycopy(acc.touched, 0, acc.selected, 0, n);
+            } else {
+                // similarities are non negative so float bits order like
+                // values, ties keep the smaller item index
+                for (int i = 0; i < acc.nTouched; i++) {
+                    int neighbour = acc.touched[i];
+                    acc.keys[i] = ((long) Float.floatToIntBits((float) acc.sums[neighbour]) << 32)
+                            | (Integer.MAX_VALUE - neighbour);
+                }
+                Arrays.sort(acc.keys, 0, acc.nTouched);
+                for (int i = 0; i < n; i++) {
+                    acc.selected[i] = Integer.MAX_VALUE - (int) acc.keys[acc.nTouched - 1 - i];
+                }
+            }
+            Arrays.sort(acc.selected, 0, n);
+            rowNeighbours[item] = Arrays.copyOf(acc.selected, n);
+            rowSimilarities[item] = new float[n];
+            for (int i = 0; i < n; i++) {
+                rowSimilarities[item][i] = (float) acc.sums[acc.selected[i]];
+            }
+            acc.clear();
+        });
+
+        int[] offsets = new int[nItems + 1];
+        for (int i = 0; i < nItems; i++) {
+            offsets[i + 1] = offsets[i] + (rowNeighbours[i] == null ? 0 : rowNeighbours[i].length);
+        }
+        int[] neighbours = new int[offsets[nItems]];
+        float[] similarities = new float[offsets[nItems]];
+        IntStream.range(0, nItems).parallel().forEach(i -> {
+            if (rowNeighbours[i] != null) {
+                System.arraycopy(rowNeighbours[i], 0, neighbours, offsets[i], rowNeighbours[i].length);
+                System.arraycopy(rowSimilarities[i], 0, similarities, offsets[i], rowSimilarities[i].length);
+            }
+        });
+        timer.toc("build " + nItems + " items nnz " + neighbours.length);
+        return new RecSys19ItemNeighbours(offsets, neighbours, similarities, complete);
+    }
+
+    /**
+     * @param Rt matrix the index was built from, used for pairs that are
+     *           not in the index
+     * @return product of the columns of item and anotherItem
+     */
+    public float get(final int item, final int anotherItem, final MLSparseMatrix Rt) {
+        int pos = Arrays.binarySearch(this.neighbours, this.offsets[item], this.offsets[item + 1], anotherItem);
+        if (pos >= 0) {
+            return this.similarities[pos];
+        }
+        if (this.complete[item] != 0) {
+            return 0f;
+        }
+        return RecSys19Helper.getItemItemForItem(item, anotherItem, Rt);
+    }
+
+    public int getNItems() {
+        return this.offsets.length - 1;
+    }
+
+    public void toColumns(final MLColumnStore store, final String name) throws IOException {
+        store.writeInts(name + ".offsets", this.offsets);
+        store.writeInts(name + ".neighbours", this.neighbours);
+        store.writeFloats(name + ".similarities", this.similarities);
+        store.writeBytes(name + ".complete", this.complete);
+    }
+
+    public static RecSys19ItemNeighbours fromColumns(final MLColumnStore store, final String name)
+            throws IOException {
+        int[] offsets = store.readInts(name + ".offsets");
+        int[] neighbours = store.readInts(name + ".neighbours");
+        float[] similarities = store.readFloats(name + ".similarities");
+        byte[] complete = store.readBytes(name + ".complete");
+        int nItems = offsets.length - 1;
+        if (neighbours.length != offsets[nItems] || similarities.length != offsets[nItems]
+                || complete.length != nItems) {
+            throw new IOException("inconsistent columns for " + name);
+        }
+        return new RecSys19ItemNeighbours(offsets, neighbours, similarities, complete);
+    }
+
+    /**
+     * Dense per thread scratch with a bitset and list of touched items.
+     */
+    private static class Accumulator {
+        private double[] sums;
+        private long[] touchedBits;
+        private int[] touched;
+        private int[] selected;
+        private long[] keys;
+        private int nTouched;
+
+        private Accumulator(final int nItems) {
+            this.sums = new double[nItems];
+            this.touchedBits = new long[(nItems + 63) >>> 6];
+            this.touched = new int[nItems];
+            this.selected = new int[nItems];
+            this.keys = new long[nItems];
+            this.nTouched = 0;
+        }
+
+        private void add(final int item, final float value) {
+            long bit = 1L << item;
+            if ((this.touchedBits[item >>> 6] & bit) == 0) {
+                this.touchedBits[item >>> 6] |= bit;
+                this.touched[this.nTouched] = item;
+                this.nTouched++;
+            }
+            this.sums[item] += value;
+        }
+
+        private void clear() {
+            for (int i = 0; i < this.nTouched; i++) {
+                int item = this.touched[i];
+                this.sums[item] = 0;
+                this.touchedBits[item >>> 6] = 0;
+            }
+            this.nTouched = 0;
+        }
+    }
+}
@@ -3,14 +3,15 @@ import common.eval.MLEvaluator;
 import common.eval.MLEvaluatorAUC;
 import common.eval.MLEvaluatorMRR;
 import common.linalg.FloatElement;
+import common.linalg.MLIntCSR;
 import common.linalg.MLSparseMatrix;
-import common.linalg.MLSparseMatrixAOO;
 import common.linalg.MLSparseMatrixFlat;
-import common.linalg.MLSparseVector;
+import common.utils.MLBlockCodec;
 import common.utils.MLConcurrentUtils;
 import common.utils.MLIOUtils;
 import common.utils.MLRandomUtils;
 import common.utils.MLTimer;
+import common.xgb.MLDMatrixStore;
 import common.xgb.MLXGBoost;
 import common.xgb.XGBEvaluator;
 import ml.dmlc.xgboost4j.java.Booster;
@@ -18,18 +19,19 @@ import ml.dmlc.xgboost4j.java.DMatrix;
 import ml.dmlc.xgboost4j.java.IEvaluation;
 import ml.dmlc.xgboost4j.java.XGBoost;
 import recsys2019.RecSys19Data.SessionFeature;
-import recsys2019.RecSys19FeatureExtractor.SessionInstance;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
@@ -41,8 +43,52 @@ public class RecSys19Model {
         public boolean removeValid = true;
         public int nTrainZeros = 20;
         public float sampleTargetProb = 0.2f;
+        // codec for trainXGB/validXGB and .preds files, null writes plain
+        // LIBSVM and serialized files that external tools can read, readers
+        // detect compression
+        public MLBlockCodec outputCodec = null;
+        // directory of cached RecSys19FeatureExtractor statistics, entries
+        // are keyed by data fingerprint and config, null disables caching
+        public String featureStorePath = null;
+        // fail when the feature store entry is missing instead of building
+        // it, set for shard processes that must not build it concurrently
+        public boolean requireFeatureStore = false;
+        // neighbours per item kept by RecSys19ItemNeighbours, 0 computes
+        // item-item similarities on the fly. Building the index is a full
+        // R^T R top-K pass over both user-item matrices and pairs missing
+        // from it still fall back to the exact product, so it only pays off
+        // when it is built once into the feature store and loaded by later
+        // stages. It is ignored when featureStorePath is null
+        public int nItemNeighbours = 0;
+        // extract writes MLDMatrixStore directories instead of LIBSVM text
+        public boolean binaryOutput = false;
     }
 
+    /**
+     * Train and valid buffers of the chunks of a trainXGBModelStreaming()
+     * batch in index order, or the exception that stopped the batch.
+     */
+    private static class StreamBatch {
+        private MLDMatrixStore.Buffer[][] chunks;
+        private RuntimeException failure;
+    }
+
+    /**
+     * LIBSVM lines and group sizes of a chunk of clickouts.
+     */
+    private static class TextChunk {
+        private StringBuilder train = new StringBuilder();
+        private StringBuilder trainGroups = new StringBuilder();
+        private StringBuilder valid = new StringBuilder();
+        private StringBuilder validGroups = new StringBuilder();
+    }
+
+    // clickouts per extract chunk and chunks held in memory per thread
+    private static final int EXTRACT_CHUNK = 64;
+    private static final int EXTRACT_WINDOW = 2;
+    // extract chunks per thread in a streaming batch and batches queued
+    private static final int STREAM_BATCH_CHUNKS = 4;
+    private static final int STREAM_QUEUE_SIZE = 2;
     private static MLTimer timer;
 
     static {
@@ -71,14 +117,14 @@ public class RecSys19Model {
         Arrays.fill(values, 1.0f);
         for (int i = 0; i < indexes.length; i++) {
             int targetIndex = data.validEventIndexes[i];
-            indexes[i] = data.referenceItems[targetIndex];
+            indexes[i] = data.getReferenceItems()[targetIndex];
         }
-        return new MLSparseMatrixFlat(indexes, values, data.itemIdToIndex.size());
+        return new MLSparseMatrixFlat(indexes, values, data.getItemIdToIndex().size());
     }
 
     public static int[] getTrainIndexes(final RecSys19Data data, final RecSys19Config config, final String outFile) throws Exception {
-        Map<Integer, String> indexToUser = data.sessionFeatures.get(SessionFeature.user_id).getIndexToCat();
-        Map<Integer, String> indexToSession = data.sessionFeatures.get(SessionFeature.session_id).getIndexToCat();
+        Map<Integer, String> indexToUser = data.getSessionFeature(SessionFeature.user_id).getIndexToCat();
+        Map<Integer, String> indexToSession = data.getSessionFeature(SessionFeature.session_id).getIndexToCat();
         final long TRAIN_END = RecSys19Data.VALID_SPLIT_START;
         final long TRAIN_START = TRAIN_END - config.trainDelta;
         final int clickAction = RecSys19Helper.getActionIndex(RecSys19Data.CLICKOUT_ITEM_ACTION, data);
@@ -88,51 +134,51 @@ public class RecSys19Model {
             writer = new BufferedWriter(new FileWriter(outFile));
         }
         Random random = new Random(1);
-        for (Map.Entry<Integer, Set<Integer>> entry : data.trainToSessionStart.entrySet()) {
-            for (int startIndex : entry.getValue()) {
-                if (data.timeStamps[startIndex] < TRAIN_START || data.timeStamps[startIndex] > TRAIN_END) {
+        RecSys19SessionTable sessions = data.getSessions();
+        int[] actionColumn = data.getIndexColumn(SessionFeature.action_type);
+        // random sampling depends on the order sessions are visited in, keep
+        // the order of the former session map so the train set is unchanged
+        int[] trainSessions = sessions.getLegacyTrainOrder(data.getIndexColumn(SessionFeature.session_id),
+                data.getSessionFeature(SessionFeature.session_id).getCatToIndex().size());
+        for (int session : trainSessions) {
+            int startIndex = sessions.getSessionStart(session);
+            int endIndex = sessions.getSessionEnd(session);
+            if (data.getTimeStamps()[startIndex] < TRAIN_START || data.getTimeStamps()[startIndex] > TRAIN_END) {
+                continue;
+            }
+            List<Integer> allClicks = new LinkedList();
+            for (int curIndex = startIndex; curIndex < endIndex; curIndex++) {
+                boolean isLast = curIndex == endIndex - 1;
+                int curAction = actionColumn[curIndex];
+                if (curAction != clickAction) {
+                    continue;
+                }
+                int clickedItem = data.getReferenceItems()[curIndex];
+                if (clickedItem < 0) {
                     continue;
                 }
-                int sessionIndex = RecSys19Helper.getIndex(startIndex, SessionFeature.session_id, data);
-                int curIndex = startIndex - 1;
-                List<Integer> allClicks = new LinkedList();
-                while (true) {
-                    curIndex++;
-                    if (sessionIndex != RecSys19Helper.getIndex(curIndex, SessionFeature.session_id, data)) {
+                boolean found = false;
+                MLIntCSR impressions = data.getImpressions();
+                for (int i = impressions.getRowStart(curIndex); i < impressions.getRowEnd(curIndex); i++) {
+                    if (clickedItem == impressions.getValue(i)) {
+                        found = true;
                         break;
                     }
-                    int nextSessionIndex = RecSys19Helper.getIndex(curIndex + 1, SessionFeature.session_id, data);
-                    int curAction = RecSys19Helper.getIndex(curIndex, SessionFeature.action_type, data);
-                    if (curAction != clickAction) {
-                        continue;
-                    }
-                    int clickedItem = data.referenceItems[curIndex];
-                    if (clickedItem < 0) {
-                        continue;
-                    }
-                    boolean found = false;
-                    int[] impressions = data.impressions[curIndex];
-                    for (int i = 0; i < impressions.length; i++) {
-                        if (clickedItem == impressions[i]) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (found == false || RecSys19Helper.isValidIndex(curIndex, data) == true) {
-                        continue;
-                    }
-                    if (sessionIndex == nextSessionIndex) {
-                        allClicks.add(curIndex);
-                    }
-                    if (sessionIndex != nextSessionIndex || random.nextFloat() < config.sampleTargetProb) {
-                        trainIndexes.add(curIndex);
-                        if (writer != null) {
-                            String userId = indexToUser.get(RecSys19Helper.getIndex(curIndex, SessionFeature.user_id, data));
-                            String sessionId = indexToSession.get(RecSys19Helper.getIndex(curIndex, SessionFeature.session_id, data));
-                            int step = (int) RecSys19Helper.getValue(curIndex, SessionFeature.step, data);
-                            long timeStamp = data.timeStamps[curIndex];
-                            writer.write(userId + "," + sessionId + "," + timeStamp + "," + step + "\n");
-                        }
+                }
+                if (found == false || RecSys19Helper.isValidIndex(curIndex, data) == true) {
+                    continue;
+                }
+                if (isLast == false) {
+                    allClicks.add(curIndex);
+                }
+                if (isLast == true || random.nextFloat() < config.sampleTargetProb) {
+                    trainIndexes.add(curIndex);
+                    if (writer != null) {
+                        String userId = indexToUser.get(RecSys19Helper.getIndex(curIndex, SessionFeature.user_id, data));
+                        String sessionId = indexToSession.get(RecSys19Helper.getIndex(curIndex, SessionFeature.session_id, data));
+                        int step = (int) RecSys19Helper.getValue(curIndex, SessionFeature.step, data);
+                        long timeStamp = data.getTimeStamps()[curIndex];
+                        writer.write(userId + "," + sessionId + "," + timeStamp + "," + step + "\n");
                     }
                 }
             }
@@ -150,81 +196,326 @@ public class RecSys19Model {
     }
 
     public void extractXGBModel(final String trainFile, final String validFile, final boolean combine) {
+        this.extractXGBModel(trainFile, validFile, combine, 0, 1);
+    }
+
+    /**
+     * Extracts shard shardId of nShards. The train then valid clickouts are
+     * split into nShards contiguous index ranges, shard s writes range s to
+     * getShardFile() files so that mergeXGBModel() concatenates the shards
+     * into the same files as an unsharded extract. Shards can run in
+     * separate processes that share the parsed data, the feature store
+     * entry is built once beforehand with the "features" run mode and main
+     * sets requireFeatureStore for sharded extracts so they only read it.
+     */
+    public void extractXGBModel(final String trainFile, final String validFile, final boolean combine,
+                                final int shardId, final int nShards) {
+        if (shardId < 0 || shardId >= nShards) {
+            throw new IllegalArgumentException("invalid shard " + shardId + " of " + nShards);
+        }
         int nTrain = this.data.trainEventIndexes.length;
         int nValid = this.data.validEventIndexes.length;
-        try (BufferedWriter trainWriter = new BufferedWriter(new FileWriter(trainFile));
+        int start = getShardStart(nTrain + nValid, shardId, nShards);
+        int end = getShardStart(nTrain + nValid, shardId + 1, nShards);
+        String trainShardFile = getShardFile(trainFile, shardId, nShards);
+        String validShardFile = getShardFile(validFile, shardId, nShards);
+        timer.toc("extract shard " + shardId + " of " + nShards + " indexes [" + start + ", " + end + ")");
+        if (this.config.binaryOutput == true) {
+            this.extractXGBModelBinary(trainShardFile, validShardFile, combine, start, end);
+        } else {
+            this.extractXGBModelText(trainShardFile, validShardFile, combine, start, end);
+        }
+    }
+
+    private void extractXGBModelText(final String trainFile, final String validFile, final boolean combine,
+                                     final int start, final int end) {
+        int nTrain = this.data.trainEventIndexes.length;
+        try (BufferedWriter trainWriter = new BufferedWriter(new OutputStreamWriter(
+                MLIOUtils.newOutputStream(trainFile, this.config.outputCodec)));
              BufferedWriter trainGroupWriter = new BufferedWriter(new FileWriter(trainFile + ".gr"));
-             BufferedWriter validWriter = new BufferedWriter(new FileWriter(validFile));
+             BufferedWriter validWriter = new BufferedWriter(new OutputStreamWriter(
+                     MLIOUtils.newOutputStream(validFile, this.config.outputCodec)));
              BufferedWriter validGroupWriter = new BufferedWriter(new FileWriter(validFile + ".gr"))) {
             AtomicInteger counter = new AtomicInteger(0);
             AtomicInteger counterPrint = new AtomicInteger(0);
-            IntStream.range(0, nTrain + nValid).parallel().forEach(index -> {
-                int count = counter.incrementAndGet();
-                if (count % 50_000 == 0) {
-                    timer.tocLoop("extractXGBModel", count);
-                }
-                int targetIndex;
-                boolean isTrain;
-                if (index < nTrain) {
-                    targetIndex = this.data.trainEventIndexes[index];
-                    isTrain = true;
-                } else {
-                    targetIndex = this.data.validEventIndexes[index - nTrain];
-                    isTrain = false;
-                }
-                SessionInstance[] instances = this.featExtractor.extractFeatures(targetIndex);
-                if (instances.length > 0 && counterPrint.incrementAndGet() == 1) {
-                    System.out.println("nFeats = " + instances[0].features.getLength());
-                }
-                if (isTrain == true || combine == true) {
-                    StringBuilder builder = new StringBuilder();
-                    MLRandomUtils.shuffle(instances, new Random(index));
-                    int sampleCount = 0;
-                    for (SessionInstance instance : instances) {
-                        if (instance.target == 1) {
-                            builder.append(instance.target + instance.features.toLIBSVMString(0) + "\n");
-                        } else if (sampleCount < this.config.nTrainZeros) {
-                            builder.append(instance.target + instance.features.toLIBSVMString(0) + "\n");
-                            sampleCount++;
-                        }
+            // clickouts are extracted in parallel chunks and written in index
+            // order so output files do not depend on thread scheduling
+            MLConcurrentUtils.OrderedWriter<TextChunk> writer = newExtractWriter();
+            writer.run(getNExtractChunks(end - start), chunk -> {
+                TextChunk text = new TextChunk();
+                int chunkEnd = Math.min(end, start + (chunk + 1) * EXTRACT_CHUNK);
+                for (int index = start + chunk * EXTRACT_CHUNK; index < chunkEnd; index++) {
+                    int count = counter.incrementAndGet();
+                    if (count % 50_000 == 0) {
+                        timer.tocLoop("extractXGBModel", count);
                     }
-                    synchronized (trainWriter) {
-                        try {
-                            trainWriter.write(builder.toString());
-                            trainGroupWriter.write((sampleCount + 1) + "\n");
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                    boolean isTrain = index < nTrain;
+                    RecSys19FeatureRows rows = this.extractRows(index, nTrain);
+                    if (rows.nRows > 0 && counterPrint.incrementAndGet() == 1) {
+                        System.out.println("nFeats = " + rows.nCols);
                     }
-                }
-                if (isTrain == false) {
-                    StringBuilder builder = new StringBuilder();
-                    for (SessionInstance instance : instances) {
-                        builder.append(instance.target + instance.features.toLIBSVMString(0) + "\n");
+                    if (isTrain == true || combine == true) {
+                        int nSelected = this.selectTrainRows(rows, index);
+                        int sampleCount = 0;
+                        for (int i = 0; i < nSelected; i++) {
+                            int row = rows.order[i];
+                            if (rows.targets[row] != 1) {
+                                sampleCount++;
+                            }
+                            text.train.append(rows.targets[row]);
+                            rows.appendLIBSVM(row, 0, text.train);
+                            text.train.append('\n');
+                        }
+                        text.trainGroups.append(sampleCount + 1).append('\n');
                     }
-                    synchronized (validWriter) {
-                        try {
-                            validWriter.write(builder.toString());
-                            validGroupWriter.write(instances.length + "\n");
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                    if (isTrain == false) {
+                        for (int i = 0; i < rows.nRows; i++) {
+                            text.valid.append(rows.targets[i]);
+                            rows.appendLIBSVM(i, 0, text.valid);
+                            text.valid.append('\n');
                         }
+                        text.validGroups.append(rows.nRows).append('\n');
                     }
                 }
+                return text;
+            }, text -> {
+                trainWriter.append(text.train);
+                trainGroupWriter.append(text.trainGroups);
+                validWriter.append(text.valid);
+                validGroupWriter.append(text.validGroups);
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Same instances as extractXGBModel() written as MLDMatrixStore
+     * directories, trainXGBModel() loads them without parsing text.
+     */
+    private void extractXGBModelBinary(final String trainFile, final String validFile, final boolean combine,
+                                       final int start, final int end) {
+        int nCols = this.featExtractor.getNFeatures();
+        try (MLDMatrixStore.Writer trainWriter = new MLDMatrixStore.Writer(trainFile, nCols, this.config.outputCodec);
+             MLDMatrixStore.Writer validWriter = new MLDMatrixStore.Writer(validFile, nCols, this.config.outputCodec)) {
+            AtomicInteger counter = new AtomicInteger(0);
+            MLConcurrentUtils.OrderedWriter<MLDMatrixStore.Buffer[]> writer = newExtractWriter();
+            writer.run(getNExtractChunks(end - start), chunk -> this.extractBuffers(start + chunk * EXTRACT_CHUNK,
+                    Math.min(end, start + (chunk + 1) * EXTRACT_CHUNK), combine, counter), buffers -> {
+                trainWriter.write(buffers[0]);
+                validWriter.write(buffers[1]);
             });
+            timer.toc("extractXGBModelBinary " + trainWriter.getNRows() + " train rows "
+                    + validWriter.getNRows() + " valid rows");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Extracts clickouts [start, end) into train and valid buffers, the same
+     * rows and groups that extractXGBModel() writes. Feature rows are reused
+     * per thread so they are copied.
+     */
+    private MLDMatrixStore.Buffer[] extractBuffers(final int start, final int end, final boolean combine,
+                                                   final AtomicInteger counter) {
+        int nTrain = this.data.trainEventIndexes.length;
+        MLDMatrixStore.Buffer[] buffers = {new MLDMatrixStore.Buffer(), new MLDMatrixStore.Buffer()};
+        for (int index = start; index < end; index++) {
+            int count = counter.incrementAndGet();
+            if (count % 50_000 == 0) {
+                timer.tocLoop("extractBuffers", count);
+            }
+            boolean isTrain = index < nTrain;
+            RecSys19FeatureRows rows = this.extractRows(index, nTrain);
+            if (isTrain == true || combine == true) {
+                int nSelected = this.selectTrainRows(rows, index);
+                for (int i = 0; i < nSelected; i++) {
+                    int row = rows.order[i];
+                    buffers[0].addRow(rows.indexes, rows.values, rows.getRowStart(row), rows.getRowEnd(row),
+                            rows.targets[row]);
+                }
+                buffers[0].endGroup();
+            }
+            if (isTrain == false) {
+                for (int i = 0; i < rows.nRows; i++) {
+                    buffers[1].addRow(rows.indexes, rows.values, rows.getRowStart(i), rows.getRowEnd(i),
+                            rows.targets[i]);
+                }
+                buffers[1].endGroup();
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Concatenates the nShards shards written by extractXGBModel() in shard
+     * order into trainFile and validFile, group files included.
+     */
+    public static void mergeXGBModel(final String trainFile, final String validFile, final int nShards,
+                                     final RecSys19Config config) throws IOException {
+        for (String file : new String[]{trainFile, validFile}) {
+            String[] shardFiles = new String[nShards];
+            String[] shardGroupFiles = new String[nShards];
+            for (int i = 0; i < nShards; i++) {
+                shardFiles[i] = getShardFile(file, i, nShards);
+                shardGroupFiles[i] = shardFiles[i] + ".gr";
+            }
+            if (config.binaryOutput == true) {
+                MLDMatrixStore.concat(shardFiles, file, config.outputCodec);
+            } else {
+                MLIOUtils.concatFiles(shardFiles, file, config.outputCodec);
+                MLIOUtils.concatFiles(shardGroupFiles, file + ".gr", null);
+            }
+            timer.toc("merged " + nShards + " shards into " + file);
+        }
+    }
+
+    /**
+     * @return file of shard shardId, file itself when there is one shard
+     */
+    public static String getShardFile(final String file, final int shardId, final int nShards) {
+        if (nShards == 1) {
+            return file;
+        }
+        return file + "_shard=" + shardId + "_nShards=" + nShards;
+    }
+
+    private static int getShardStart(final int nIndexes, final int shardId, final int nShards) {
+        return (int) ((long) nIndexes * shardId / nShards);
+    }
+
+    private static <T> MLConcurrentUtils.OrderedWriter<T> newExtractWriter() {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        return new MLConcurrentUtils.OrderedWriter<>(nThreads, EXTRACT_WINDOW * nThreads);
+    }
+
+    private static int getNExtractChunks(final int nIndexes) {
+        return (nIndexes + EXTRACT_CHUNK - 1) / EXTRACT_CHUNK;
+    }
+
+    private RecSys19FeatureRows extractRows(final int index, final int nTrain) {
+        if (index < nTrain) {
+            return this.featExtractor.extractFeatureRows(this.data.trainEventIndexes[index]);
+        } else {
+            return this.featExtractor.extractFeatureRows(this.data.validEventIndexes[index - nTrain]);
+        }
+    }
+
+    /**
+     * Moves the training rows of a clickout to the front of rows.order in
+     * shuffled order, all positives and up to nTrainZeros negatives.
+     *
+     * @return number of selected rows
+     */
+    private int selectTrainRows(final RecSys19FeatureRows rows, final int index) {
+        for (int i = 0; i < rows.nRows; i++) {
+            rows.order[i] = i;
+        }
+        MLRandomUtils.shuffle(rows.order, 0, rows.nRows, new Random(index));
+        int nSelected = 0;
+        int sampleCount = 0;
+        for (int i = 0; i < rows.nRows; i++) {
+            int row = rows.order[i];
+            if (rows.targets[row] == 1) {
+                rows.order[nSelected] = row;
+                nSelected++;
+            } else if (sampleCount < this.config.nTrainZeros) {
+                rows.order[nSelected] = row;
+                nSelected++;
+                sampleCount++;
+            }
+        }
+        return nSelected;
+    }
+
     public void trainXGBModel(final String trainFile, final String validFile, final String modelPath, final String modelVersion) throws Exception {
-        int rounds;
-        int earlyStoppingRounds;
         System.out.printf("Loading '%s'...\n", trainFile);
-        DMatrix trainData = new DMatrix(trainFile);
+        DMatrix trainData = MLXGBoost.loadDMatrix(trainFile);
         System.out.printf("Loading '%s'...\n", validFile);
-        DMatrix validData = new DMatrix(validFile);
+        DMatrix validData = MLXGBoost.loadDMatrix(validFile);
+        this.trainXGBModel(trainData, validData, modelPath, modelVersion);
+    }
+
+    /**
+     * Extracts the same instances as extractXGBModel() and trains on them in
+     * memory, no feature files are written or loaded. Batches of clickouts
+     * are extracted in parallel on a PreloadingQueue thread while the calling
+     * thread appends finished batches in index order to the train and valid
+     * CSR buffers, the bounded queue limits how many batches are held.
+     */
+    public void trainXGBModelStreaming(final String modelPath, final String modelVersion) throws Exception {
+        int nIndexes = this.data.trainEventIndexes.length + this.data.validEventIndexes.length;
+        int batchSize = STREAM_BATCH_CHUNKS * EXTRACT_CHUNK * Runtime.getRuntime().availableProcessors();
+        int nBatches = (nIndexes + batchSize - 1) / batchSize;
+        AtomicInteger counter = new AtomicInteger(0);
+        Iterator<StreamBatch> batches = new Iterator<StreamBatch>() {
+            private int batch = 0;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (this) {
+                    return this.batch < nBatches;
+                }
+            }
+
+            @Override
+            public StreamBatch next() {
+                int start;
+                synchronized (this) {
+                    start = this.batch * batchSize;
+                    this.batch++;
+                }
+                int end = Math.min(nIndexes, start + batchSize);
+                StreamBatch result = new StreamBatch();
+                try {
+                    result.chunks = new MLDMatrixStore.Buffer[getNExtractChunks(end - start)][];
+                    IntStream.range(0, result.chunks.length).parallel().forEach(chunk ->
+                            result.chunks[chunk] = extractBuffers(start + chunk * EXTRACT_CHUNK,
+                                    Math.min(end, start + (chunk + 1) * EXTRACT_CHUNK), false, counter));
+                } catch (RuntimeException e) {
+                    // the queue thread drops exceptions, hand it to the consumer
+                    result.failure = e;
+                }
+                return result;
+            }
+        };
+
+        MLDMatrixStore.Buffer trainBuffer = new MLDMatrixStore.Buffer();
+        MLDMatrixStore.Buffer validBuffer = new MLDMatrixStore.Buffer();
+        try (MLConcurrentUtils.PreloadingQueue<StreamBatch> queue =
+                     new MLConcurrentUtils.PreloadingQueue<>(batches, STREAM_QUEUE_SIZE)) {
+            if (nBatches > 0) {
+                queue.warmupOneBlocking();
+            }
+            // batches are counted instead of polling hasMore(), the last
+            // batch can be in flight between the iterator and the queue
+            for (int i = 0; i < nBatches; i++) {
+                StreamBatch batch = queue.pop();
+                if (batch.failure != null) {
+                    throw batch.failure;
+                }
+                for (MLDMatrixStore.Buffer[] chunk : batch.chunks) {
+                    trainBuffer.addAll(chunk[0]);
+                    validBuffer.addAll(chunk[1]);
+                }
+            }
+        }
+        timer.toc("trainXGBModelStreaming " + trainBuffer.getNRows() + " train rows "
+                + validBuffer.getNRows() + " valid rows");
+
+        int nCols = this.featExtractor.getNFeatures();
+        DMatrix trainData = trainBuffer.toDMatrix(nCols);
+        trainBuffer = null;
+        DMatrix validData = validBuffer.toDMatrix(nCols);
+        validBuffer = null;
+        this.trainXGBModel(trainData, validData, modelPath, modelVersion);
+    }
+
+    private void trainXGBModel(final DMatrix trainData, final DMatrix validData, final String modelPath,
+                               final String modelVersion) throws Exception {
+        int rounds;
+        int earlyStoppingRounds;
         Map<String, Object> params = new HashMap<>();
         params.put("booster", "gbtree");
         params.put("eta", 0.1);
@@ -284,25 +575,21 @@ public class RecSys19Model {
             if (coldStartOnly == true) {
                 int step = (int) RecSys19Helper.getValue(targetIndex, SessionFeature.step, this.data);
                 int userIndex = RecSys19Helper.getIndex(targetIndex, SessionFeature.user_id, this.data);
-                if (step != 1 || this.data.userToSessionStart.get(userIndex).size() != 1) {
+                if (step != 1 || this.data.getSessions().getNUserSessions(userIndex) != 1) {
                     return;
                 }
             }
-            SessionInstance[] instances = this.featExtractor.extractFeatures(targetIndex);
-            if (instances.length > 0 && counterPrint.incrementAndGet() == 1) {
-                System.out.println("nFeats = " + instances[0].features.getLength());
-            }
-            MLSparseVector[] feats = new MLSparseVector[instances.length];
-            for (int i = 0; i < instances.length; i++) {
-                feats[i] = instances[i].features;
+            RecSys19FeatureRows rows = this.featExtractor.extractFeatureRows(targetIndex);
+            if (rows.nRows > 0 && counterPrint.incrementAndGet() == 1) {
+                System.out.println("nFeats = " + rows.nCols);
             }
-            FloatElement[] pred = new FloatElement[feats.length];
+            FloatElement[] pred = new FloatElement[rows.nRows];
             DMatrix xgbMat = null;
             try {
-                xgbMat = MLXGBoost.toDMatrix(new MLSparseMatrixAOO(feats, feats[0].getLength()));
+                xgbMat = MLXGBoost.toDMatrix(rows.rowOffsets, rows.indexes, rows.values, rows.nRows, rows.nCols);
                 float[][] xgbPreds = xgbModelFactory.get().predict(xgbMat);
-                for (int i = 0; i < feats.length; i++) {
-                    pred[i] = new FloatElement(instances[i].itemIndex, xgbPreds[i][0]);
+                for (int i = 0; i < rows.nRows; i++) {
+                    pred[i] = new FloatElement(rows.itemIndexes[i], xgbPreds[i][0]);
                 }
                 if (predFile != null) {
                     predsUnsorted[index] = pred.clone();
@@ -317,7 +604,7 @@ public class RecSys19Model {
             }
         });
         if (predFile != null) {
-            MLIOUtils.writeObjectToFile(predsUnsorted, predFile);
+            MLIOUtils.writeObjectToFile(predsUnsorted, predFile, this.config.outputCodec);
         }
         timer.tocLoop("validateXGBModel", counter.get());
         timer.toc(this.evaluator.evaluate(this.validTargets, preds).toString());
@@ -325,9 +612,9 @@ public class RecSys19Model {
 
     public void submitXGBModel(final String xgbModel, final String outFile, final String predFile) {
         final MLConcurrentUtils.Async<Booster> xgbModelFactory = MLXGBoost.asyncModel(xgbModel);
-        Map<Integer, String> indexToUser = this.data.sessionFeatures.get(SessionFeature.user_id).getIndexToCat();
-        Map<Integer, String> indexToSession = this.data.sessionFeatures.get(SessionFeature.session_id).getIndexToCat();
-        Map<Integer, Integer> indexToItem = this.data.getIndexToItemId();
+        Map<Integer, String> indexToUser = this.data.getSessionFeature(SessionFeature.user_id).getIndexToCat();
+        Map<Integer, String> indexToSession = this.data.getSessionFeature(SessionFeature.session_id).getIndexToCat();
+        int[] indexToItem = this.data.getIndexToItemId();
         AtomicInteger counter = new AtomicInteger(0);
         AtomicInteger counterPrint = new AtomicInteger(0);
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
@@ -339,21 +626,17 @@ public class RecSys19Model {
                     timer.tocLoop("submitXGBModel", count);
                 }
                 int targetIndex = this.data.testEventIndexes[index];
-                SessionInstance[] instances = this.featExtractor.extractFeatures(targetIndex);
-                if (instances.length > 0 && counterPrint.incrementAndGet() == 1) {
-                    System.out.println("nFeats = " + instances[0].features.getLength());
+                RecSys19FeatureRows rows = this.featExtractor.extractFeatureRows(targetIndex);
+                if (rows.nRows > 0 && counterPrint.incrementAndGet() == 1) {
+                    System.out.println("nFeats = " + rows.nCols);
                 }
-                MLSparseVector[] feats = new MLSparseVector[instances.length];
-                for (int i = 0; i < instances.length; i++) {
-                    feats[i] = instances[i].features;
-                }
-                FloatElement[] pred = new FloatElement[feats.length];
+                FloatElement[] pred = new FloatElement[rows.nRows];
                 DMatrix xgbMat = null;
                 try {
-                    xgbMat = MLXGBoost.toDMatrix(new MLSparseMatrixAOO(feats, feats[0].getLength()));
+                    xgbMat = MLXGBoost.toDMatrix(rows.rowOffsets, rows.indexes, rows.values, rows.nRows, rows.nCols);
                     float[][] xgbPreds = xgbModelFactory.get().predict(xgbMat);
-                    for (int i = 0; i < feats.length; i++) {
-                        pred[i] = new FloatElement(indexToItem.get(instances[i].itemIndex), xgbPreds[i][0]);
+                    for (int i = 0; i < rows.nRows; i++) {
+                        pred[i] = new FloatElement(indexToItem[rows.itemIndexes[i]], xgbPreds[i][0]);
                     }
                     if (predFile != null) {
                         preds[index] = pred.clone();
@@ -367,7 +650,7 @@ public class RecSys19Model {
                 }
                 String userId = indexToUser.get(RecSys19Helper.getIndex(targetIndex, SessionFeature.user_id, this.data));
                 String sessionId = indexToSession.get(RecSys19Helper.getIndex(targetIndex, SessionFeature.session_id, this.data));
-                long timeStamp = this.data.timeStamps[targetIndex];
+                long timeStamp = this.data.getTimeStamps()[targetIndex];
                 int step = (int) RecSys19Helper.getValue(targetIndex, SessionFeature.step, this.data);
                 StringBuilder builder = new StringBuilder();
                 builder.append(userId + "," + sessionId + "," + timeStamp + "," + step + ",");
@@ -383,7 +666,7 @@ public class RecSys19Model {
                 }
             });
             if (predFile != null) {
-                MLIOUtils.writeObjectToFile(preds, predFile);
+                MLIOUtils.writeObjectToFile(preds, predFile, this.config.outputCodec);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -407,10 +690,50 @@ public class RecSys19Model {
                 throw new Exception("Invalid modelVersion given!");
             }
             if (!(runMode.equals("extract") || runMode.equals("train") ||
-                    runMode.equals("validate") || runMode.equals("submit"))) {
+                    runMode.equals("validate") || runMode.equals("submit") ||
+                    runMode.equals("merge") || runMode.equals("features"))) {
                 throw new Exception("Invalid runMode given!");
             }
-            RecSys19Data data = MLIOUtils.readObjectFromFile(outPath + "data.parsed", RecSys19Data.class);
+            // optional arguments: binary, compress for LZ4 compressed feature
+            // and preds files, shard=<id>/<count> for extract,
+            // shards=<count> for merge and stream for train, which extracts
+            // and trains in memory without feature files. Sharded extracts
+            // need the feature store entry built by the features run mode
+            boolean binaryOutput = false;
+            boolean compressOutput = false;
+            boolean streamTraining = false;
+            int shardId = 0;
+            int nShards = 1;
+            for (int i = 4; i < args.length; i++) {
+                if (args[i].equals("binary")) {
+                    binaryOutput = true;
+                } else if (args[i].equals("compress")) {
+                    compressOutput = true;
+                } else if (args[i].equals("stream")) {
+                    streamTraining = true;
+                } else if (args[i].startsWith("shard=")) {
+                    String[] shard = args[i].substring("shard=".length()).split("/");
+                    shardId = Integer.parseInt(shard[0]);
+                    nShards = Integer.parseInt(shard[1]);
+                } else if (args[i].startsWith("shards=")) {
+                    nShards = Integer.parseInt(args[i].substring("shards=".length()));
+                } else {
+                    throw new Exception("Invalid argument " + args[i]);
+                }
+            }
+            if (nShards < 1 || shardId < 0 || shardId >= nShards) {
+                throw new Exception("Invalid shard given!");
+            }
+            if (runMode.equals("merge")) {
+                RecSys19Config config = new RecSys19Config();
+                config.binaryOutput = binaryOutput;
+                if (compressOutput == true) {
+                    config.outputCodec = MLBlockCodec.LZ4;
+                }
+                mergeXGBModel(outPath + "trainXGB", outPath + "validXGB", nShards, config);
+                return;
+            }
+            RecSys19Data data = RecSys19DataStore.open(outPath + "data.columns");
             timer.toc("data loaded");
             RecSys19Config config = new RecSys19Config();
             config.sampleTargetProb = 0.2f;
@@ -418,6 +741,17 @@ public class RecSys19Model {
             if (runMode.equals("validate") || runMode.equals("submit")) {
                 config.removeTrain = false;
             }
+            config.featureStorePath = outPath + "features";
+            // the neighbour index is built with the feature store entry
+            // and loaded by the following stages
+            config.nItemNeighbours = 100;
+            config.binaryOutput = binaryOutput;
+            if (compressOutput == true) {
+                config.outputCodec = MLBlockCodec.LZ4;
+            }
+            if (runMode.equals("extract") && nShards > 1) {
+                config.requireFeatureStore = true;
+            }
             RecSys19Model model = new RecSys19Model(data, config);
             String removeTrainStr = "_removeTrain=" + (config.removeTrain ? "1":"0");
             String removeValidStr = "_removeValid=" + (config.removeValid ? "1":"0");
@@ -425,8 +759,13 @@ public class RecSys19Model {
             String predValidFile = outPath + "xgb_valid" + removeTrainStr + removeValidStr + ".preds";
             String predTestFile = outPath + "xgb_test" + removeTrainStr + removeValidStr + ".preds";
             String submitFile = outPath + "submit.csv";
-            if (runMode.equals("extract")) {
-                model.extractXGBModel(outPath + "trainXGB", outPath + "validXGB", false);
+            if (runMode.equals("features")) {
+                // the feature store entry is built or loaded by the model
+                timer.toc("feature store ready in " + config.featureStorePath);
+            } else if (runMode.equals("extract")) {
+                model.extractXGBModel(outPath + "trainXGB", outPath + "validXGB", false, shardId, nShards);
+            } else if (runMode.equals("train") && streamTraining == true) {
+                model.trainXGBModelStreaming(outPath, modelVersion);
             } else if (runMode.equals("train")) {
                 model.trainXGBModel(outPath + "trainXGB", outPath + "validXGB", outPath, modelVersion);
             } else if (runMode.equals("validate")) {
@@ -0,0 +1,352 @@
+package recsys2019;
+import common.feature.MLSparseFeature;
+import common.linalg.MLIntCSR;
+import common.linalg.MLSparseMatrix;
+import common.linalg.MLSparseMatrixFlat;
+import common.linalg.MLSparseVector;
+import common.utils.MLIntIntMap;
+import common.utils.MLMappedCSVReader;
+import common.utils.MLStringDictionary;
+import recsys2019.RecSys19Data.SessionFeature;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses a range of session rows that starts and ends on session boundaries
+ * so that chunks can be loaded in parallel. Rows are written directly into
+ * the shared data arrays at their final positions, except for impressions
+ * and prices which are collected in chunk CSR matrices and appended by the
+ * parser in chunk order. Categories and items are indexed with chunk local
+ * dictionaries in first occurrence order. Once all chunks are parsed
+ * RecSys19DataParser merges the local dictionaries in chunk order, which
+ * assigns global indexes in exactly the same order as the serial parser,
+ * and then calls remap() to rewrite rows with global indexes.
+ */
+class RecSys19SessionChunk {
+    private static final byte PIPE = '|';
+    private static final byte[] UNKNOWN = "unknown".getBytes(StandardCharsets.UTF_8);
+    private static final SessionFeature[] CAT_FEATURES = new SessionFeature[]{
+            SessionFeature.user_id,
+            SessionFeature.session_id,
+            SessionFeature.action_type,
+            SessionFeature.reference_sort_order,
+            SessionFeature.reference_filter,
+            SessionFeature.reference_search_dest,
+            SessionFeature.reference_search_poi,
+            SessionFeature.platform,
+            SessionFeature.city,
+            SessionFeature.device,
+            SessionFeature.current_filters};
+
+    static class LocalDictionary {
+        public MLStringDictionary cats = new MLStringDictionary();
+        public int[] localToGlobal;
+
+        public int getIndex(final String cat) {
+            return this.cats.add(cat);
+        }
+    }
+
+    public long start;
+    public long end;
+    public int rowOffset;
+    public int nRows;
+    public Map<SessionFeature, LocalDictionary> dictionaries;
+    public MLIntIntMap itemToLocal;
+    public int[] items;
+    public int nItems;
+    public int[] itemLocalToGlobal;
+    // impressions and prices with rows relative to rowOffset
+    public MLIntCSR impressions;
+    public MLIntCSR prices;
+    // references that were not found in impressions of this chunk, these are
+    // resolved against the global item map during the merge
+    public List<Integer> pendingRows;
+    public List<Integer> pendingItems;
+    // test clickouts with a reference that did not resolve within this chunk
+    public List<Integer> unresolvedClicks;
+    public List<Integer> sessionStarts;
+    public long minTime;
+    public long maxTime;
+
+    public RecSys19SessionChunk(final long startP, final long endP, final int rowOffsetP, final int nRowsP) {
+        this.start = startP;
+        this.end = endP;
+        this.rowOffset = rowOffsetP;
+        this.nRows = nRowsP;
+        this.dictionaries = new HashMap();
+        for (SessionFeature feature : CAT_FEATURES) {
+            this.dictionaries.put(feature, new LocalDictionary());
+        }
+        this.itemToLocal = new MLIntIntMap(-1);
+        this.items = new int[16];
+        this.nItems = 0;
+        this.impressions = new MLIntCSR(nRowsP);
+        this.prices = new MLIntCSR(nRowsP);
+        this.pendingRows = new ArrayList();
+        this.pendingItems = new ArrayList();
+        this.unresolvedClicks = new ArrayList();
+        this.sessionStarts = new ArrayList();
+    }
+
+    public static SessionFeature[] getCatFeatures() {
+        return CAT_FEATURES;
+    }
+
+    private int getLocalItem(final int itemId) {
+        int index = this.itemToLocal.get(itemId);
+        if (index < 0) {
+            index = this.nItems;
+            this.itemToLocal.put(itemId, index);
+            if (this.items.length == this.nItems) {
+                this.items = Arrays.copyOf(this.items, this.nItems * 2);
+            }
+            this.items[this.nItems] = itemId;
+            this.nItems++;
+        }
+        return index;
+    }
+
+    public void parse(final String file, final String[] headerSplit, final boolean isTrain,
+                      final RecSys19Data data) throws Exception {
+        int userIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.user_id);
+        int sessIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.session_id);
+        int timeIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.timestamp);
+        int stepIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.step);
+        int actionIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.action_type);
+        int referenceIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.reference);
+        int platformIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.platform);
+        int cityIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.city);
+        int deviceIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.device);
+        int filterIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.current_filters);
+        int impressIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.impressions);
+        int priceIndexCSV = SessionFeature.getColumnIndex(headerSplit, SessionFeature.prices);
+
+        LocalDictionary userDict = this.dictionaries.get(SessionFeature.user_id);
+        LocalDictionary sessionDict = this.dictionaries.get(SessionFeature.session_id);
+        LocalDictionary actionDict = this.dictionaries.get(SessionFeature.action_type);
+        LocalDictionary platformDict = this.dictionaries.get(SessionFeature.platform);
+        LocalDictionary cityDict = this.dictionaries.get(SessionFeature.city);
+        LocalDictionary deviceDict = this.dictionaries.get(SessionFeature.device);
+        LocalDictionary filterDict = this.dictionaries.get(SessionFeature.current_filters);
+        MLSparseMatrixFlat userMatrix = getFlat(SessionFeature.user_id, data);
+        MLSparseMatrixFlat sessionMatrix = getFlat(SessionFeature.session_id, data);
+        MLSparseMatrixFlat actionMatrix = getFlat(SessionFeature.action_type, data);
+        MLSparseMatrixFlat platformMatrix = getFlat(SessionFeature.platform, data);
+        MLSparseMatrixFlat cityMatrix = getFlat(SessionFeature.city, data);
+        MLSparseMatrixFlat deviceMatrix = getFlat(SessionFeature.device, data);
+        MLSparseMatrix filterMatrix = data.sessionFeatures.get(SessionFeature.current_filters).getFeatMatrix();
+        MLSparseFeature stepFeature = data.sessionFeatures.get(SessionFeature.step);
+
+        int curSession = -1;
+        int[] impressions = new int[0];
+        int rowIndex = this.rowOffset - 1;
+        int[] filterIndexes = new int[16];
+        try (MLMappedCSVReader reader = new MLMappedCSVReader(file, this.start, this.end)) {
+            while (reader.nextRow() == true) {
+                rowIndex++;
+                if (reader.getNFields() != headerSplit.length) {
+                    throw new Exception("split length doesn't match");
+                }
+                int userIndex = userDict.getIndex(reader.getString(userIndexCSV));
+                userMatrix.setRow(userIndex, 1, rowIndex);
+                int sessionIndex = sessionDict.getIndex(reader.getString(sessIndexCSV));
+                sessionMatrix.setRow(sessionIndex, 1, rowIndex);
+                data.timeStamps[rowIndex] = reader.getLong(timeIndexCSV);
+                if (curSession < 0) {
+                    this.minTime = data.timeStamps[rowIndex];
+                    this.maxTime = data.timeStamps[rowIndex];
+                } else {
+                    if (this.minTime > data.timeStamps[rowIndex]) {
+                        this.minTime = data.timeStamps[rowIndex];
+                    }
+                    if (this.maxTime < data.timeStamps[rowIndex]) {
+                        this.maxTime = data.timeStamps[rowIndex];
+                    }
+                }
+                stepFeature.addRow(rowIndex, reader.getInt(stepIndexCSV));
+                String action = reader.getString(actionIndexCSV);
+                if (action.length() > 0) {
+                    actionMatrix.setRow(actionDict.getIndex(action), 1, rowIndex);
+                }
+                if (reader.isEmpty(platformIndexCSV) == false) {
+                    platformMatrix.setRow(platformDict.getIndex(reader.getString(platformIndexCSV)), 1, rowIndex);
+                }
+                if (reader.isEmpty(cityIndexCSV) == false) {
+                    cityMatrix.setRow(cityDict.getIndex(reader.getString(cityIndexCSV)), 1, rowIndex);
+                }
+                if (reader.isEmpty(deviceIndexCSV) == false) {
+                    deviceMatrix.setRow(deviceDict.getIndex(reader.getString(deviceIndexCSV)), 1, rowIndex);
+                }
+                if (reader.isEmpty(filterIndexCSV) == false) {
+                    String[] filters = reader.getStrings(filterIndexCSV, PIPE);
+                    if (filterIndexes.length < filters.length) {
+                        filterIndexes = new int[filters.length];
+                    }
+                    for (int i = 0; i < filters.length; i++) {
+                        filterIndexes[i] = filterDict.getIndex(filters[i]);
+                    }
+                    filterMatrix.setRow(toCountVector(filterIndexes, filters.length), rowIndex);
+                }
+                if (curSession < 0 || curSession != sessionIndex) {
+                    this.sessionStarts.add(rowIndex);
+                    curSession = sessionIndex;
+                }
+                if (reader.isEmpty(impressIndexCSV) == false) {
+                    int nImpressions = reader.parseInts(impressIndexCSV, PIPE);
+                    if (impressions.length < nImpressions) {
+                        impressions = new int[nImpressions];
+                    }
+                    for (int i = 0; i < nImpressions; i++) {
+                        impressions[i] = this.getLocalItem(reader.getInts()[i]);
+                    }
+                    int nPrices = reader.parseInts(priceIndexCSV, PIPE);
+                    if (nPrices < nImpressions) {
+                        throw new IllegalStateException("fewer prices than impressions " + reader.getLine());
+                    }
+                    this.impressions.setRow(rowIndex - this.rowOffset, impressions, 0, nImpressions);
+                    this.prices.setRow(rowIndex - this.rowOffset, reader.getInts(), 0, nPrices);
+                }
+                if (action.equals(RecSys19Data.CLICKOUT_ITEM_ACTION) ||
+                        action.equals(RecSys19Data.INTERACTION_ITEM_RATING_ACTION) ||
+                        action.equals(RecSys19Data.INTERACTION_ITEM_INFO_ACTION) ||
+                        action.equals(RecSys19Data.INTERACTION_ITEM_IMAGE_ACTION) ||
+                        action.equals(RecSys19Data.INTERACTION_ITEM_DEALS_ACTION) ||
+                        action.equals(RecSys19Data.SEARCH_FOR_ITEM_ACTION)) {
+                    if (reader.isEmpty(referenceIndexCSV) == false && reader.fieldEquals(referenceIndexCSV, UNKNOWN) == false) {
+                        try {
+                            int itemId = reader.getInt(referenceIndexCSV);
+                            int itemIndex = this.itemToLocal.get(itemId);
+                            if (itemIndex >= 0) {
+                                data.referenceItems[rowIndex] = itemIndex;
+                            } else {
+                                this.pendingRows.add(rowIndex);
+                                this.pendingItems.add(itemId);
+                            }
+                        } catch (Exception e) {
+                            System.out.println("failed " + reader.getLine());
+                        }
+                    }
+                } else {
+                    SessionFeature referenceFeature;
+                    if (action.equals(RecSys19Data.CHANGE_OF_SORT_ORDER_ACTION)) {
+                        referenceFeature = SessionFeature.reference_sort_order;
+                    } else if (action.equals(RecSys19Data.FILTER_SELECTION_ACTION)) {
+                        referenceFeature = SessionFeature.reference_filter;
+                    } else if (action.equals(RecSys19Data.SEARCH_FOR_DESTINATION_ACTION)) {
+                        referenceFeature = SessionFeature.reference_search_dest;
+                    } else if (action.equals(RecSys19Data.SEARCH_FOR_POI_ACTION)) {
+                        referenceFeature = SessionFeature.reference_search_poi;
+                    } else {
+                        throw new IllegalStateException("unknown action " + action);
+                    }
+                    int index = this.dictionaries.get(referenceFeature).getIndex(reader.getString(referenceIndexCSV));
+                    getFlat(referenceFeature, data).setRow(index, 1, rowIndex);
+                }
+                if (isTrain == false && action.equals(RecSys19Data.CLICKOUT_ITEM_ACTION) == true && data.referenceItems[rowIndex] < 0) {
+                    this.unresolvedClicks.add(rowIndex);
+                }
+            }
+        }
+        if (rowIndex != this.rowOffset + this.nRows - 1) {
+            throw new IllegalStateException("expected " + this.nRows + " rows in chunk but parsed " + (rowIndex - this.rowOffset + 1));
+        }
+    }
+
+    /**
+     * Rewrites rows of this chunk with global indexes, must be called after
+     * localToGlobal is set for all dictionaries and items. References that
+     * were resolved during the merge are written last so they are not remapped.
+     */
+    public void remap(final RecSys19Data data) {
+        int rowEnd = this.rowOffset + this.nRows;
+        for (SessionFeature feature : CAT_FEATURES) {
+            int[] localToGlobal = this.dictionaries.get(feature).localToGlobal;
+            if (feature.equals(SessionFeature.current_filters) == true) {
+                MLSparseMatrix matrix = data.sessionFeatures.get(feature).getFeatMatrix();
+                for (int i = this.rowOffset; i < rowEnd; i++) {
+                    MLSparseVector row = matrix.getRow(i, false);
+                    if (row != null) {
+                        remapAndSort(row, localToGlobal);
+                    }
+                }
+            } else {
+                int[] indexes = getFlat(feature, data).getIndexes();
+                for (int i = this.rowOffset; i < rowEnd; i++) {
+                    if (indexes[i] != MLSparseMatrixFlat.MISSING_ROW) {
+                        indexes[i] = localToGlobal[indexes[i]];
+                    }
+                }
+            }
+        }
+        this.impressions.trim();
+        this.prices.trim();
+        int[] impressionValues = this.impressions.getValues();
+        for (int i = 0; i < impressionValues.length; i++) {
+            impressionValues[i] = this.itemLocalToGlobal[impressionValues[i]];
+        }
+        for (int i = this.rowOffset; i < rowEnd; i++) {
+            if (data.referenceItems[i] >= 0) {
+                data.referenceItems[i] = this.itemLocalToGlobal[data.referenceItems[i]];
+            }
+        }
+        for (int i = 0; i < this.pendingRows.size(); i++) {
+            int itemIndex = this.pendingItems.get(i);
+            if (itemIndex >= 0) {
+                data.referenceItems[this.pendingRows.get(i)] = itemIndex;
+            }
+        }
+    }
+
+    private static MLSparseMatrixFlat getFlat(final SessionFeature feature, final RecSys19Data data) {
+        return (MLSparseMatrixFlat) data.sessionFeatures.get(feature).getFeatMatrix();
+    }
+
+    private static MLSparseVector toCountVector(final int[] cats, final int nCats) {
+        // same as MLSparseFeature.getFeatVector(), repeated categories are
+        // aggregated into counts and indexes are sorted after remapping
+        int[] indexes = new int[nCats];
+        float[] values = new float[nCats];
+        int nUnique = 0;
+        for (int i = 0; i < nCats; i++) {
+            int j = 0;
+            while (j < nUnique && indexes[j] != cats[i]) {
+                j++;
+            }
+            if (j == nUnique) {
+                indexes[j] = cats[i];
+                nUnique++;
+            }
+            values[j]++;
+        }
+        if (nUnique == 0) {
+            return null;
+        }
+        if (nUnique < nCats) {
+            indexes = Arrays.copyOf(indexes, nUnique);
+            values = Arrays.copyOf(values, nUnique);
+        }
+        return new MLSparseVector(indexes, values, null, 0);
+    }
+
+    private static void remapAndSort(final MLSparseVector row, final int[] localToGlobal) {
+        int[] indexes = row.getIndexes();
+        float[] values = row.getValues();
+        for (int i = 0; i < indexes.length; i++) {
+            int index = localToGlobal[indexes[i]];
+            float value = values[i];
+            int j = i - 1;
+            while (j >= 0 && indexes[j] > index) {
+                indexes[j + 1] = indexes[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            indexes[j + 1] = index;
+            values[j + 1] = value;
+        }
+    }
+}
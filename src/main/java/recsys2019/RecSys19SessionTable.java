@@ -0,0 +1,176 @@
+package recsys2019;
+import common.linalg.MLIntCSR;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Session index over session rows. A session is a run of consecutive rows
+ * with the same session_id within the train or test file, sessions are
+ * numbered in row order. Train sessions come first after a full parse but
+ * appended files can add train sessions after test sessions, so each
+ * session is flagged in sessionTrain. Session s covers rows
+ * [sessionStart[s], sessionEnd[s]) and belongs to user sessionUser[s], and
+ * sessions of each user are stored in a user to sessions CSR index.
+ */
+public class RecSys19SessionTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public int[] sessionStart;
+    public int[] sessionEnd;
+    public int[] sessionUser;
+    public boolean[] sessionTrain;
+    public int nTrainSessions;
+    public MLIntCSR userSessions;
+
+    /**
+     * @param sessionStartP  start row of each session in increasing order
+     * @param sessionUserP   user index of each session
+     * @param sessionTrainP  true for sessions from a train file
+     * @param nSessions      number of valid entries in the arrays
+     * @param nRows          number of session rows
+     * @param nUsers         number of user indexes
+     */
+    public RecSys19SessionTable(final int[] sessionStartP,
+                                final int[] sessionUserP,
+                                final boolean[] sessionTrainP,
+                                final int nSessions,
+                                final int nRows,
+                                final int nUsers) {
+        this.sessionStart = Arrays.copyOf(sessionStartP, nSessions);
+        this.sessionUser = Arrays.copyOf(sessionUserP, nSessions);
+        this.sessionTrain = Arrays.copyOf(sessionTrainP, nSessions);
+        this.nTrainSessions = 0;
+        this.sessionEnd = new int[nSessions];
+        for (int i = 0; i < nSessions; i++) {
+            this.sessionEnd[i] = (i + 1 < nSessions) ? this.sessionStart[i + 1] : nRows;
+            if (this.sessionTrain[i] == true) {
+                this.nTrainSessions++;
+            }
+        }
+
+        // counting sort sessions by user, sessions of each user stay in row
+        // order
+        int[] offsets = new int[nUsers + 1];
+        for (int i = 0; i < nSessions; i++) {
+            offsets[this.sessionUser[i] + 1]++;
+        }
+        for (int i = 0; i < nUsers; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] values = new int[nSessions];
+        int[] cur = Arrays.copyOf(offsets, nUsers);
+        for (int i = 0; i < nSessions; i++) {
+            values[cur[this.sessionUser[i]]++] = i;
+        }
+        this.userSessions = new MLIntCSR(offsets, values);
+    }
+
+    public int getNSessions() {
+        return this.sessionStart.length;
+    }
+
+    public int getNTrainSessions() {
+        return this.nTrainSessions;
+    }
+
+    public int getNUsers() {
+        return this.userSessions.getNRows();
+    }
+
+    public int getNUserSessions(final int userIndex) {
+        return this.userSessions.getRowLength(userIndex);
+    }
+
+    /**
+     * @return session that contains this row, found with binary search
+     */
+    public int getSession(final int rowIndex) {
+        int session = Arrays.binarySearch(this.sessionStart, rowIndex);
+        if (session < 0) {
+            session = -session - 2;
+        }
+        return session;
+    }
+
+    public int getSessionEnd(final int session) {
+        return this.sessionEnd[session];
+    }
+
+    public int getSessionStart(final int session) {
+        return this.sessionStart[session];
+    }
+
+    public int getSessionUser(final int session) {
+        return this.sessionUser[session];
+    }
+
+    public boolean isTrainSession(final int session) {
+        return this.sessionTrain[session];
+    }
+
+    /**
+     * Train sessions in the order the parser's former trainToSessionStart
+     * map visited them, a HashMap from session_id index to a TreeSet of
+     * start rows. Sampling in getTrainIndexes() depends on this order. Keys
+     * are visited by HashMap bucket, (key ^ key >>> 16) masked by the table
+     * capacity, keys in the same bucket in insertion order, and the starts
+     * of each key in increasing row order. HashMap only changes the order
+     * within a bucket when it turns a bucket of 8 or more keys into a tree,
+     * which doesn't happen for session_id indexes since they are assigned
+     * in first occurrence order.
+     *
+     * @param sessionIds session_id index of every row
+     * @param nSessionIds number of session_id indexes
+     */
+    public int[] getLegacyTrainOrder(final int[] sessionIds, final int nSessionIds) {
+        // train sessions of each key in row order, and the first of them
+        // which gives the key's insertion order
+        int[] offsets = new int[nSessionIds + 1];
+        int nKeys = 0;
+        for (int i = 0; i < this.getNSessions(); i++) {
+            if (this.sessionTrain[i] == true) {
+                int key = sessionIds[this.sessionStart[i]];
+                if (offsets[key + 1] == 0) {
+                    nKeys++;
+                }
+                offsets[key + 1]++;
+            }
+        }
+        for (int i = 0; i < nSessionIds; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] keySessions = new int[offsets[nSessionIds]];
+        int[] cur = Arrays.copyOf(offsets, nSessionIds);
+        for (int i = 0; i < this.getNSessions(); i++) {
+            if (this.sessionTrain[i] == true) {
+                int key = sessionIds[this.sessionStart[i]];
+                keySessions[cur[key]++] = i;
+            }
+        }
+
+        // default HashMap capacity after nKeys insertions
+        int capacity = 16;
+        while (nKeys > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+        long[] keyOrder = new long[nKeys];
+        int n = 0;
+        for (int key = 0; key < nSessionIds; key++) {
+            if (offsets[key + 1] > offsets[key]) {
+                long bucket = (key ^ (key >>> 16)) & (capacity - 1);
+                keyOrder[n++] = (bucket << 32) | keySessions[offsets[key]];
+            }
+        }
+        Arrays.sort(keyOrder);
+
+        int[] order = new int[keySessions.length];
+        n = 0;
+        for (long entry : keyOrder) {
+            int key = sessionIds[this.sessionStart[(int) entry]];
+            for (int i = offsets[key]; i < offsets[key + 1]; i++) {
+                order[n++] = keySessions[i];
+            }
+        }
+        return order;
+    }
+}
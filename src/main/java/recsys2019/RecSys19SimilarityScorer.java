@@ -0,0 +1,157 @@
+package recsys2019;
+import common.linalg.MLSparseMatrix;
+import common.linalg.MLSparseVector;
+
+/**
+ * Scores all impressions of a clickout against a user with one pass over
+ * the user's neighbourhood, gives the same scores as
+ * RecSys19Helper.getUserUser() and getItemItem().
+ * <p>
+ * Per user sums are gathered in dense scratch arrays indexed by user, a
+ * bitset and a list of touched users track which entries were written so
+ * that only those are cleared afterwards. Sums are added in the same order
+ * and with the same float/double widening as the helper methods so scores
+ * are bit identical. An instance is reused for every clickout of a thread
+ * and must not be shared between threads.
+ */
+public class RecSys19SimilarityScorer {
+
+    private float[] itemSums;
+    private double[] userSims;
+    private long[] touchedBits;
+    private int[] touched;
+    private int nTouched;
+
+    public RecSys19SimilarityScorer(final int nUsers) {
+        this.ensureCapacity(nUsers);
+    }
+
+    /**
+     * Item-item score of each item, product of the item's column with the
+     * sum of the columns of all items of the target user.
+     *
+     * @param R  user-item matrix
+     * @param Rt item-user matrix
+     */
+    public float[] getItemItem(final int targetIndex, final int[] items, final MLSparseMatrix R,
+                               final MLSparseMatrix Rt) {
+        float[] scores = new float[items.length];
+        MLSparseVector targetRow = R.getRow(targetIndex, false);
+        if (targetRow == null) {
+            return scores;
+        }
+        this.ensureCapacity(Rt.getNCols());
+        for (int itemIndex : targetRow.getIndexes()) {
+            MLSparseVector itemRow = Rt.getRow(itemIndex, false);
+            if (itemRow == null) {
+                continue;
+            }
+            int[] users = itemRow.getIndexes();
+            float[] values = itemRow.getValues();
+            for (int j = 0; j < users.length; j++) {
+                this.touch(users[j]);
+                this.itemSums[users[j]] += values[j];
+            }
+        }
+        for (int i = 0; i < items.length; i++) {
+            MLSparseVector itemRow = Rt.getRow(items[i], false);
+            if (itemRow == null) {
+                continue;
+            }
+            int[] users = itemRow.getIndexes();
+            float[] values = itemRow.getValues();
+            double product = 0f;
+            for (int j = 0; j < users.length; j++) {
+                float sum = this.itemSums[users[j]];
+                if (sum != 0) {
+                    product += values[j] * sum;
+                }
+            }
+            scores[i] = (float) product;
+        }
+        this.clear();
+        return scores;
+    }
+
+    /**
+     * User-user score of each item, sum of the similarities of the target
+     * user with every user of the item that shares an item with the target
+     * user.
+     *
+     * @param R  normalized user-item matrix
+     * @param Rt transpose of R
+     */
+    public float[] getUserUser(final int targetIndex, final int[] items, final MLSparseMatrix R,
+                               final MLSparseMatrix Rt) {
+        float[] scores = new float[items.length];
+        MLSparseVector targetRow = R.getRow(targetIndex, false);
+        if (targetRow == null) {
+            return scores;
+        }
+        this.ensureCapacity(Rt.getNCols());
+        // similarity with every neighbour in one scatter over the target's
+        // items, products are added in increasing item order like
+        // MLSparseVector.multiply()
+        int[] targetItems = targetRow.getIndexes();
+        float[] targetValues = targetRow.getValues();
+        for (int i = 0; i < targetItems.length; i++) {
+            MLSparseVector itemRow = Rt.getRow(targetItems[i], false);
+            if (itemRow == null) {
+                continue;
+            }
+            int[] users = itemRow.getIndexes();
+            float[] values = itemRow.getValues();
+            for (int j = 0; j < users.length; j++) {
+                this.touch(users[j]);
+                this.userSims[users[j]] += targetValues[i] * values[j];
+            }
+        }
+        for (int i = 0; i < items.length; i++) {
+            MLSparseVector itemRow = Rt.getRow(items[i], false);
+            if (itemRow == null) {
+                continue;
+            }
+            for (int user : itemRow.getIndexes()) {
+                if (this.isTouched(user) == true) {
+                    scores[i] += (float) this.userSims[user];
+                }
+            }
+        }
+        this.clear();
+        return scores;
+    }
+
+    private void touch(final int user) {
+        long bit = 1L << user;
+        if ((this.touchedBits[user >>> 6] & bit) == 0) {
+            this.touchedBits[user >>> 6] |= bit;
+            this.touched[this.nTouched] = user;
+            this.nTouched++;
+        }
+    }
+
+    private boolean isTouched(final int user) {
+        return (this.touchedBits[user >>> 6] & (1L << user)) != 0;
+    }
+
+    private void clear() {
+        for (int i = 0; i < this.nTouched; i++) {
+            int user = this.touched[i];
+            this.itemSums[user] = 0;
+            this.userSims[user] = 0;
+            this.touchedBits[user >>> 6] = 0;
+        }
+        this.nTouched = 0;
+    }
+
+    private void ensureCapacity(final int nUsers) {
+        if (this.itemSums != null && this.itemSums.length >= nUsers) {
+            return;
+        }
+        this.itemSums = new float[nUsers];
+        this.userSims = new double[nUsers];
+        this.touchedBits = new long[(nUsers + 63) >>> 6];
+        this.touched = new int[nUsers];
+        this.nTouched = 0;
+    }
+}